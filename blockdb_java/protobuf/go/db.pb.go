@@ -15,6 +15,17 @@ It has these top-level messages:
 	BooleanResponse
 	TransferRequest
 	Null
+	BatchRequest
+	BatchResponse
+	GetMultiRequest
+	GetMultiResponse
+	HistoryRequest
+	HistoryEntry
+	ReplicationAck
+	ReplicationBatch
+	HistogramStats
+	Counter
+	StatsResponse
 	Transaction
 	Block
 */
@@ -71,7 +82,7 @@ var Transaction_Types_value = map[string]int32{
 func (x Transaction_Types) String() string {
 	return proto.EnumName(Transaction_Types_name, int32(x))
 }
-func (Transaction_Types) EnumDescriptor() ([]byte, []int) { return fileDescriptor0, []int{6, 0} }
+func (Transaction_Types) EnumDescriptor() ([]byte, []int) { return fileDescriptor0, []int{17, 0} }
 
 type GetRequest struct {
 	UserID string `protobuf:"bytes,1,opt,name=UserID" json:"UserID,omitempty"`
@@ -185,6 +196,326 @@ func (m *Null) String() string            { return proto.CompactTextString(m) }
 func (*Null) ProtoMessage()               {}
 func (*Null) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{5} }
 
+type BatchRequest struct {
+	Transactions []*Transaction `protobuf:"bytes,1,rep,name=Transactions" json:"Transactions,omitempty"`
+	Atomic       bool           `protobuf:"varint,2,opt,name=Atomic" json:"Atomic,omitempty"`
+}
+
+func (m *BatchRequest) Reset()                    { *m = BatchRequest{} }
+func (m *BatchRequest) String() string            { return proto.CompactTextString(m) }
+func (*BatchRequest) ProtoMessage()               {}
+func (*BatchRequest) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{6} }
+
+func (m *BatchRequest) GetTransactions() []*Transaction {
+	if m != nil {
+		return m.Transactions
+	}
+	return nil
+}
+
+func (m *BatchRequest) GetAtomic() bool {
+	if m != nil {
+		return m.Atomic
+	}
+	return false
+}
+
+type BatchResponse struct {
+	Success []bool `protobuf:"varint,1,rep,packed,name=Success" json:"Success,omitempty"`
+}
+
+func (m *BatchResponse) Reset()                    { *m = BatchResponse{} }
+func (m *BatchResponse) String() string            { return proto.CompactTextString(m) }
+func (*BatchResponse) ProtoMessage()               {}
+func (*BatchResponse) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{7} }
+
+func (m *BatchResponse) GetSuccess() []bool {
+	if m != nil {
+		return m.Success
+	}
+	return nil
+}
+
+type GetMultiRequest struct {
+	UserIDs []string `protobuf:"bytes,1,rep,name=UserIDs" json:"UserIDs,omitempty"`
+}
+
+func (m *GetMultiRequest) Reset()                    { *m = GetMultiRequest{} }
+func (m *GetMultiRequest) String() string            { return proto.CompactTextString(m) }
+func (*GetMultiRequest) ProtoMessage()               {}
+func (*GetMultiRequest) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{8} }
+
+func (m *GetMultiRequest) GetUserIDs() []string {
+	if m != nil {
+		return m.UserIDs
+	}
+	return nil
+}
+
+type GetMultiResponse struct {
+	Values []int32 `protobuf:"varint,1,rep,packed,name=Values" json:"Values,omitempty"`
+	Seq    int64   `protobuf:"varint,2,opt,name=Seq" json:"Seq,omitempty"`
+}
+
+func (m *GetMultiResponse) Reset()                    { *m = GetMultiResponse{} }
+func (m *GetMultiResponse) String() string            { return proto.CompactTextString(m) }
+func (*GetMultiResponse) ProtoMessage()               {}
+func (*GetMultiResponse) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{9} }
+
+func (m *GetMultiResponse) GetValues() []int32 {
+	if m != nil {
+		return m.Values
+	}
+	return nil
+}
+
+func (m *GetMultiResponse) GetSeq() int64 {
+	if m != nil {
+		return m.Seq
+	}
+	return 0
+}
+
+type HistoryRequest struct {
+	UserID    string `protobuf:"bytes,1,opt,name=UserID" json:"UserID,omitempty"`
+	FromBlock int32  `protobuf:"varint,2,opt,name=FromBlock" json:"FromBlock,omitempty"`
+	Limit     int32  `protobuf:"varint,3,opt,name=Limit" json:"Limit,omitempty"`
+}
+
+func (m *HistoryRequest) Reset()                    { *m = HistoryRequest{} }
+func (m *HistoryRequest) String() string            { return proto.CompactTextString(m) }
+func (*HistoryRequest) ProtoMessage()               {}
+func (*HistoryRequest) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{10} }
+
+func (m *HistoryRequest) GetUserID() string {
+	if m != nil {
+		return m.UserID
+	}
+	return ""
+}
+
+func (m *HistoryRequest) GetFromBlock() int32 {
+	if m != nil {
+		return m.FromBlock
+	}
+	return 0
+}
+
+func (m *HistoryRequest) GetLimit() int32 {
+	if m != nil {
+		return m.Limit
+	}
+	return 0
+}
+
+type HistoryEntry struct {
+	BlockID     int32        `protobuf:"varint,1,opt,name=BlockID" json:"BlockID,omitempty"`
+	Offset      int32        `protobuf:"varint,2,opt,name=Offset" json:"Offset,omitempty"`
+	Transaction *Transaction `protobuf:"bytes,3,opt,name=Transaction" json:"Transaction,omitempty"`
+}
+
+func (m *HistoryEntry) Reset()                    { *m = HistoryEntry{} }
+func (m *HistoryEntry) String() string            { return proto.CompactTextString(m) }
+func (*HistoryEntry) ProtoMessage()               {}
+func (*HistoryEntry) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{11} }
+
+func (m *HistoryEntry) GetBlockID() int32 {
+	if m != nil {
+		return m.BlockID
+	}
+	return 0
+}
+
+func (m *HistoryEntry) GetOffset() int32 {
+	if m != nil {
+		return m.Offset
+	}
+	return 0
+}
+
+func (m *HistoryEntry) GetTransaction() *Transaction {
+	if m != nil {
+		return m.Transaction
+	}
+	return nil
+}
+
+type ReplicationAck struct {
+	ServerID   string `protobuf:"bytes,1,opt,name=ServerID" json:"ServerID,omitempty"`
+	DurableSeq int64  `protobuf:"varint,2,opt,name=DurableSeq" json:"DurableSeq,omitempty"`
+}
+
+func (m *ReplicationAck) Reset()                    { *m = ReplicationAck{} }
+func (m *ReplicationAck) String() string            { return proto.CompactTextString(m) }
+func (*ReplicationAck) ProtoMessage()               {}
+func (*ReplicationAck) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{12} }
+
+func (m *ReplicationAck) GetServerID() string {
+	if m != nil {
+		return m.ServerID
+	}
+	return ""
+}
+
+func (m *ReplicationAck) GetDurableSeq() int64 {
+	if m != nil {
+		return m.DurableSeq
+	}
+	return 0
+}
+
+type ReplicationBatch struct {
+	FirstSeq     int64          `protobuf:"varint,1,opt,name=FirstSeq" json:"FirstSeq,omitempty"`
+	Transactions []*Transaction `protobuf:"bytes,2,rep,name=Transactions" json:"Transactions,omitempty"`
+	LeaderSeq    int64          `protobuf:"varint,3,opt,name=LeaderSeq" json:"LeaderSeq,omitempty"`
+}
+
+func (m *ReplicationBatch) Reset()                    { *m = ReplicationBatch{} }
+func (m *ReplicationBatch) String() string            { return proto.CompactTextString(m) }
+func (*ReplicationBatch) ProtoMessage()               {}
+func (*ReplicationBatch) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{13} }
+
+func (m *ReplicationBatch) GetFirstSeq() int64 {
+	if m != nil {
+		return m.FirstSeq
+	}
+	return 0
+}
+
+func (m *ReplicationBatch) GetTransactions() []*Transaction {
+	if m != nil {
+		return m.Transactions
+	}
+	return nil
+}
+
+func (m *ReplicationBatch) GetLeaderSeq() int64 {
+	if m != nil {
+		return m.LeaderSeq
+	}
+	return 0
+}
+
+type HistogramStats struct {
+	Name  string  `protobuf:"bytes,1,opt,name=Name" json:"Name,omitempty"`
+	Unit  string  `protobuf:"bytes,2,opt,name=Unit" json:"Unit,omitempty"`
+	Count int64   `protobuf:"varint,3,opt,name=Count" json:"Count,omitempty"`
+	Mean  float64 `protobuf:"fixed64,4,opt,name=Mean" json:"Mean,omitempty"`
+	P50   int64   `protobuf:"varint,5,opt,name=P50" json:"P50,omitempty"`
+	P99   int64   `protobuf:"varint,6,opt,name=P99" json:"P99,omitempty"`
+	P999  int64   `protobuf:"varint,7,opt,name=P999" json:"P999,omitempty"`
+	Max   int64   `protobuf:"varint,8,opt,name=Max" json:"Max,omitempty"`
+}
+
+func (m *HistogramStats) Reset()                    { *m = HistogramStats{} }
+func (m *HistogramStats) String() string            { return proto.CompactTextString(m) }
+func (*HistogramStats) ProtoMessage()               {}
+func (*HistogramStats) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{14} }
+
+func (m *HistogramStats) GetName() string {
+	if m != nil {
+		return m.Name
+	}
+	return ""
+}
+
+func (m *HistogramStats) GetUnit() string {
+	if m != nil {
+		return m.Unit
+	}
+	return ""
+}
+
+func (m *HistogramStats) GetCount() int64 {
+	if m != nil {
+		return m.Count
+	}
+	return 0
+}
+
+func (m *HistogramStats) GetMean() float64 {
+	if m != nil {
+		return m.Mean
+	}
+	return 0
+}
+
+func (m *HistogramStats) GetP50() int64 {
+	if m != nil {
+		return m.P50
+	}
+	return 0
+}
+
+func (m *HistogramStats) GetP99() int64 {
+	if m != nil {
+		return m.P99
+	}
+	return 0
+}
+
+func (m *HistogramStats) GetP999() int64 {
+	if m != nil {
+		return m.P999
+	}
+	return 0
+}
+
+func (m *HistogramStats) GetMax() int64 {
+	if m != nil {
+		return m.Max
+	}
+	return 0
+}
+
+type Counter struct {
+	Name  string `protobuf:"bytes,1,opt,name=Name" json:"Name,omitempty"`
+	Value int64  `protobuf:"varint,2,opt,name=Value" json:"Value,omitempty"`
+}
+
+func (m *Counter) Reset()                    { *m = Counter{} }
+func (m *Counter) String() string            { return proto.CompactTextString(m) }
+func (*Counter) ProtoMessage()               {}
+func (*Counter) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{15} }
+
+func (m *Counter) GetName() string {
+	if m != nil {
+		return m.Name
+	}
+	return ""
+}
+
+func (m *Counter) GetValue() int64 {
+	if m != nil {
+		return m.Value
+	}
+	return 0
+}
+
+type StatsResponse struct {
+	Histograms []*HistogramStats `protobuf:"bytes,1,rep,name=Histograms" json:"Histograms,omitempty"`
+	Counters   []*Counter        `protobuf:"bytes,2,rep,name=Counters" json:"Counters,omitempty"`
+}
+
+func (m *StatsResponse) Reset()                    { *m = StatsResponse{} }
+func (m *StatsResponse) String() string            { return proto.CompactTextString(m) }
+func (*StatsResponse) ProtoMessage()               {}
+func (*StatsResponse) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{16} }
+
+func (m *StatsResponse) GetHistograms() []*HistogramStats {
+	if m != nil {
+		return m.Histograms
+	}
+	return nil
+}
+
+func (m *StatsResponse) GetCounters() []*Counter {
+	if m != nil {
+		return m.Counters
+	}
+	return nil
+}
+
 type Transaction struct {
 	Type   Transaction_Types `protobuf:"varint,1,opt,name=Type,enum=blockdb.Transaction_Types" json:"Type,omitempty"`
 	UserID string            `protobuf:"bytes,2,opt,name=UserID" json:"UserID,omitempty"`
@@ -196,7 +527,7 @@ type Transaction struct {
 func (m *Transaction) Reset()                    { *m = Transaction{} }
 func (m *Transaction) String() string            { return proto.CompactTextString(m) }
 func (*Transaction) ProtoMessage()               {}
-func (*Transaction) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{6} }
+func (*Transaction) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{17} }
 
 func (m *Transaction) GetType() Transaction_Types {
 	if m != nil {
@@ -243,7 +574,7 @@ type Block struct {
 func (m *Block) Reset()                    { *m = Block{} }
 func (m *Block) String() string            { return proto.CompactTextString(m) }
 func (*Block) ProtoMessage()               {}
-func (*Block) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{7} }
+func (*Block) Descriptor() ([]byte, []int) { return fileDescriptor0, []int{18} }
 
 func (m *Block) GetBlockID() int32 {
 	if m != nil {
@@ -280,6 +611,17 @@ func init() {
 	proto.RegisterType((*BooleanResponse)(nil), "blockdb.BooleanResponse")
 	proto.RegisterType((*TransferRequest)(nil), "blockdb.TransferRequest")
 	proto.RegisterType((*Null)(nil), "blockdb.Null")
+	proto.RegisterType((*BatchRequest)(nil), "blockdb.BatchRequest")
+	proto.RegisterType((*BatchResponse)(nil), "blockdb.BatchResponse")
+	proto.RegisterType((*GetMultiRequest)(nil), "blockdb.GetMultiRequest")
+	proto.RegisterType((*GetMultiResponse)(nil), "blockdb.GetMultiResponse")
+	proto.RegisterType((*HistoryRequest)(nil), "blockdb.HistoryRequest")
+	proto.RegisterType((*HistoryEntry)(nil), "blockdb.HistoryEntry")
+	proto.RegisterType((*ReplicationAck)(nil), "blockdb.ReplicationAck")
+	proto.RegisterType((*ReplicationBatch)(nil), "blockdb.ReplicationBatch")
+	proto.RegisterType((*HistogramStats)(nil), "blockdb.HistogramStats")
+	proto.RegisterType((*Counter)(nil), "blockdb.Counter")
+	proto.RegisterType((*StatsResponse)(nil), "blockdb.StatsResponse")
 	proto.RegisterType((*Transaction)(nil), "blockdb.Transaction")
 	proto.RegisterType((*Block)(nil), "blockdb.Block")
 	proto.RegisterEnum("blockdb.Transaction_Types", Transaction_Types_name, Transaction_Types_value)
@@ -310,6 +652,22 @@ type BlockDatabaseClient interface {
 	Transfer(ctx context.Context, in *TransferRequest, opts ...grpc.CallOption) (*BooleanResponse, error)
 	// Return the length of transient (non-block) log on disk
 	LogLength(ctx context.Context, in *Null, opts ...grpc.CallOption) (*GetResponse, error)
+	// Apply PUT/DEPOSIT/WITHDRAW/TRANSFER transactions in order with a single log write
+	// Return one Success per transaction; if Atomic, either all succeed or none is applied
+	BatchApply(ctx context.Context, in *BatchRequest, opts ...grpc.CallOption) (*BatchResponse, error)
+	// Apply a stream of transactions, answering each with a BooleanResponse in order
+	ApplyStream(ctx context.Context, opts ...grpc.CallOption) (BlockDatabase_ApplyStreamClient, error)
+	// Return db[UserIDs[i]] for every i, all as of the same durable log record Seq
+	GetMulti(ctx context.Context, in *GetMultiRequest, opts ...grpc.CallOption) (*GetMultiResponse, error)
+	// Stream the transactions in sealed blocks that touch UserID, oldest first, from block
+	// FromBlock on; at most Limit of them, or all if Limit is 0
+	History(ctx context.Context, in *HistoryRequest, opts ...grpc.CallOption) (BlockDatabase_HistoryClient, error)
+	// Stream committed log records from the leader to a follower. The follower first sends its
+	// ServerID and the sequence number its log is durable up to, then acknowledges every batch
+	// once it is durable; the leader sends records in order from the one after that
+	Replicate(ctx context.Context, opts ...grpc.CallOption) (BlockDatabase_ReplicateClient, error)
+	// Return latency histograms, counters and gauges collected by the server
+	Stats(ctx context.Context, in *Null, opts ...grpc.CallOption) (*StatsResponse, error)
 }
 
 type blockDatabaseClient struct {
@@ -374,6 +732,127 @@ func (c *blockDatabaseClient) LogLength(ctx context.Context, in *Null, opts ...g
 	return out, nil
 }
 
+func (c *blockDatabaseClient) BatchApply(ctx context.Context, in *BatchRequest, opts ...grpc.CallOption) (*BatchResponse, error) {
+	out := new(BatchResponse)
+	err := grpc.Invoke(ctx, "/blockdb.BlockDatabase/BatchApply", in, out, c.cc, opts...)
+	if err != nil {
+		return nil, err
+	}
+	return out, nil
+}
+
+func (c *blockDatabaseClient) ApplyStream(ctx context.Context, opts ...grpc.CallOption) (BlockDatabase_ApplyStreamClient, error) {
+	stream, err := grpc.NewClientStream(ctx, &_BlockDatabase_serviceDesc.Streams[0], c.cc, "/blockdb.BlockDatabase/ApplyStream", opts...)
+	if err != nil {
+		return nil, err
+	}
+	x := &blockDatabaseApplyStreamClient{stream}
+	return x, nil
+}
+
+type BlockDatabase_ApplyStreamClient interface {
+	Send(*Transaction) error
+	Recv() (*BooleanResponse, error)
+	grpc.ClientStream
+}
+
+type blockDatabaseApplyStreamClient struct {
+	grpc.ClientStream
+}
+
+func (x *blockDatabaseApplyStreamClient) Send(m *Transaction) error {
+	return x.ClientStream.SendMsg(m)
+}
+
+func (x *blockDatabaseApplyStreamClient) Recv() (*BooleanResponse, error) {
+	m := new(BooleanResponse)
+	if err := x.ClientStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func (c *blockDatabaseClient) GetMulti(ctx context.Context, in *GetMultiRequest, opts ...grpc.CallOption) (*GetMultiResponse, error) {
+	out := new(GetMultiResponse)
+	err := grpc.Invoke(ctx, "/blockdb.BlockDatabase/GetMulti", in, out, c.cc, opts...)
+	if err != nil {
+		return nil, err
+	}
+	return out, nil
+}
+
+func (c *blockDatabaseClient) History(ctx context.Context, in *HistoryRequest, opts ...grpc.CallOption) (BlockDatabase_HistoryClient, error) {
+	stream, err := grpc.NewClientStream(ctx, &_BlockDatabase_serviceDesc.Streams[1], c.cc, "/blockdb.BlockDatabase/History", opts...)
+	if err != nil {
+		return nil, err
+	}
+	x := &blockDatabaseHistoryClient{stream}
+	if err := x.ClientStream.SendMsg(in); err != nil {
+		return nil, err
+	}
+	if err := x.ClientStream.CloseSend(); err != nil {
+		return nil, err
+	}
+	return x, nil
+}
+
+type BlockDatabase_HistoryClient interface {
+	Recv() (*HistoryEntry, error)
+	grpc.ClientStream
+}
+
+type blockDatabaseHistoryClient struct {
+	grpc.ClientStream
+}
+
+func (x *blockDatabaseHistoryClient) Recv() (*HistoryEntry, error) {
+	m := new(HistoryEntry)
+	if err := x.ClientStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func (c *blockDatabaseClient) Replicate(ctx context.Context, opts ...grpc.CallOption) (BlockDatabase_ReplicateClient, error) {
+	stream, err := grpc.NewClientStream(ctx, &_BlockDatabase_serviceDesc.Streams[2], c.cc, "/blockdb.BlockDatabase/Replicate", opts...)
+	if err != nil {
+		return nil, err
+	}
+	x := &blockDatabaseReplicateClient{stream}
+	return x, nil
+}
+
+type BlockDatabase_ReplicateClient interface {
+	Send(*ReplicationAck) error
+	Recv() (*ReplicationBatch, error)
+	grpc.ClientStream
+}
+
+type blockDatabaseReplicateClient struct {
+	grpc.ClientStream
+}
+
+func (x *blockDatabaseReplicateClient) Send(m *ReplicationAck) error {
+	return x.ClientStream.SendMsg(m)
+}
+
+func (x *blockDatabaseReplicateClient) Recv() (*ReplicationBatch, error) {
+	m := new(ReplicationBatch)
+	if err := x.ClientStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func (c *blockDatabaseClient) Stats(ctx context.Context, in *Null, opts ...grpc.CallOption) (*StatsResponse, error) {
+	out := new(StatsResponse)
+	err := grpc.Invoke(ctx, "/blockdb.BlockDatabase/Stats", in, out, c.cc, opts...)
+	if err != nil {
+		return nil, err
+	}
+	return out, nil
+}
+
 // Server API for BlockDatabase service
 
 type BlockDatabaseServer interface {
@@ -391,6 +870,22 @@ type BlockDatabaseServer interface {
 	Transfer(context.Context, *TransferRequest) (*BooleanResponse, error)
 	// Return the length of transient (non-block) log on disk
 	LogLength(context.Context, *Null) (*GetResponse, error)
+	// Apply PUT/DEPOSIT/WITHDRAW/TRANSFER transactions in order with a single log write
+	// Return one Success per transaction; if Atomic, either all succeed or none is applied
+	BatchApply(context.Context, *BatchRequest) (*BatchResponse, error)
+	// Apply a stream of transactions, answering each with a BooleanResponse in order
+	ApplyStream(BlockDatabase_ApplyStreamServer) error
+	// Return db[UserIDs[i]] for every i, all as of the same durable log record Seq
+	GetMulti(context.Context, *GetMultiRequest) (*GetMultiResponse, error)
+	// Stream the transactions in sealed blocks that touch UserID, oldest first, from block
+	// FromBlock on; at most Limit of them, or all if Limit is 0
+	History(*HistoryRequest, BlockDatabase_HistoryServer) error
+	// Stream committed log records from the leader to a follower. The follower first sends its
+	// ServerID and the sequence number its log is durable up to, then acknowledges every batch
+	// once it is durable; the leader sends records in order from the one after that
+	Replicate(BlockDatabase_ReplicateServer) error
+	// Return latency histograms, counters and gauges collected by the server
+	Stats(context.Context, *Null) (*StatsResponse, error)
 }
 
 func RegisterBlockDatabaseServer(s *grpc.Server, srv BlockDatabaseServer) {
@@ -505,6 +1000,133 @@ func _BlockDatabase_LogLength_Handler(srv interface{}, ctx context.Context, dec
 	return interceptor(ctx, in, info, handler)
 }
 
+func _BlockDatabase_BatchApply_Handler(srv interface{}, ctx context.Context, dec func(interface{}) error, interceptor grpc.UnaryServerInterceptor) (interface{}, error) {
+	in := new(BatchRequest)
+	if err := dec(in); err != nil {
+		return nil, err
+	}
+	if interceptor == nil {
+		return srv.(BlockDatabaseServer).BatchApply(ctx, in)
+	}
+	info := &grpc.UnaryServerInfo{
+		Server:     srv,
+		FullMethod: "/blockdb.BlockDatabase/BatchApply",
+	}
+	handler := func(ctx context.Context, req interface{}) (interface{}, error) {
+		return srv.(BlockDatabaseServer).BatchApply(ctx, req.(*BatchRequest))
+	}
+	return interceptor(ctx, in, info, handler)
+}
+
+func _BlockDatabase_ApplyStream_Handler(srv interface{}, stream grpc.ServerStream) error {
+	return srv.(BlockDatabaseServer).ApplyStream(&blockDatabaseApplyStreamServer{stream})
+}
+
+type BlockDatabase_ApplyStreamServer interface {
+	Send(*BooleanResponse) error
+	Recv() (*Transaction, error)
+	grpc.ServerStream
+}
+
+type blockDatabaseApplyStreamServer struct {
+	grpc.ServerStream
+}
+
+func (x *blockDatabaseApplyStreamServer) Send(m *BooleanResponse) error {
+	return x.ServerStream.SendMsg(m)
+}
+
+func (x *blockDatabaseApplyStreamServer) Recv() (*Transaction, error) {
+	m := new(Transaction)
+	if err := x.ServerStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func _BlockDatabase_GetMulti_Handler(srv interface{}, ctx context.Context, dec func(interface{}) error, interceptor grpc.UnaryServerInterceptor) (interface{}, error) {
+	in := new(GetMultiRequest)
+	if err := dec(in); err != nil {
+		return nil, err
+	}
+	if interceptor == nil {
+		return srv.(BlockDatabaseServer).GetMulti(ctx, in)
+	}
+	info := &grpc.UnaryServerInfo{
+		Server:     srv,
+		FullMethod: "/blockdb.BlockDatabase/GetMulti",
+	}
+	handler := func(ctx context.Context, req interface{}) (interface{}, error) {
+		return srv.(BlockDatabaseServer).GetMulti(ctx, req.(*GetMultiRequest))
+	}
+	return interceptor(ctx, in, info, handler)
+}
+
+func _BlockDatabase_History_Handler(srv interface{}, stream grpc.ServerStream) error {
+	m := new(HistoryRequest)
+	if err := stream.RecvMsg(m); err != nil {
+		return err
+	}
+	return srv.(BlockDatabaseServer).History(m, &blockDatabaseHistoryServer{stream})
+}
+
+type BlockDatabase_HistoryServer interface {
+	Send(*HistoryEntry) error
+	grpc.ServerStream
+}
+
+type blockDatabaseHistoryServer struct {
+	grpc.ServerStream
+}
+
+func (x *blockDatabaseHistoryServer) Send(m *HistoryEntry) error {
+	return x.ServerStream.SendMsg(m)
+}
+
+func _BlockDatabase_Replicate_Handler(srv interface{}, stream grpc.ServerStream) error {
+	return srv.(BlockDatabaseServer).Replicate(&blockDatabaseReplicateServer{stream})
+}
+
+type BlockDatabase_ReplicateServer interface {
+	Send(*ReplicationBatch) error
+	Recv() (*ReplicationAck, error)
+	grpc.ServerStream
+}
+
+type blockDatabaseReplicateServer struct {
+	grpc.ServerStream
+}
+
+func (x *blockDatabaseReplicateServer) Send(m *ReplicationBatch) error {
+	return x.ServerStream.SendMsg(m)
+}
+
+func (x *blockDatabaseReplicateServer) Recv() (*ReplicationAck, error) {
+	m := new(ReplicationAck)
+	if err := x.ServerStream.RecvMsg(m); err != nil {
+		return nil, err
+	}
+	return m, nil
+}
+
+func _BlockDatabase_Stats_Handler(srv interface{}, ctx context.Context, dec func(interface{}) error, interceptor grpc.UnaryServerInterceptor) (interface{}, error) {
+	in := new(Null)
+	if err := dec(in); err != nil {
+		return nil, err
+	}
+	if interceptor == nil {
+		return srv.(BlockDatabaseServer).Stats(ctx, in)
+	}
+	info := &grpc.UnaryServerInfo{
+		Server:     srv,
+		FullMethod: "/blockdb.BlockDatabase/Stats",
+	}
+	handler := func(ctx context.Context, req interface{}) (interface{}, error) {
+		return srv.(BlockDatabaseServer).Stats(ctx, req.(*Null))
+	}
+	return interceptor(ctx, in, info, handler)
+}
+
 var _BlockDatabase_serviceDesc = grpc.ServiceDesc{
 	ServiceName: "blockdb.BlockDatabase",
 	HandlerType: (*BlockDatabaseServer)(nil),
@@ -533,45 +1155,104 @@ var _BlockDatabase_serviceDesc = grpc.ServiceDesc{
 			MethodName: "LogLength",
 			Handler:    _BlockDatabase_LogLength_Handler,
 		},
+		{
+			MethodName: "BatchApply",
+			Handler:    _BlockDatabase_BatchApply_Handler,
+		},
+		{
+			MethodName: "GetMulti",
+			Handler:    _BlockDatabase_GetMulti_Handler,
+		},
+		{
+			MethodName: "Stats",
+			Handler:    _BlockDatabase_Stats_Handler,
+		},
+	},
+	Streams: []grpc.StreamDesc{
+		{
+			StreamName:    "ApplyStream",
+			Handler:       _BlockDatabase_ApplyStream_Handler,
+			ServerStreams: true,
+			ClientStreams: true,
+		},
+		{
+			StreamName:    "History",
+			Handler:       _BlockDatabase_History_Handler,
+			ServerStreams: true,
+		},
+		{
+			StreamName:    "Replicate",
+			Handler:       _BlockDatabase_Replicate_Handler,
+			ServerStreams: true,
+			ClientStreams: true,
+		},
 	},
-	Streams:  []grpc.StreamDesc{},
 	Metadata: "db.proto",
 }
 
 func init() { proto.RegisterFile("db.proto", fileDescriptor0) }
 
 var fileDescriptor0 = []byte{
-	// 502 bytes of a gzipped FileDescriptorProto
-	0x1f, 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0xff, 0x94, 0x54, 0x4d, 0x6f, 0x9b, 0x40,
-	0x10, 0x35, 0xc6, 0x18, 0x3c, 0x4e, 0x1a, 0xb4, 0xb5, 0x5a, 0xcb, 0xa7, 0x88, 0xe6, 0x10, 0xa9,
-	0x12, 0x07, 0xe7, 0x90, 0x1c, 0x1b, 0x84, 0xe3, 0x58, 0x8d, 0x30, 0x5a, 0xe3, 0xfa, 0x0c, 0x78,
-	0x1b, 0xa3, 0x12, 0xd6, 0x65, 0x97, 0x56, 0xf9, 0x11, 0xfd, 0x91, 0xbd, 0xf5, 0x67, 0x54, 0x2c,
-	0x9f, 0xae, 0xdc, 0x56, 0xb9, 0xed, 0xdb, 0x7d, 0x33, 0x6f, 0xde, 0xd3, 0x68, 0x41, 0xdb, 0x06,
-	0xe6, 0x3e, 0xa5, 0x9c, 0x22, 0x35, 0x88, 0x69, 0xf8, 0x65, 0x1b, 0x18, 0x17, 0x00, 0x73, 0xc2,
-	0x31, 0xf9, 0x9a, 0x11, 0xc6, 0xd1, 0x1b, 0xe8, 0xaf, 0x19, 0x49, 0x17, 0xf6, 0x58, 0x3a, 0x97,
-	0x2e, 0x07, 0xb8, 0x44, 0xc6, 0x3b, 0x18, 0x0a, 0x16, 0xdb, 0xd3, 0x84, 0x11, 0x34, 0x02, 0xe5,
-	0x93, 0x1f, 0x67, 0x44, 0xb0, 0x14, 0x5c, 0x00, 0xe3, 0x1a, 0xd4, 0xff, 0xf4, 0x69, 0x0a, 0xbb,
-	0xed, 0xc2, 0xf7, 0x70, 0x66, 0x51, 0x1a, 0x13, 0x3f, 0xa9, 0x15, 0xc6, 0xa0, 0xae, 0xb2, 0x30,
-	0x24, 0x8c, 0x89, 0x0e, 0x1a, 0xae, 0xa0, 0xb1, 0x82, 0x33, 0x2f, 0xf5, 0x13, 0xf6, 0x99, 0xa4,
-	0x2d, 0xb5, 0xbb, 0x94, 0x3e, 0x35, 0x6a, 0x05, 0x42, 0x08, 0x7a, 0x1e, 0x5d, 0xd8, 0x42, 0x6c,
-	0x80, 0xc5, 0xb9, 0x99, 0x40, 0x6e, 0x4f, 0xd0, 0x87, 0x9e, 0x93, 0xc5, 0xb1, 0xf1, 0x4b, 0x82,
-	0xa1, 0xe8, 0xee, 0x87, 0x3c, 0xa2, 0x09, 0x32, 0xa1, 0xe7, 0x3d, 0xef, 0x0b, 0x9f, 0xaf, 0xa6,
-	0x13, 0xb3, 0x4c, 0xcd, 0x6c, 0x71, 0xcc, 0x9c, 0xc0, 0xb0, 0xe0, 0xb5, 0x7c, 0x77, 0x0f, 0x7c,
-	0x37, 0x13, 0xca, 0x47, 0x27, 0xec, 0x1d, 0x9b, 0x50, 0x69, 0x4f, 0xb8, 0x04, 0x45, 0x08, 0xa1,
-	0x21, 0xa8, 0x6b, 0xe7, 0xa3, 0xb3, 0xdc, 0x38, 0x7a, 0x07, 0xa9, 0x20, 0xcf, 0x67, 0x9e, 0x2e,
-	0xe5, 0x07, 0x77, 0xed, 0xe9, 0xdd, 0xfc, 0xd9, 0x9e, 0xb9, 0xcb, 0xd5, 0xc2, 0xd3, 0x65, 0x74,
-	0x02, 0xda, 0x66, 0xe1, 0xdd, 0xdb, 0xf8, 0x76, 0xa3, 0xf7, 0x72, 0xe4, 0xe1, 0x5b, 0x67, 0x75,
-	0x37, 0xc3, 0xba, 0x62, 0xfc, 0x90, 0x40, 0xb1, 0x72, 0x3b, 0x79, 0xd6, 0xe2, 0x50, 0xe6, 0xa7,
-	0xe0, 0x0a, 0xa2, 0x09, 0x68, 0x6e, 0x4a, 0xbe, 0xdd, 0xfb, 0x6c, 0x57, 0x1a, 0xaa, 0x31, 0xba,
-	0x81, 0x93, 0x56, 0x0a, 0x6c, 0x2c, 0x9f, 0xcb, 0x97, 0xc3, 0xe9, 0xe8, 0x58, 0x44, 0xf8, 0x80,
-	0x99, 0x1b, 0x74, 0x68, 0x12, 0x92, 0xd2, 0x75, 0x01, 0xa6, 0x3f, 0xbb, 0x70, 0x2a, 0x74, 0x6d,
-	0x9f, 0xfb, 0x81, 0xcf, 0x08, 0x9a, 0x82, 0x3c, 0x27, 0x1c, 0xbd, 0xae, 0x5b, 0x36, 0x8b, 0x3a,
-	0x19, 0x1d, 0x5e, 0x16, 0x5b, 0x63, 0x74, 0xd0, 0x15, 0xc8, 0x6e, 0xc6, 0x91, 0x5e, 0x3f, 0x57,
-	0x05, 0xe3, 0xfa, 0xe6, 0x8f, 0x55, 0x33, 0x3a, 0xe8, 0x06, 0xb4, 0x4d, 0xc4, 0x77, 0xdb, 0xd4,
-	0xff, 0xfe, 0xc2, 0xca, 0x6b, 0x50, 0x6d, 0xb2, 0xa7, 0x2c, 0x7a, 0xa9, 0xe4, 0x07, 0xd0, 0xaa,
-	0x2d, 0x46, 0xe3, 0xc3, 0xcc, 0x9a, 0xc5, 0xfe, 0x67, 0x87, 0x29, 0x0c, 0x1e, 0xe8, 0xe3, 0x03,
-	0x49, 0x1e, 0xf9, 0x0e, 0x9d, 0xd6, 0xc4, 0x7c, 0x8d, 0xff, 0x96, 0x8e, 0x75, 0x01, 0x6f, 0xa3,
-	0x28, 0x62, 0x26, 0x7b, 0x66, 0x9c, 0x3c, 0x31, 0x93, 0xb2, 0x8a, 0x68, 0xa9, 0xb6, 0xe5, 0xe6,
-	0x3f, 0x83, 0x2b, 0x05, 0x7d, 0xf1, 0x45, 0x5c, 0xfd, 0x0e, 0x00, 0x00, 0xff, 0xff, 0xda, 0x69,
-	0x57, 0x6d, 0x2e, 0x04, 0x00, 0x00,
+	// 974 bytes of a gzipped FileDescriptorProto
+	0x1f, 0x8b, 0x08, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0x03, 0x95, 0x56, 0xcd, 0x6e, 0xdb, 0x46,
+	0x10, 0x36, 0x45, 0xd1, 0x92, 0x47, 0xb6, 0x43, 0x6c, 0x9d, 0x84, 0x15, 0x8a, 0x22, 0xd8, 0xe4,
+	0xe0, 0xa2, 0x85, 0x60, 0xc8, 0x68, 0x13, 0x01, 0x29, 0x50, 0x29, 0x92, 0x63, 0xa3, 0xb6, 0x2c,
+	0xac, 0xe4, 0xfa, 0x92, 0x43, 0x28, 0x79, 0x6d, 0x13, 0xa5, 0x44, 0x85, 0xbb, 0x72, 0xa2, 0x17,
+	0xe8, 0xad, 0x6f, 0xd2, 0x87, 0xea, 0xb1, 0x8f, 0xd1, 0xdd, 0xe5, 0x92, 0x5c, 0x2a, 0x72, 0x7e,
+	0x4e, 0x9a, 0x19, 0xce, 0xef, 0x37, 0xb3, 0x33, 0x82, 0xea, 0xd5, 0xb8, 0x31, 0x8f, 0x23, 0x1e,
+	0xa1, 0xca, 0x38, 0x8c, 0x26, 0x7f, 0x5e, 0x8d, 0xf1, 0x33, 0x80, 0xd7, 0x94, 0x13, 0xfa, 0x6e,
+	0x41, 0x19, 0x47, 0x8f, 0x60, 0xf3, 0x82, 0xd1, 0xf8, 0xa4, 0xeb, 0x59, 0x4f, 0xac, 0xfd, 0x2d,
+	0xa2, 0x39, 0xfc, 0x14, 0x6a, 0x4a, 0x8b, 0xcd, 0xa3, 0x19, 0xa3, 0x68, 0x0f, 0x9c, 0x3f, 0xfc,
+	0x70, 0x41, 0x95, 0x96, 0x43, 0x12, 0x06, 0x3f, 0x87, 0xca, 0x67, 0xfc, 0xe4, 0x86, 0x25, 0xd3,
+	0xf0, 0x47, 0x78, 0xd0, 0x89, 0xa2, 0x90, 0xfa, 0xb3, 0x2c, 0x82, 0x07, 0x95, 0xe1, 0x62, 0x32,
+	0xa1, 0x8c, 0x29, 0x0f, 0x55, 0x92, 0xb2, 0x78, 0x08, 0x0f, 0x46, 0xb1, 0x3f, 0x63, 0xd7, 0x34,
+	0x36, 0xa2, 0x1d, 0xc5, 0xd1, 0x34, 0x8f, 0x96, 0x70, 0x08, 0x41, 0x79, 0x14, 0x09, 0x69, 0x49,
+	0x49, 0x15, 0x9d, 0x67, 0x60, 0x9b, 0x19, 0x6c, 0x42, 0xb9, 0xbf, 0x08, 0x43, 0xfc, 0x16, 0xb6,
+	0x3b, 0x3e, 0x9f, 0xdc, 0xa6, 0x9e, 0x5f, 0xc0, 0xb6, 0x0a, 0xe6, 0x4f, 0x78, 0x20, 0xf2, 0x12,
+	0xfe, 0xed, 0xfd, 0x5a, 0x73, 0xaf, 0xa1, 0xd1, 0x6b, 0x18, 0x1f, 0x49, 0x41, 0x53, 0xe6, 0xd4,
+	0xe6, 0xd1, 0x34, 0x98, 0xa8, 0xe8, 0x55, 0xa2, 0x39, 0xfc, 0x03, 0xec, 0xe8, 0x08, 0xeb, 0x2a,
+	0xb5, 0xcd, 0x4a, 0x05, 0x2c, 0x02, 0xf4, 0xb3, 0x45, 0xc8, 0x83, 0x34, 0x1f, 0xa1, 0x9c, 0x20,
+	0x99, 0x28, 0x6f, 0x91, 0x94, 0xc5, 0x2f, 0xc1, 0xcd, 0x95, 0xb5, 0x6b, 0x91, 0x83, 0x2a, 0x2f,
+	0x51, 0x76, 0x88, 0xe6, 0x90, 0x0b, 0xf6, 0x90, 0xbe, 0x53, 0x89, 0xd9, 0x44, 0x92, 0xf8, 0x0d,
+	0xec, 0x1e, 0x07, 0x8c, 0x47, 0xf1, 0xf2, 0x73, 0x1d, 0xfc, 0x0e, 0xb6, 0x24, 0xba, 0x1d, 0x09,
+	0x80, 0xee, 0x62, 0x2e, 0x90, 0xe8, 0x9e, 0x06, 0xd3, 0x80, 0xa7, 0xe8, 0x2a, 0x06, 0x7f, 0x80,
+	0x6d, 0xed, 0xbd, 0x37, 0xe3, 0xf1, 0x52, 0x56, 0xa1, 0xd4, 0xb5, 0x73, 0x87, 0xa4, 0xac, 0x8c,
+	0x7a, 0x7e, 0x7d, 0xcd, 0x28, 0xd7, 0xae, 0x35, 0x87, 0x7e, 0x81, 0x9a, 0x81, 0xae, 0xf2, 0x7e,
+	0x5f, 0x1b, 0x4c, 0x45, 0x7c, 0x0a, 0xbb, 0x84, 0xce, 0xc3, 0x60, 0xe2, 0x4b, 0xb6, 0x2d, 0x32,
+	0xac, 0x43, 0x75, 0x48, 0xe3, 0x3b, 0xa3, 0xb2, 0x8c, 0x47, 0xdf, 0x03, 0x74, 0x17, 0xb1, 0x3f,
+	0x0e, 0x69, 0x0e, 0x8f, 0x21, 0xc1, 0x7f, 0x59, 0xe0, 0x1a, 0xee, 0x54, 0x1f, 0xa5, 0xc3, 0xa3,
+	0x20, 0x66, 0x5c, 0x9a, 0x58, 0xca, 0x24, 0xe3, 0x3f, 0x1a, 0x9f, 0xd2, 0x17, 0x8f, 0x8f, 0x80,
+	0xf9, 0x94, 0xfa, 0x57, 0x34, 0x96, 0x6e, 0x6d, 0xe5, 0x36, 0x17, 0xe0, 0x7f, 0x2c, 0xdd, 0xaf,
+	0x9b, 0xd8, 0x9f, 0x0e, 0xb9, 0xcf, 0x99, 0x9c, 0xf5, 0xbe, 0x3f, 0xa5, 0xba, 0x26, 0x45, 0x4b,
+	0xd9, 0xc5, 0x2c, 0xe0, 0xe9, 0xfc, 0x4b, 0x5a, 0x76, 0xe8, 0x55, 0xb4, 0x98, 0x71, 0xed, 0x34,
+	0x61, 0xa4, 0xe6, 0x99, 0x78, 0x7e, 0x5e, 0x59, 0x08, 0x2d, 0xa2, 0x68, 0x39, 0x25, 0x83, 0x9f,
+	0x0f, 0x3c, 0x27, 0x99, 0x12, 0x41, 0x2a, 0x49, 0xab, 0xe5, 0x6d, 0x6a, 0x49, 0xab, 0x25, 0xed,
+	0xc4, 0x4f, 0xcb, 0xab, 0x28, 0x91, 0xa2, 0xa5, 0xd6, 0x99, 0xff, 0xc1, 0xab, 0x26, 0x5a, 0x82,
+	0xc4, 0x87, 0x50, 0x51, 0x61, 0x68, 0xbc, 0x36, 0xcd, 0xc2, 0x52, 0xb0, 0xd3, 0x27, 0x79, 0x07,
+	0x3b, 0xaa, 0xb2, 0x6c, 0x9a, 0x9f, 0x03, 0x64, 0x35, 0xa7, 0x2f, 0xf1, 0x71, 0x06, 0x65, 0x11,
+	0x0e, 0x62, 0xa8, 0xa2, 0x9f, 0xa0, 0xaa, 0xc3, 0xa7, 0x1d, 0x70, 0x33, 0x33, 0xfd, 0x81, 0x64,
+	0x1a, 0xf8, 0x3f, 0xab, 0x30, 0x6b, 0xa8, 0x21, 0x96, 0xc8, 0x72, 0x9e, 0x64, 0xbc, 0xdb, 0xac,
+	0xaf, 0xeb, 0x5d, 0x43, 0x2a, 0x30, 0xa2, 0xf4, 0x8c, 0x87, 0x53, 0x2a, 0x3c, 0x9c, 0x7c, 0x49,
+	0xd9, 0x6b, 0x97, 0x54, 0x79, 0xdd, 0x92, 0x72, 0xcc, 0x25, 0x75, 0x0e, 0x8e, 0x0a, 0x84, 0x6a,
+	0x62, 0x0b, 0xf4, 0x7f, 0xef, 0x9f, 0x5f, 0xf6, 0xdd, 0x0d, 0x54, 0x01, 0xfb, 0x75, 0x6f, 0xe4,
+	0x5a, 0x92, 0x18, 0x5c, 0x8c, 0xdc, 0x92, 0xfc, 0xdc, 0xed, 0x0d, 0xce, 0x87, 0x27, 0x23, 0xd7,
+	0x46, 0xdb, 0x50, 0xbd, 0x3c, 0x19, 0x1d, 0x77, 0x49, 0xfb, 0xd2, 0x2d, 0x4b, 0x6e, 0x44, 0xda,
+	0xfd, 0xe1, 0x51, 0x8f, 0xb8, 0x0e, 0xfe, 0xdb, 0x02, 0x27, 0x79, 0xb7, 0xf7, 0xbf, 0x48, 0x31,
+	0xde, 0x83, 0x98, 0xde, 0x1d, 0xfb, 0xec, 0x56, 0x17, 0x94, 0xf1, 0x1f, 0x8d, 0xb7, 0xfd, 0xc5,
+	0xe3, 0x2d, 0x0a, 0xec, 0x47, 0xb3, 0x09, 0xd5, 0x55, 0x27, 0x4c, 0xf3, 0x5f, 0x47, 0x2c, 0x47,
+	0x69, 0xdb, 0xf5, 0xb9, 0x3f, 0xf6, 0x45, 0xcf, 0x9b, 0xa2, 0x38, 0xf1, 0xfc, 0xbf, 0xc9, 0x5c,
+	0xe6, 0xb7, 0xaa, 0xbe, 0x57, 0x14, 0x26, 0x53, 0x82, 0x37, 0xd0, 0xa1, 0xc0, 0x61, 0xc1, 0x51,
+	0xde, 0xe3, 0xd4, 0xc0, 0xcb, 0x24, 0x2b, 0xd7, 0x46, 0x18, 0xbd, 0x10, 0x30, 0x05, 0xfc, 0xf6,
+	0x2a, 0xf6, 0xdf, 0x7f, 0xa5, 0xa5, 0xb8, 0x7a, 0x5d, 0x3a, 0x8f, 0x58, 0xf0, 0xb5, 0x21, 0x7f,
+	0x13, 0xbd, 0xd0, 0x87, 0x0c, 0x79, 0x45, 0xcc, 0xf2, 0xdb, 0xf6, 0x49, 0x0f, 0x4d, 0xb1, 0x24,
+	0xa2, 0x9b, 0x53, 0x3a, 0xbb, 0xe1, 0xb7, 0x68, 0x27, 0x53, 0x94, 0x97, 0xec, 0x5e, 0x74, 0x7e,
+	0x05, 0x50, 0x7b, 0xab, 0x3d, 0x9f, 0x87, 0x4b, 0xf4, 0x30, 0xf7, 0x6e, 0x9c, 0xbd, 0xfa, 0xa3,
+	0x55, 0x71, 0x66, 0xfe, 0x0a, 0x6a, 0xca, 0x72, 0xc8, 0x63, 0xea, 0x4f, 0xd1, 0xda, 0x5e, 0x7f,
+	0x2a, 0xe7, 0x7d, 0xeb, 0xc0, 0x42, 0x6d, 0xa8, 0xa6, 0xb7, 0xca, 0xa8, 0x7c, 0xe5, 0xd6, 0xd5,
+	0xbf, 0x5d, 0xf3, 0xc5, 0x28, 0xa3, 0xa2, 0x4f, 0x0a, 0x5a, 0xd9, 0x01, 0xd9, 0x09, 0xab, 0x3f,
+	0x5c, 0xfd, 0xa0, 0xae, 0x0f, 0xde, 0x10, 0x19, 0xf4, 0x60, 0x2b, 0x5d, 0xe4, 0xd4, 0x70, 0x50,
+	0xbc, 0x15, 0x46, 0x06, 0xab, 0x5b, 0x5f, 0x17, 0x72, 0x00, 0x4e, 0xb2, 0x7d, 0x57, 0xc0, 0xcf,
+	0xf1, 0x2b, 0xac, 0x30, 0xbc, 0xd1, 0x79, 0x06, 0x8f, 0x83, 0x20, 0x60, 0x0d, 0xb6, 0x64, 0x9c,
+	0x4e, 0x59, 0x23, 0x62, 0xa9, 0x6a, 0xa7, 0xd2, 0xed, 0x0c, 0xe4, 0x7f, 0xb3, 0x81, 0x35, 0xde,
+	0x54, 0x7f, 0xd2, 0x0e, 0xff, 0x07, 0xef, 0x7d, 0x2b, 0x62, 0xb0, 0x09, 0x00, 0x00,
 }
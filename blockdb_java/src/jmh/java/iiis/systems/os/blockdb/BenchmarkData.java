@@ -0,0 +1,83 @@
+package iiis.systems.os.blockdb;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Temporary data directories and synthetic histories shared by the benchmarks.
+final class BenchmarkData {
+    static final int N = 50;
+
+    private BenchmarkData() {
+    }
+
+    static String tempDir() throws IOException {
+        return Files.createTempDirectory("blockdb-bench").toString() + File.separator;
+    }
+
+    // a new temporary directory holding copies of the files in dir
+    static String copy(String dir) throws IOException {
+        String copy = tempDir();
+        File[] files = new File(dir).listFiles();
+        if (files != null) {
+            for (File file : files)
+                Files.copy(file.toPath(), new File(copy + file.getName()).toPath());
+        }
+        return copy;
+    }
+
+    static void delete(String dir) {
+        File[] files = new File(dir).listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        new File(dir).delete();
+    }
+
+    static JSONObject config(String fsyncPolicy, String blockFormat) {
+        return new JSONObject().put("fsyncPolicy", fsyncPolicy).put("blockFormat", blockFormat)
+                .put("snapshotInterval", 0);
+    }
+
+    static String[] userIds(int accounts) {
+        String[] ids = new String[accounts];
+        for (int i = 0; i < accounts; i ++)
+            ids[i] = String.format("u%07d", i);
+        return ids;
+    }
+
+    // a block of N deposits and transfers between the given accounts that always applies cleanly
+    static List<Transaction> randomTransactions(String[] ids, Random random) {
+        List<Transaction> transactions = new ArrayList<>(N);
+        for (int i = 0; i < N; i ++) {
+            if (i % 2 == 0) {
+                transactions.add(Transaction.newBuilder().setType(Transaction.Types.DEPOSIT)
+                        .setUserID(ids[random.nextInt(ids.length)]).setValue(10).build());
+            } else {
+                transactions.add(Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                        .setFromID(ids[random.nextInt(ids.length)]).setToID(ids[random.nextInt(ids.length)])
+                        .setValue(0).build());
+            }
+        }
+        return transactions;
+    }
+
+    // write a data directory holding the given number of sealed blocks and an empty log
+    static void writeHistory(String dir, int blocks, int accounts, String blockFormat) throws IOException {
+        BlockFlusher flusher = new BlockFlusher(BlockStore.forFormat(dir, blockFormat), null, null, new Metrics());
+        Random random = new Random(42);
+        String[] ids = userIds(accounts);
+        for (int blockId = 1; blockId <= blocks; blockId ++) {
+            if (!flusher.writeBlock(blockId, randomTransactions(ids, random)))
+                throw new IOException("Cannot write block " + blockId);
+        }
+        if (!TextLogStore.rewrite(dir, blocks + 1, new ArrayList<Transaction>()))
+            throw new IOException("Cannot write log.txt");
+    }
+}
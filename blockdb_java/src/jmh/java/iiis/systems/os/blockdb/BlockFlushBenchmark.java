@@ -0,0 +1,56 @@
+package iiis.systems.os.blockdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Sealing one block of N transactions: building, encoding and fsyncing the block file.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockFlushBenchmark {
+    @Param({"json", "binary"})
+    public String blockFormat;
+
+    private String dir;
+    private BlockFlusher flusher;
+    private List<Transaction> transactions;
+    private int blockId = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchmarkData.tempDir();
+        flusher = new BlockFlusher(BlockStore.forFormat(dir, blockFormat), null, null, new Metrics());
+        transactions = BenchmarkData.randomTransactions(BenchmarkData.userIds(1000), new Random(42));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(dir);
+    }
+
+    @Benchmark
+    public boolean writeBlock() {
+        // cycle through a few file names so the directory does not grow without bound
+        blockId = blockId % 64 + 1;
+        return flusher.writeBlock(blockId, transactions);
+    }
+}
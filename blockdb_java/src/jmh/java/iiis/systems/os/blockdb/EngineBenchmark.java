@@ -0,0 +1,131 @@
+package iiis.systems.os.blockdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// DatabaseEngine operations, each run by one thread over many accounts and by 8 threads
+// (the *Contended variants) over a handful of hot accounts, with lock stripes (shards = 0) or
+// single-writer partitions. Partitions only split the balances and their writers: every shard
+// still appends to the one group-commit log, so with fsyncPolicy = always the shards = 4 runs
+// are bounded by the same log writer and fsync as shards = 0 and measure the apply path, not a
+// per-shard log.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+    @State(Scope.Benchmark)
+    public static class Engine {
+        @Param({"always", "interval"})
+        public String fsyncPolicy;
+
+        @Param({"0", "4"})
+        public int shards;
+
+        @Param({"text", "segments"})
+        public String logFormat;
+
+        DatabaseEngine engine;
+        String dir;
+        String[] accounts;
+        String[] hotAccounts;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = BenchmarkData.tempDir();
+            engine = new DatabaseEngine(dir, BenchmarkData.N, BenchmarkData.config(fsyncPolicy, "binary").put("shards", shards)
+                    .put("logFormat", logFormat));
+            accounts = BenchmarkData.userIds(100000);
+            hotAccounts = BenchmarkData.userIds(8);
+            for (String id : accounts)
+                engine.put(id, 1000000);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.close();
+            BenchmarkData.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final Random random = new Random();
+
+        String pick(String[] ids) {
+            return ids[random.nextInt(ids.length)];
+        }
+    }
+
+    @Benchmark
+    public int get(Engine e, Client c) {
+        return e.engine.get(c.pick(e.accounts));
+    }
+
+    @Benchmark
+    public boolean put(Engine e, Client c) {
+        return e.engine.put(c.pick(e.accounts), 1000000);
+    }
+
+    @Benchmark
+    public boolean deposit(Engine e, Client c) {
+        return e.engine.deposit(c.pick(e.accounts), 1);
+    }
+
+    @Benchmark
+    public boolean withdraw(Engine e, Client c) {
+        return e.engine.withdraw(c.pick(e.accounts), 1);
+    }
+
+    @Benchmark
+    public boolean transfer(Engine e, Client c) {
+        return e.engine.transfer(c.pick(e.accounts), c.pick(e.accounts), 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int getContended(Engine e, Client c) {
+        return e.engine.get(c.pick(e.hotAccounts));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean putContended(Engine e, Client c) {
+        return e.engine.put(c.pick(e.hotAccounts), 1000000);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean depositContended(Engine e, Client c) {
+        return e.engine.deposit(c.pick(e.hotAccounts), 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean withdrawContended(Engine e, Client c) {
+        return e.engine.withdraw(c.pick(e.hotAccounts), 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean transferContended(Engine e, Client c) {
+        return e.engine.transfer(c.pick(e.hotAccounts), c.pick(e.hotAccounts), 1);
+    }
+}
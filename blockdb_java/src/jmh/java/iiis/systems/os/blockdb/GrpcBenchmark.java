@@ -0,0 +1,105 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The BlockDatabase service end to end, minus the network: BlockDatabaseImpl behind an
+// in-process gRPC server, called through a blocking stub.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrpcBenchmark {
+    @State(Scope.Benchmark)
+    public static class Service {
+        String dir;
+        Server server;
+        ExecutorService repliers;
+        ManagedChannel channel;
+        String[] accounts;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            dir = BenchmarkData.tempDir();
+            DatabaseEngine.setup(dir, BenchmarkData.N, BenchmarkData.config("always", "binary"));
+            repliers = ApplyStream.replierPool(8);
+            server = InProcessServerBuilder.forName("blockdb-bench")
+                    .addService(new BlockDatabaseServer.BlockDatabaseImpl(repliers))
+                    .build()
+                    .start();
+            channel = InProcessChannelBuilder.forName("blockdb-bench").build();
+            accounts = BenchmarkData.userIds(10000);
+            BlockDatabaseGrpc.BlockDatabaseBlockingStub stub = BlockDatabaseGrpc.newBlockingStub(channel);
+            for (String id : accounts)
+                stub.put(Request.newBuilder().setUserID(id).setValue(1000000).build());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            channel.shutdownNow();
+            server.shutdownNow();
+            repliers.shutdownNow();
+            DatabaseEngine.getInstance().close();
+            BenchmarkData.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        BlockDatabaseGrpc.BlockDatabaseBlockingStub stub;
+        final Random random = new Random();
+
+        @Setup(Level.Trial)
+        public void setup(Service service) {
+            stub = BlockDatabaseGrpc.newBlockingStub(service.channel);
+        }
+
+        String pick(String[] ids) {
+            return ids[random.nextInt(ids.length)];
+        }
+    }
+
+    @Benchmark
+    public int get(Service s, Client c) {
+        return c.stub.get(GetRequest.newBuilder().setUserID(c.pick(s.accounts)).build()).getValue();
+    }
+
+    @Benchmark
+    public boolean transfer(Service s, Client c) {
+        return c.stub.transfer(TransferRequest.newBuilder().setFromID(c.pick(s.accounts))
+                .setToID(c.pick(s.accounts)).setValue(1).build()).getSuccess();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int getConcurrent(Service s, Client c) {
+        return get(s, c);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean transferConcurrent(Service s, Client c) {
+        return transfer(s, c);
+    }
+}
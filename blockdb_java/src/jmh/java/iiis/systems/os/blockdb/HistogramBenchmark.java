@@ -0,0 +1,74 @@
+package iiis.systems.os.blockdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Recording into one Histogram from one thread and from 8 (the *Contended variants), compared
+// with the shared count/sum/max counters it used to update on every record.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+    private final Histogram histogram = new Histogram("latency", "us");
+    private final AtomicLongArray counts = new AtomicLongArray(4096);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Values {
+        private long next = 0;
+
+        // latencies between 100 and about 1100 us
+        long next() {
+            next = next * 6364136223846793005L + 1442695040888963407L;
+            return 100 + (next >>> 54);
+        }
+    }
+
+    private void recordShared(long value) {
+        counts.incrementAndGet((int) (value & 4095));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    @Benchmark
+    public void record(Values values) {
+        histogram.record(values.next());
+    }
+
+    @Benchmark
+    public void recordShared(Values values) {
+        recordShared(values.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void recordContended(Values values) {
+        histogram.record(values.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void recordSharedContended(Values values) {
+        recordShared(values.next());
+    }
+}
@@ -0,0 +1,79 @@
+package iiis.systems.os.blockdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// ID validation and log record encoding/decoding on the write and recovery paths, compared with
+// the regex / string concatenation / String.split code they replaced. Run with -prof gc (the
+// default jmh.args) to see gc.alloc.rate.norm, the bytes allocated per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogRecordBenchmark {
+    private String userId;
+    private Transaction transfer;
+    private ByteBuffer buffer;
+    private String line;
+    private byte[] lineBytes;
+
+    @Setup
+    public void setup() {
+        userId = "user0042";
+        transfer = Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                .setFromID("user0042").setToID("user0777").setValue(12345).build();
+        buffer = ByteBuffer.allocateDirect(LogRecordCodec.MAX_RECORD_LENGTH);
+        line = "TRANSFER user0042 user0777 12345 .";
+        lineBytes = line.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public boolean validateRegex() {
+        return userId.length() == 8 && userId.matches("[a-zA-Z0-9]*");
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return UserIds.isValid(userId);
+    }
+
+    @Benchmark
+    public String encodeConcat() {
+        return "TRANSFER " + transfer.getFromID() + " " + transfer.getToID() + " " + transfer.getValue() + " .\n";
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        buffer.clear();
+        LogRecordCodec.encode(transfer, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Transaction.Builder decodeSplit() {
+        String[] splitLine = line.split(" ");
+        return Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                .setFromID(splitLine[1]).setToID(splitLine[2]).setValue(Integer.parseInt(splitLine[3]));
+    }
+
+    @Benchmark
+    public Transaction.Builder decode() {
+        Transaction.Builder transaction = Transaction.newBuilder();
+        LogRecordCodec.decode(lineBytes, 0, lineBytes.length, transaction);
+        return transaction;
+    }
+}
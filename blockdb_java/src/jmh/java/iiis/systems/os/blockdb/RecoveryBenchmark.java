@@ -0,0 +1,67 @@
+package iiis.systems.os.blockdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Restart time: DatabaseEngine.initialize() replaying a history of the given number of blocks.
+// Every iteration starts from a fresh copy of the history, since a restart leaves files behind
+// (history index, snapshots) that would let later iterations take a shorter path.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int blocks;
+
+    @Param({"json", "binary"})
+    public String blockFormat;
+
+    private String history;
+    private String dir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        history = BenchmarkData.tempDir();
+        BenchmarkData.writeHistory(history, blocks, 10000, blockFormat);
+    }
+
+    @Setup(Level.Iteration)
+    public void copyHistory() throws IOException {
+        dir = BenchmarkData.copy(history);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCopy() {
+        BenchmarkData.delete(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkData.delete(history);
+    }
+
+    @Benchmark
+    public int initialize() {
+        DatabaseEngine engine = new DatabaseEngine(dir, BenchmarkData.N, BenchmarkData.config("always", blockFormat));
+        int logLength = engine.getLogLength();
+        engine.close();
+        return logLength;
+    }
+}
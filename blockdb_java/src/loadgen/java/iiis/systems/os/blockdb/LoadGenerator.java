@@ -0,0 +1,373 @@
+package iiis.systems.os.blockdb;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.NettyChannelBuilder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a running server with a seeded mix of gets, puts, deposits, withdrawals and transfers
+// on Zipfian-skewed accounts, reports latency per operation and checks the final balances
+// against what was sent (see ModelChecker). Arguments are key=value options, e.g.
+//
+//     target=127.0.0.1:50051 mode=open rate=20000 durationSec=30 mix=get=50,transfer=50 zipf=0.9
+//
+// "closed" mode runs "concurrency" workers that each send one request at a time; with a "rate",
+// each worker has a schedule of when it means to send, and latency is measured from that time,
+// so a stall on the server counts against every request it held up rather than only the one
+// that saw it. "open" mode sends on one schedule at "rate" per second whatever the server does,
+// with at most "concurrency" requests outstanding. Either way latency is measured from the
+// intended send time, and service time from the actual one.
+public class LoadGenerator {
+    private final Workload workload;
+    private final ModelChecker model = new ModelChecker();
+    private final Metrics metrics = new Metrics();
+    private final ManagedChannel[] channels;
+    private final long seed;
+    private final int concurrency;
+    private final double rate;
+    private final boolean poisson;
+    private final long timeoutMs;
+    private final int initialBalance;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+    private long startTime;
+    private long measureFrom;
+    private long endTime;
+
+    LoadGenerator(JSONObject options, String host, int port) {
+        this.workload = new Workload(options.optInt("accounts", 10000), options.optDouble("zipf", 0.99),
+                options.optString("mix", "get=50,deposit=15,withdraw=15,transfer=15,put=5"),
+                options.optInt("maxValue", 100));
+        this.seed = options.optLong("seed", 1);
+        this.concurrency = Math.max(1, options.optInt("concurrency", 16));
+        this.rate = options.optDouble("rate", 0);
+        this.timeoutMs = options.optLong("timeoutMs", 10000);
+        this.initialBalance = options.optInt("initialBalance", 1000);
+        String arrival = options.optString("arrival", "fixed");
+        if (!arrival.equals("fixed") && !arrival.equals("poisson"))
+            throw new IllegalArgumentException("Unknown arrival " + arrival + "; expected fixed or poisson.");
+        this.poisson = arrival.equals("poisson");
+        this.channels = new ManagedChannel[Math.max(1, options.optInt("channels", 1))];
+        for (int i = 0; i < channels.length; i ++)
+            channels[i] = NettyChannelBuilder.forAddress(host, port).usePlaintext(true).build();
+    }
+
+    // put initialBalance into every account
+    void preload() {
+        BlockDatabaseGrpc.BlockDatabaseBlockingStub stub = BlockDatabaseGrpc.newBlockingStub(channels[0]);
+        for (int from = 0; from < workload.getAccounts(); from += 1000) {
+            BatchRequest.Builder batch = BatchRequest.newBuilder();
+            for (int account = from; account < Math.min(from + 1000, workload.getAccounts()); account ++) {
+                batch.addTransactions(Transaction.newBuilder().setType(Transaction.Types.PUT)
+                        .setUserID(Workload.userId(account)).setValue(initialBalance));
+            }
+            BatchResponse response = stub.batchApply(batch.build());
+            for (boolean success : response.getSuccessList()) {
+                if (!success)
+                    throw new IllegalStateException("Preloading account balances failed.");
+            }
+        }
+    }
+
+    // the current balance of every account, read in batches
+    int[] readBalances() {
+        BlockDatabaseGrpc.BlockDatabaseBlockingStub stub = BlockDatabaseGrpc.newBlockingStub(channels[0]);
+        int[] balances = new int[workload.getAccounts()];
+        for (int from = 0; from < balances.length; from += 1000) {
+            GetMultiRequest.Builder request = GetMultiRequest.newBuilder();
+            int to = Math.min(from + 1000, balances.length);
+            for (int account = from; account < to; account ++)
+                request.addUserIDs(Workload.userId(account));
+            GetMultiResponse response = stub.getMulti(request.build());
+            for (int account = from; account < to; account ++)
+                balances[account] = response.getValues(account - from);
+        }
+        return balances;
+    }
+
+    void run(String mode, long warmupNanos, long durationNanos) throws InterruptedException {
+        startTime = System.nanoTime();
+        measureFrom = startTime + warmupNanos;
+        endTime = measureFrom + durationNanos;
+        if (mode.equals("closed"))
+            runClosed();
+        else if (mode.equals("open"))
+            runOpen();
+        else
+            throw new IllegalArgumentException("Unknown mode " + mode + "; expected closed or open.");
+    }
+
+    private void runClosed() throws InterruptedException {
+        Thread[] workers = new Thread[concurrency];
+        for (int i = 0; i < workers.length; i ++) {
+            final int worker = i;
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed * 1000003 + worker);
+                    BlockDatabaseGrpc.BlockDatabaseBlockingStub stub =
+                            BlockDatabaseGrpc.newBlockingStub(channels[worker % channels.length]);
+                    // each worker takes every concurrency-th slot of the overall schedule
+                    long intended = startTime + (rate > 0 ? (long) (worker * 1e9 / rate) : 0);
+                    while (true) {
+                        if (rate > 0) {
+                            sleepUntil(intended);
+                        } else {
+                            intended = System.nanoTime();
+                        }
+                        if (intended >= endTime)
+                            break;
+                        Workload.Op op = workload.next(random);
+                        long start = System.nanoTime();
+                        byte outcome;
+                        Status error = null;
+                        try {
+                            outcome = call(stub.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS), op);
+                        } catch (StatusRuntimeException e) {
+                            error = e.getStatus();
+                            outcome = outcomeOf(error);
+                        }
+                        complete(op, intended, start, System.nanoTime(), outcome, error);
+                        if (rate > 0)
+                            intended += nextInterval(random, rate / concurrency);
+                    }
+                }
+            };
+            workers[i].setName("loadgen-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+    }
+
+    private void runOpen() throws InterruptedException {
+        if (rate <= 0)
+            throw new IllegalArgumentException("Open mode needs a rate.");
+        final Semaphore outstanding = new Semaphore(concurrency);
+        AtomicLong stalled = metrics.counter("open.stalled");
+        Random random = new Random(seed);
+        long intended = startTime;
+        for (long sent = 0; intended < endTime; sent ++) {
+            sleepUntil(intended);
+            final Workload.Op op = workload.next(random);
+            // the server is this far behind; the wait still counts in the request's latency
+            if (!outstanding.tryAcquire()) {
+                stalled.incrementAndGet();
+                outstanding.acquire();
+            }
+            final long scheduled = intended;
+            final long start = System.nanoTime();
+            BlockDatabaseGrpc.BlockDatabaseFutureStub stub = BlockDatabaseGrpc
+                    .newFutureStub(channels[(int) (sent % channels.length)])
+                    .withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS);
+            Futures.addCallback(send(stub, op), new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object response) {
+                    long end = System.nanoTime();
+                    complete(op, scheduled, start, end, outcomeOf(response), null);
+                    outstanding.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    long end = System.nanoTime();
+                    Status status = Status.fromThrowable(t);
+                    complete(op, scheduled, start, end, outcomeOf(status), status);
+                    outstanding.release();
+                }
+            }, MoreExecutors.directExecutor());
+            intended = poisson ? intended + nextInterval(random, rate) : startTime + (long) ((sent + 1) * 1e9 / rate);
+        }
+        if (!outstanding.tryAcquire(concurrency, 2 * timeoutMs, TimeUnit.MILLISECONDS))
+            System.out.println("Requests still outstanding after the run.");
+    }
+
+    private long nextInterval(Random random, double perSecond) {
+        if (poisson)
+            return (long) (-Math.log(1 - random.nextDouble()) * 1e9 / perSecond);
+        return (long) (1e9 / perSecond);
+    }
+
+    private static void sleepUntil(long nanos) {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0)
+            LockSupport.parkNanos(wait);
+    }
+
+    private static byte call(BlockDatabaseGrpc.BlockDatabaseBlockingStub stub, Workload.Op op) {
+        switch (op.type) {
+            case GET:
+                stub.get(GetRequest.newBuilder().setUserID(Workload.userId(op.account)).build());
+                return ModelChecker.APPLIED;
+            case PUT:
+                return outcomeOf(stub.put(request(op)));
+            case DEPOSIT:
+                return outcomeOf(stub.deposit(request(op)));
+            case WITHDRAW:
+                return outcomeOf(stub.withdraw(request(op)));
+            default:
+                return outcomeOf(stub.transfer(transferRequest(op)));
+        }
+    }
+
+    private static ListenableFuture<?> send(BlockDatabaseGrpc.BlockDatabaseFutureStub stub, Workload.Op op) {
+        switch (op.type) {
+            case GET:
+                return stub.get(GetRequest.newBuilder().setUserID(Workload.userId(op.account)).build());
+            case PUT:
+                return stub.put(request(op));
+            case DEPOSIT:
+                return stub.deposit(request(op));
+            case WITHDRAW:
+                return stub.withdraw(request(op));
+            default:
+                return stub.transfer(transferRequest(op));
+        }
+    }
+
+    private static Request request(Workload.Op op) {
+        return Request.newBuilder().setUserID(Workload.userId(op.account)).setValue(op.value).build();
+    }
+
+    private static TransferRequest transferRequest(Workload.Op op) {
+        return TransferRequest.newBuilder().setFromID(Workload.userId(op.account))
+                .setToID(Workload.userId(op.to)).setValue(op.value).build();
+    }
+
+    private static byte outcomeOf(Object response) {
+        if (response instanceof BooleanResponse && !((BooleanResponse) response).getSuccess())
+            return ModelChecker.NOT_APPLIED;
+        return ModelChecker.APPLIED;
+    }
+
+    // a write turned away by admission control was not applied; after any other error it may
+    // have been
+    private static byte outcomeOf(Status status) {
+        if (status.getCode() == Status.Code.RESOURCE_EXHAUSTED)
+            return ModelChecker.NOT_APPLIED;
+        return ModelChecker.UNKNOWN;
+    }
+
+    private void complete(Workload.Op op, long intended, long start, long end, byte outcome, Status error) {
+        model.record(op, start, end, outcome);
+        if (outcome == ModelChecker.UNKNOWN)
+            unknown.incrementAndGet();
+        if (intended < measureFrom)
+            return;
+        String name = op.type.name().toLowerCase();
+        if (error != null) {
+            metrics.counter(name + (error.getCode() == Status.Code.RESOURCE_EXHAUSTED ? ".rejected" : ".errors"))
+                    .incrementAndGet();
+            return;
+        }
+        completed.incrementAndGet();
+        metrics.histogram("latency." + name, "us").record((end - intended) / 1000);
+        metrics.histogram("service." + name, "us").record((end - start) / 1000);
+        if (outcome == ModelChecker.NOT_APPLIED)
+            metrics.counter(name + ".unsuccessful").incrementAndGet();
+    }
+
+    void close() {
+        for (ManagedChannel channel : channels)
+            channel.shutdownNow();
+    }
+
+    public static void main(String[] args) throws IOException, JSONException, InterruptedException {
+        JSONObject options = new JSONObject();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new IllegalArgumentException("Bad argument " + arg + "; expected <option>=<value>.");
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        // target=host:port, or a server of a config file (the leader by default)
+        String host;
+        int port;
+        if (options.has("target")) {
+            String target = options.getString("target");
+            host = target.substring(0, target.lastIndexOf(':'));
+            port = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+        } else {
+            JSONObject servers = Util.readJsonFile(options.optString("config", "config.json"));
+            String leaderId = servers.has("leader") ? String.valueOf(servers.get("leader")) : "1";
+            JSONObject server = (JSONObject) servers.get(options.optString("server", leaderId));
+            host = server.getString("ip");
+            port = Integer.parseInt(server.getString("port"));
+        }
+
+        String mode = options.optString("mode", "closed");
+        double durationSec = options.optDouble("durationSec", 10);
+        LoadGenerator generator = new LoadGenerator(options, host, port);
+        generator.preload();
+        generator.run(mode, (long) (options.optDouble("warmupSec", 2) * 1e9), (long) (durationSec * 1e9));
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%s loop, %d %s, %s: %d requests in %.1f s, %.0f per second", mode,
+                generator.concurrency, mode.equals("closed") ? "workers" : "outstanding at most",
+                generator.rate > 0 ? "rate " + (long) generator.rate + " per second" : "unthrottled",
+                generator.completed.get(), durationSec, generator.completed.get() / durationSec));
+        StatsResponse stats = generator.metrics.toStats();
+        lines.addAll(Metrics.format(stats));
+
+        ModelChecker.Result result = null;
+        if (options.optBoolean("check", true)) {
+            // a write that timed out may still be applied; give it the time it had
+            if (generator.unknown.get() > 0)
+                Thread.sleep(generator.timeoutMs);
+            result = generator.model.check(generator.readBalances(), generator.initialBalance);
+            lines.add(String.format("model check: %d accounts exact, %d within a range, %d skipped, %d mismatches",
+                    result.exact, result.ranged, result.skipped, result.mismatches));
+        }
+        generator.close();
+        for (String line : lines)
+            System.out.println(line);
+
+        if (options.has("report"))
+            writeReport(options, generator.completed.get() / durationSec, stats, result);
+        System.exit(result != null && result.mismatches > 0 ? 1 : 0);
+    }
+
+    // the options and results as JSON
+    private static void writeReport(JSONObject options, double throughput, StatsResponse stats,
+                                    ModelChecker.Result result) throws IOException, JSONException {
+        JSONObject report = new JSONObject();
+        report.put("options", options);
+        report.put("throughput", throughput);
+        JSONArray histograms = new JSONArray();
+        for (HistogramStats h : stats.getHistogramsList()) {
+            histograms.put(new JSONObject().put("name", h.getName()).put("unit", h.getUnit())
+                    .put("count", h.getCount()).put("mean", h.getMean()).put("p50", h.getP50())
+                    .put("p99", h.getP99()).put("p999", h.getP999()).put("max", h.getMax()));
+        }
+        report.put("histograms", histograms);
+        JSONObject counters = new JSONObject();
+        for (Counter c : stats.getCountersList())
+            counters.put(c.getName(), c.getValue());
+        report.put("counters", counters);
+        if (result != null) {
+            report.put("check", new JSONObject().put("exact", result.exact).put("ranged", result.ranged)
+                    .put("skipped", result.skipped).put("mismatches", result.mismatches));
+        }
+        Files.write(Paths.get(options.getString("report")), report.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,166 @@
+package iiis.systems.os.blockdb;
+
+import java.util.Arrays;
+
+// Checks the balances a load run leaves behind against the writes it issued. Clients run
+// concurrently, so the order the server applied two writes in is only known if one was answered
+// before the other was sent. Every write is logged with when it was sent, when its answer came
+// and whether it was applied, not applied, or (after an error or timeout) may have been.
+//
+// An account's last put is the one sent last, provided every other put on the account was
+// answered before it was sent; otherwise the account is skipped. Its balance must then be that
+// put's value (the starting balance if there was none) plus the change of every write applied
+// after it, plus any subset of the changes of the writes that overlap it or may have been
+// applied. That is a range, exact when there are no such writes.
+class ModelChecker {
+    static final byte APPLIED = 0;
+    static final byte NOT_APPLIED = 1;
+    static final byte UNKNOWN = 2;
+
+    static final class Result {
+        int exact;
+        int ranged;
+        int skipped;
+        int mismatches;
+    }
+
+    private long[] starts = new long[1024];
+    private long[] ends = new long[1024];
+    private byte[] types = new byte[1024];
+    private byte[] outcomes = new byte[1024];
+    private int[] accounts = new int[1024];
+    private int[] tos = new int[1024];
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    // log a write; start and end are System.nanoTime() before sending it and after its answer
+    synchronized void record(Workload.Op op, long start, long end, byte outcome) {
+        if (op.type == Workload.Type.GET || outcome == NOT_APPLIED)
+            return;
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            types = Arrays.copyOf(types, capacity);
+            outcomes = Arrays.copyOf(outcomes, capacity);
+            accounts = Arrays.copyOf(accounts, capacity);
+            tos = Arrays.copyOf(tos, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        starts[size] = start;
+        // a write that timed out may still be applied after the client gave up on it
+        ends[size] = outcome == UNKNOWN ? Long.MAX_VALUE : end;
+        types[size] = (byte) op.type.ordinal();
+        outcomes[size] = outcome;
+        accounts[size] = op.account;
+        tos[size] = op.to;
+        values[size] = op.value;
+        size ++;
+    }
+
+    // compare the final balances, every account having started at initialBalance; prints the
+    // first few mismatches
+    synchronized Result check(int[] balances, int initialBalance) {
+        // (account, write, side) of every change, grouped by account; side 1 is a transfer's credit
+        long[] entries = new long[2 * size];
+        int count = 0;
+        for (int i = 0; i < size; i ++) {
+            entries[count ++] = (long) accounts[i] << 32 | (long) i << 1;
+            if (types[i] == Workload.Type.TRANSFER.ordinal())
+                entries[count ++] = (long) tos[i] << 32 | (long) i << 1 | 1;
+        }
+        Arrays.sort(entries, 0, count);
+
+        Result result = new Result();
+        int k = 0;
+        while (k < count) {
+            int account = (int) (entries[k] >>> 32);
+            int end = k;
+            while (end < count && (int) (entries[end] >>> 32) == account)
+                end ++;
+            check(account, entries, k, end, balances[account], initialBalance, result);
+            k = end;
+        }
+        // accounts nobody wrote keep their starting balance
+        for (int account = 0; account < balances.length; account ++) {
+            if (!isTouched(entries, count, account)) {
+                result.exact ++;
+                if (balances[account] != initialBalance)
+                    mismatch(result, account, balances[account], initialBalance, initialBalance);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isTouched(long[] entries, int count, int account) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if ((int) (entries[mid] >>> 32) < account)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < count && (int) (entries[lo] >>> 32) == account;
+    }
+
+    private void check(int account, long[] entries, int from, int to, int balance, int initialBalance, Result result) {
+        // the last put, if it is certain
+        int last = -1;
+        for (int e = from; e < to; e ++) {
+            int i = (int) (entries[e] & 0xffffffffL) >>> 1;
+            if (types[i] != Workload.Type.PUT.ordinal())
+                continue;
+            if (outcomes[i] != APPLIED) {
+                result.skipped ++;
+                return;
+            }
+            if (last < 0 || starts[i] > starts[last])
+                last = i;
+        }
+        for (int e = from; e < to && last >= 0; e ++) {
+            int i = (int) (entries[e] & 0xffffffffL) >>> 1;
+            if (i != last && types[i] == Workload.Type.PUT.ordinal() && ends[i] >= starts[last]) {
+                result.skipped ++;
+                return;
+            }
+        }
+
+        long lo = last < 0 ? initialBalance : values[last];
+        long hi = lo;
+        for (int e = from; e < to; e ++) {
+            int i = (int) (entries[e] & 0xffffffffL) >>> 1;
+            if (types[i] == Workload.Type.PUT.ordinal())
+                continue;
+            // applied before the last put
+            if (last >= 0 && ends[i] < starts[last])
+                continue;
+            long change = values[i];
+            if (types[i] == Workload.Type.WITHDRAW.ordinal()
+                    || (types[i] == Workload.Type.TRANSFER.ordinal() && (entries[e] & 1) == 0))
+                change = -change;
+            if (outcomes[i] == APPLIED && (last < 0 || starts[i] > ends[last])) {
+                lo += change;
+                hi += change;
+            } else if (change < 0) {
+                lo += change;
+            } else {
+                hi += change;
+            }
+        }
+        if (lo == hi)
+            result.exact ++;
+        else
+            result.ranged ++;
+        if (balance < lo || balance > hi || balance < 0)
+            mismatch(result, account, balance, lo, hi);
+    }
+
+    private static void mismatch(Result result, int account, int balance, long lo, long hi) {
+        if (result.mismatches ++ < 10) {
+            System.out.println("Account " + Workload.userId(account) + " has balance " + balance + ", expected "
+                    + (lo == hi ? String.valueOf(lo) : "between " + lo + " and " + hi) + ".");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package iiis.systems.os.blockdb;
+
+import java.util.Random;
+
+// What a load run sends: gets, puts, deposits, withdrawals and transfers in a configured mix,
+// on accounts drawn with Zipfian skew and values from 1 to maxValue. The same seed gives the
+// same stream of operations.
+class Workload {
+    enum Type {
+        GET, PUT, DEPOSIT, WITHDRAW, TRANSFER
+    }
+
+    static final class Op {
+        final Type type;
+        final int account;
+        // the receiving account of a transfer
+        final int to;
+        final int value;
+
+        Op(Type type, int account, int to, int value) {
+            this.type = type;
+            this.account = account;
+            this.to = to;
+            this.value = value;
+        }
+    }
+
+    private final int accounts;
+    private final ZipfianGenerator keys;
+    private final int maxValue;
+    // cumulative weight of each type, in Type order
+    private final int[] weights = new int[Type.values().length];
+
+    // mix is a list like "get=50,deposit=20,withdraw=10,transfer=15,put=5" of relative weights
+    Workload(int accounts, double theta, String mix, int maxValue) {
+        if (accounts < 2)
+            throw new IllegalArgumentException("Need at least two accounts.");
+        this.accounts = accounts;
+        this.keys = new ZipfianGenerator(accounts, theta);
+        this.maxValue = Math.max(1, maxValue);
+        int[] weight = new int[weights.length];
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2)
+                throw new IllegalArgumentException("Bad mix entry " + entry + "; expected <op>=<weight>.");
+            weight[parse(parts[0]).ordinal()] += Integer.parseInt(parts[1].trim());
+        }
+        int total = 0;
+        for (int i = 0; i < weights.length; i ++) {
+            total += weight[i];
+            weights[i] = total;
+        }
+        if (total <= 0)
+            throw new IllegalArgumentException("The mix " + mix + " has no operations.");
+    }
+
+    static Type parse(String name) {
+        for (Type type : Type.values()) {
+            if (type.name().equalsIgnoreCase(name.trim()))
+                return type;
+        }
+        throw new IllegalArgumentException("Unknown operation " + name + "; expected get, put, deposit, withdraw or transfer.");
+    }
+
+    // user IDs "L" followed by the account number in base 36, 8 characters in all
+    static String userId(int account) {
+        String digits = Integer.toString(account, 36);
+        StringBuilder id = new StringBuilder(UserIds.LENGTH).append('L');
+        for (int i = digits.length(); i < UserIds.LENGTH - 1; i ++)
+            id.append('0');
+        return id.append(digits).toString();
+    }
+
+    int getAccounts() {
+        return accounts;
+    }
+
+    Op next(Random random) {
+        int pick = random.nextInt(weights[weights.length - 1]);
+        Type type = Type.GET;
+        for (Type t : Type.values()) {
+            if (pick < weights[t.ordinal()]) {
+                type = t;
+                break;
+            }
+        }
+        int account = keys.next(random);
+        int to = -1;
+        if (type == Type.TRANSFER) {
+            to = keys.next(random);
+            if (to == account)
+                to = (account + 1) % accounts;
+        }
+        return new Op(type, account, to, 1 + random.nextInt(maxValue));
+    }
+}
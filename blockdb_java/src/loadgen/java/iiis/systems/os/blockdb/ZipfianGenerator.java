@@ -0,0 +1,70 @@
+package iiis.systems.os.blockdb;
+
+import java.util.Random;
+
+// Draws items 0 .. n-1 with Zipfian skew: the item of rank k (from 0) has probability
+// proportional to 1 / (k + 1)^theta. Uses the rejection-free method of Gray et al., "Quickly
+// Generating Billion-Record Synthetic Databases" (as in YCSB), which costs O(n) once to set up
+// and O(1) per draw. theta 0 draws uniformly.
+//
+// Ranks are scattered over the items by a multiplicative permutation, so the hot items are not
+// neighbours and land on different lock stripes, partitions and pages.
+class ZipfianGenerator {
+    private final int n;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+    private final double halfPowTheta;
+    private final long multiplier;
+
+    ZipfianGenerator(int n, double theta) {
+        if (n < 1)
+            throw new IllegalArgumentException("Need at least one item.");
+        if (theta < 0 || theta >= 1)
+            throw new IllegalArgumentException("Zipfian theta must be in [0, 1), not " + theta + ".");
+        this.n = n;
+        this.theta = theta;
+        this.zetan = zeta(n, theta);
+        this.alpha = 1 / (1 - theta);
+        this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        this.halfPowTheta = 1 + Math.pow(0.5, theta);
+        long m = 0x9e3779b1L % n;
+        while (n > 1 && gcd(Math.max(m, 1), n) != 1)
+            m ++;
+        this.multiplier = Math.max(m, 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i ++)
+            sum += 1 / Math.pow(i, theta);
+        return sum;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // the rank of the next item, 0 being the most popular
+    int nextRank(Random random) {
+        if (theta == 0)
+            return random.nextInt(n);
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1)
+            return 0;
+        if (uz < halfPowTheta)
+            return Math.min(1, n - 1);
+        return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    int next(Random random) {
+        return (int) (nextRank(random) * multiplier % n);
+    }
+}
@@ -0,0 +1,273 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission control for writes. While the log's append latency (the smoothed time callers wait
+// for their records to be durable) is above the threshold, a new write is either rejected at once
+// with RESOURCE_EXHAUSTED ("shed"), or parked until the latency drops and rejected if it is still
+// high after queueMs ("queue"); at most maxQueued writes are parked, later ones are rejected.
+// Reads, Stats and Replicate are always admitted.
+//
+// A parked call holds no thread: its listener buffers the callbacks gRPC delivers, and a single
+// scheduler thread checks the latency every millisecond. An admitted call is started on the
+// server's executor, which then runs its buffered and later callbacks one at a time, in order.
+//
+// Rejected calls count towards admission.rejected; admitted writes that were parked count towards
+// admission.queued, with their wait in the admission.wait histogram.
+class AdmissionInterceptor implements ServerInterceptor {
+    private static final Set<String> WRITES = new HashSet<>(Arrays.asList(
+            "Put", "Deposit", "Withdraw", "Transfer", "BatchApply", "ApplyStream"));
+    private static final long POLL_MS = 1;
+
+    private final DatabaseEngine engine;
+    private final long thresholdMicros;
+    // a latency not updated for this long is stale: the log is idle
+    private final long maxAgeMs;
+    private final boolean queue;
+    private final long queueMs;
+    private final int maxQueued;
+    private final Executor executor;
+    private final ScheduledExecutorService scheduler;
+    // parked calls, oldest first
+    private final ArrayDeque<Parked<?, ?>> parked = new ArrayDeque<>();
+    private final AtomicLong rejectedCount;
+    private final AtomicLong queuedCount;
+    private final Histogram queueWait;
+
+    // executor runs admitted calls; null for a cached pool of its own
+    AdmissionInterceptor(DatabaseEngine engine, long thresholdMs, String mode, long queueMs, int maxQueued,
+                         Executor executor) {
+        if (!mode.equals("shed") && !mode.equals("queue"))
+            throw new IllegalArgumentException("Unknown admission mode " + mode + "; expected shed or queue.");
+        this.engine = engine;
+        this.thresholdMicros = thresholdMs * 1000;
+        this.maxAgeMs = Math.max(100, 2 * thresholdMs);
+        this.queue = mode.equals("queue");
+        this.queueMs = queueMs;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.executor = executor != null || !queue ? executor : Executors.newCachedThreadPool(daemonThreads("admitted"));
+        this.scheduler = queue ? Executors.newSingleThreadScheduledExecutor(daemonThreads("admission")) : null;
+        Metrics metrics = engine.getMetrics();
+        this.rejectedCount = metrics.counter("admission.rejected");
+        this.queuedCount = metrics.counter("admission.queued");
+        this.queueWait = metrics.histogram("admission.wait", "us");
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String method = call.getMethodDescriptor().getFullMethodName();
+        if (!WRITES.contains(method.substring(method.lastIndexOf('/') + 1))
+                || engine.getAppendLatency(maxAgeMs) <= thresholdMicros)
+            return next.startCall(call, headers);
+        if (queue) {
+            synchronized (parked) {
+                if (parked.size() < maxQueued) {
+                    Parked<ReqT, RespT> listener = new Parked<>(call, headers, next);
+                    parked.add(listener);
+                    if (parked.size() == 1)
+                        schedule();
+                    return listener;
+                }
+            }
+        }
+        reject(call);
+        return new ServerCall.Listener<ReqT>() {
+        };
+    }
+
+    private void reject(ServerCall<?, ?> call) {
+        rejectedCount.incrementAndGet();
+        call.close(Status.RESOURCE_EXHAUSTED.withDescription("Log append latency is above "
+                + thresholdMicros / 1000 + " ms; try again later."), new Metadata());
+    }
+
+    private void schedule() {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                admitParked();
+            }
+        }, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // on the scheduler thread: admit parked calls in order while the latency allows, reject those
+    // that waited too long
+    private void admitParked() {
+        synchronized (parked) {
+            while (!parked.isEmpty()) {
+                Parked<?, ?> call = parked.peek();
+                long waited = System.nanoTime() - call.start;
+                if (call.isCancelled()) {
+                    parked.poll();
+                } else if (engine.getAppendLatency(maxAgeMs) <= thresholdMicros) {
+                    parked.poll();
+                    queuedCount.incrementAndGet();
+                    queueWait.record(waited / 1000);
+                    call.admit();
+                } else if (waited >= queueMs * 1000000) {
+                    parked.poll();
+                    reject(call.call);
+                } else {
+                    break;
+                }
+            }
+            if (!parked.isEmpty())
+                schedule();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // the listener of a parked call: buffers callbacks until the call is admitted, then runs them
+    // on the executor one at a time
+    private final class Parked<ReqT, RespT> extends ServerCall.Listener<ReqT> {
+        final ServerCall<ReqT, RespT> call;
+        final long start = System.nanoTime();
+        private final Metadata headers;
+        private final ServerCallHandler<ReqT, RespT> next;
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        private ServerCall.Listener<ReqT> delegate;
+        private boolean admitted = false;
+        private boolean running = false;
+        private boolean cancelled = false;
+
+        Parked(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            this.call = call;
+            this.headers = headers;
+            this.next = next;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        void admit() {
+            synchronized (this) {
+                admitted = true;
+                pending.addFirst(new Runnable() {
+                    @Override
+                    public void run() {
+                        delegate = next.startCall(call, headers);
+                    }
+                });
+                running = true;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        private void enqueue(Runnable callback) {
+            synchronized (this) {
+                pending.add(callback);
+                if (!admitted || running)
+                    return;
+                running = true;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable callback;
+                synchronized (this) {
+                    callback = pending.poll();
+                    if (callback == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                callback.run();
+            }
+        }
+
+        @Override
+        public void onMessage(final ReqT message) {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onMessage(message);
+                }
+            });
+        }
+
+        @Override
+        public void onHalfClose() {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onHalfClose();
+                }
+            });
+        }
+
+        @Override
+        public void onCancel() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onCancel();
+                }
+            });
+        }
+
+        @Override
+        public void onComplete() {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onComplete();
+                }
+            });
+        }
+
+        @Override
+        public void onReady() {
+            enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    delegate.onReady();
+                }
+            });
+        }
+    }
+}
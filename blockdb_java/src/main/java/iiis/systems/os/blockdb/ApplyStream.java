@@ -0,0 +1,138 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One ApplyStream call. Each transaction is applied and its record appended to the log as soon
+// as it arrives, without waiting for it to be durable, so the records of consecutive items share
+// the log writer's group commits. A replier task, off the gRPC thread, waits for each record in
+// turn and sends the replies in order. Inbound flow control keeps at most WINDOW items
+// unanswered.
+//
+// The replier tasks of all streams share one bounded pool; a stream whose task is queued just
+// keeps its items unanswered until a replier is free.
+class ApplyStream implements StreamObserver<Transaction> {
+    private static final int WINDOW = 256;
+
+    // the pool repliers run on, one task per stream with items to answer
+    static ExecutorService replierPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stream-replier-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private final DatabaseEngine engine;
+    private final Executor repliers;
+    private final StreamObserver<BooleanResponse> out;
+    private final ServerCallStreamObserver<BooleanResponse> flow;
+    // record sequence number of each unanswered item, 0 for one that failed
+    private final ArrayDeque<Long> unanswered = new ArrayDeque<>();
+    private boolean replying = false;
+    private boolean completed = false;
+    private boolean cancelled = false;
+
+    // must be created inside the ApplyStream call, before it returns
+    ApplyStream(DatabaseEngine engine, Executor repliers, StreamObserver<BooleanResponse> out) {
+        this.engine = engine;
+        this.repliers = repliers;
+        this.out = out;
+        if (out instanceof ServerCallStreamObserver) {
+            flow = (ServerCallStreamObserver<BooleanResponse>) out;
+            flow.disableAutoInboundFlowControl();
+            flow.setOnCancelHandler(new Runnable() {
+                @Override
+                public void run() {
+                    cancel();
+                }
+            });
+            flow.request(WINDOW);
+        } else {
+            flow = null;
+        }
+    }
+
+    @Override
+    public void onNext(Transaction transaction) {
+        boolean[] result = new boolean[1];
+        long seq = engine.applyWithoutWaiting(Collections.singletonList(transaction), false, result);
+        synchronized (this) {
+            if (cancelled)
+                return;
+            unanswered.add(result[0] ? seq : 0);
+            if (replying)
+                return;
+            replying = true;
+        }
+        repliers.execute(new Runnable() {
+            @Override
+            public void run() {
+                reply();
+            }
+        });
+    }
+
+    // the client gave up: records already appended stay committed, but nothing more is sent
+    @Override
+    public void onError(Throwable t) {
+        cancel();
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (this) {
+            if (cancelled)
+                return;
+            completed = true;
+            // the replier sends the end of the stream after the last reply
+            if (replying)
+                return;
+        }
+        out.onCompleted();
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+        unanswered.clear();
+    }
+
+    // answer unanswered items in order until there are none left; only one runs at a time
+    private void reply() {
+        while (true) {
+            long seq;
+            synchronized (this) {
+                if (cancelled || unanswered.isEmpty()) {
+                    replying = false;
+                    if (cancelled || !completed)
+                        return;
+                    break;
+                }
+                seq = unanswered.peek();
+            }
+            boolean success = seq > 0 && engine.awaitCommitted(seq);
+            synchronized (this) {
+                if (cancelled)
+                    continue;
+                unanswered.poll();
+            }
+            out.onNext(BooleanResponse.newBuilder().setSuccess(success).build());
+            if (flow != null)
+                flow.request(1);
+        }
+        out.onCompleted();
+    }
+}
@@ -0,0 +1,30 @@
+package iiis.systems.os.blockdb;
+
+// Account balances keyed by packed user ID (see UserIds). Accounts are never removed; an
+// account that was never written has balance 0.
+//
+// Implementations must be safe for concurrent use; DatabaseEngine additionally guarantees that
+// writes to one account are serialized by its lock stripe.
+interface BalanceStore {
+    interface Visitor {
+        void visit(long userId, int balance);
+    }
+
+    // thrown by a store that cannot reach an account's balance, e.g. after an I/O error;
+    // DatabaseEngine stops taking writes once it sees one
+    class StoreException extends RuntimeException {
+        StoreException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    int get(long userId);
+
+    void put(long userId, int balance);
+
+    int size();
+
+    // visit every account; with writers running, each account is visited once with its balance
+    // at some point during the visit, and accounts added meanwhile may be missed
+    void forEach(Visitor visitor);
+}
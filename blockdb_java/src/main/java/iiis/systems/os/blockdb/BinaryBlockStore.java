@@ -0,0 +1,53 @@
+package iiis.systems.os.blockdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+// Blocks as <blockId>.block files: the 4 byte magic "BDBK" and a 4 byte format version,
+// followed by the Block protobuf prefixed with its varint length.
+class BinaryBlockStore extends BlockStore {
+    static final int MAGIC = 0x4244424b;
+    static final int VERSION = 1;
+
+    BinaryBlockStore(String dataDir) {
+        super(dataDir);
+    }
+
+    @Override
+    String extension() {
+        return "block";
+    }
+
+    @Override
+    BlockStore alternate() {
+        return new JsonBlockStore(dataDir);
+    }
+
+    @Override
+    byte[] encode(Block block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(block.getSerializedSize() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        block.writeDelimitedTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    Block decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a binary block file.");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported binary block version " + version + ".");
+        Block block = Block.parseDelimitedFrom(in);
+        if (block == null)
+            throw new IOException("Truncated binary block file.");
+        return block;
+    }
+}
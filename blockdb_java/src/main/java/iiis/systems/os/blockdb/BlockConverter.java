@@ -0,0 +1,36 @@
+package iiis.systems.os.blockdb;
+
+import java.io.File;
+import java.io.IOException;
+
+// Offline tool that rewrites every block of a data directory in another format, e.g. before
+// switching "blockFormat" in config.json. Stop the server first.
+//
+//   java -cp blockdb-1.0-SNAPSHOT.jar iiis.systems.os.blockdb.BlockConverter <dataDir> <json|binary>
+public class BlockConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: BlockConverter <dataDir> <json|binary>");
+            System.exit(1);
+        }
+        String dataDir = args[0].endsWith(File.separator) ? args[0] : args[0] + File.separator;
+        BlockStore target = BlockStore.forFormat(dataDir, args[1]);
+        BlockStore source = target.alternate();
+
+        int converted = 0;
+        for (int blockId = 1; target.exists(blockId); blockId ++) {
+            File sourceFile = new File(source.fileName(blockId));
+            if (!sourceFile.exists())
+                continue;
+            Block block = source.read(blockId);
+            if (block.getBlockID() != blockId)
+                throw new IOException(sourceFile + " holds block " + block.getBlockID() + ".");
+            if (!target.write(block))
+                System.exit(1);
+            if (!sourceFile.delete())
+                throw new IOException("Cannot delete " + sourceFile + ".");
+            converted ++;
+        }
+        System.out.println("Converted " + converted + " blocks in " + dataDir + " to " + args[1] + ".");
+    }
+}
@@ -1,25 +1,69 @@
 package iiis.systems.os.blockdb;
 
 import io.grpc.Server;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 public class BlockDatabaseServer {
     private Server server;
+    private ReplicationClient replicationClient;
 
-    private void start(String address, int port) throws IOException {
-        server = NettyServerBuilder.forAddress(new InetSocketAddress(address, port))
-                .addService(new BlockDatabaseImpl())
-                .build()
-                .start();
+    private ExecutorService executor;
+    private ExecutorService repliers;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+
+    // the serving mode comes from the optional "executor", "workerThreads", "workerQueueLimit" and
+    // "eventLoopThreads" entries of the server config, admission control from
+    // "admissionLatencyMs", "admission", "admissionQueueMs" and "admissionQueueLimit"
+    private void start(String address, int port, JSONObject config) throws IOException {
+        DatabaseEngine engine = DatabaseEngine.getInstance();
+        NettyServerBuilder builder = NettyServerBuilder.forAddress(new InetSocketAddress(address, port));
+        int workerThreads = config.optInt("workerThreads", 64);
+        String mode = config.optString("executor", "cached");
+        executor = createExecutor(mode, workerThreads, config.optInt("workerQueueLimit", 1024));
+        if (executor != null)
+            builder.executor(executor);
+        int eventLoopThreads = config.optInt("eventLoopThreads", 0);
+        if (eventLoopThreads > 0) {
+            bossGroup = new NioEventLoopGroup(1);
+            workerGroup = new NioEventLoopGroup(eventLoopThreads);
+            builder.bossEventLoopGroup(bossGroup).workerEventLoopGroup(workerGroup)
+                    .channelType(NioServerSocketChannel.class);
+        }
+
+        // the interceptor listed last runs first, so rejected calls are still timed
+        List<ServerInterceptor> interceptors = new ArrayList<>();
+        if (executor instanceof BoundedExecutor)
+            interceptors.add(new OverloadInterceptor(engine.getMetrics()));
+        long admissionLatencyMs = config.optLong("admissionLatencyMs", 0);
+        if (admissionLatencyMs > 0) {
+            interceptors.add(new AdmissionInterceptor(engine, admissionLatencyMs, config.optString("admission", "shed"),
+                    config.optLong("admissionQueueMs", 100), config.optInt("admissionQueueLimit", 1024), executor));
+        }
+        interceptors.add(new MetricsInterceptor(engine.getMetrics()));
+        repliers = ApplyStream.replierPool(workerThreads);
+        builder.addService(ServerInterceptors.intercept(new BlockDatabaseImpl(repliers), interceptors));
+        server = builder.build().start();
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -30,10 +74,48 @@ public class BlockDatabaseServer {
         });
     }
 
+    // the executor RPCs run on: "cached" (null) keeps gRPC's default unbounded cached pool,
+    // "bounded" a fixed pool of workerThreads with a queue of queueLimit calls, beyond which calls
+    // are rejected, "virtual" a new virtual thread per call, which needs Java 21; older JVMs fall
+    // back to the bounded pool
+    private static ExecutorService createExecutor(String mode, int workerThreads, int queueLimit) {
+        switch (mode) {
+            case "cached":
+                return null;
+            case "virtual":
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.out.println("Virtual threads need Java 21 or later. Serving from a pool of " + workerThreads + " threads instead.");
+                    return new BoundedExecutor(workerThreads, queueLimit);
+                }
+            case "bounded":
+                return new BoundedExecutor(workerThreads, queueLimit);
+            default:
+                throw new IllegalArgumentException("Unknown executor " + mode + "; expected cached, bounded or virtual.");
+        }
+    }
+
     private void stop() {
+        if (replicationClient != null) {
+            replicationClient.close();
+        }
         if (server != null) {
             server.shutdown();
         }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (repliers != null) {
+            repliers.shutdown();
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+        if (DatabaseEngine.getInstance() != null) {
+            DatabaseEngine.getInstance().close();
+        }
     }
 
     private void blockUntilShutdown() throws InterruptedException {
@@ -46,25 +128,69 @@ public class BlockDatabaseServer {
         // turn off logging for a package to prevent it from flooding the terminal
         Logger.getLogger("io.grpc.netty.NettyServerTransport").setLevel(Level.OFF);
 
-        JSONObject config = Util.readJsonFile("config.json");
-        config = (JSONObject)config.get("1");
+        // arguments: [serverId [configFile]], server "1" of config.json by default
+        String serverId = args.length > 0 ? args[0] : "1";
+        JSONObject servers = Util.readJsonFile(args.length > 1 ? args[1] : "config.json");
+        JSONObject config = (JSONObject)servers.get(serverId);
         String address = config.getString("ip");
         int port = Integer.parseInt(config.getString("port"));
         String dataDir = config.getString("dataDir");
 
-        DatabaseEngine.setup(dataDir, 50);
+        // with several servers, the "leader" (server "1" by default) takes the writes and the
+        // others replicate it
+        String leaderId = servers.has("leader") ? String.valueOf(servers.get("leader")) : "1";
+        boolean replicated = servers.optInt("nservers", 1) > 1;
+        if (replicated) {
+            config.put("role", serverId.equals(leaderId) ? "leader" : "follower");
+            for (String key : new String[] {"replicationQuorum", "replicationTimeoutMs", "replicationBuffer"}) {
+                if (servers.has(key) && !config.has(key))
+                    config.put(key, servers.get(key));
+            }
+        }
+
+        try {
+            DatabaseEngine.setup(dataDir, config.optInt("blockSize", 50), config);
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
 
         final BlockDatabaseServer server = new BlockDatabaseServer();
-        server.start(address, port);
+        server.start(address, port, config);
+        if (replicated && !serverId.equals(leaderId)) {
+            JSONObject leader = (JSONObject)servers.get(leaderId);
+            // a follower that no longer matches the leader must not serve reads; exiting runs the
+            // shutdown hook, which closes the engine
+            server.replicationClient = new ReplicationClient(DatabaseEngine.getInstance(), serverId,
+                    leader.getString("ip"), Integer.parseInt(leader.getString("port")), new Runnable() {
+                @Override
+                public void run() {
+                    System.exit(1);
+                }
+            });
+            server.replicationClient.start();
+        }
         server.blockUntilShutdown();
     }
 
     static class BlockDatabaseImpl extends BlockDatabaseGrpc.BlockDatabaseImplBase {
         private final DatabaseEngine dbEngine = DatabaseEngine.getInstance();
+        private final Executor repliers;
+
+        // repliers answer ApplyStream calls (see ApplyStream.replierPool)
+        BlockDatabaseImpl(Executor repliers) {
+            this.repliers = repliers;
+        }
 
         @Override
         public void get(GetRequest request, StreamObserver<GetResponse> responseObserver) {
-            int value = dbEngine.get(request.getUserID());
+            int value;
+            try {
+                value = dbEngine.get(request.getUserID());
+            } catch (BalanceStore.StoreException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
             GetResponse response = GetResponse.newBuilder().setValue(value).build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -109,5 +235,75 @@ public class BlockDatabaseServer {
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void batchApply(BatchRequest request, StreamObserver<BatchResponse> responseObserver) {
+            boolean[] success = dbEngine.apply(request.getTransactionsList(), request.getAtomic());
+            BatchResponse.Builder response = BatchResponse.newBuilder();
+            for (boolean s : success)
+                response.addSuccess(s);
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<Transaction> applyStream(StreamObserver<BooleanResponse> responseObserver) {
+            return new ApplyStream(dbEngine, repliers, responseObserver);
+        }
+
+        @Override
+        public void getMulti(GetMultiRequest request, StreamObserver<GetMultiResponse> responseObserver) {
+            long[] seq = new long[1];
+            int[] values;
+            try {
+                values = dbEngine.getMulti(request.getUserIDsList(), seq);
+            } catch (BalanceStore.StoreException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+                return;
+            }
+            GetMultiResponse.Builder response = GetMultiResponse.newBuilder().setSeq(seq[0]);
+            for (int value : values)
+                response.addValues(value);
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void history(HistoryRequest request, StreamObserver<HistoryEntry> responseObserver) {
+            try {
+                dbEngine.history(request.getUserID(), request.getFromBlock(), request.getLimit(), responseObserver);
+            } catch (IOException e) {
+                responseObserver.onError(Status.INTERNAL.withDescription("Cannot read block: " + e.getMessage()).asRuntimeException());
+                return;
+            }
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<ReplicationAck> replicate(StreamObserver<ReplicationBatch> responseObserver) {
+            ReplicationSource source = dbEngine.getReplication();
+            if (source != null)
+                return source.serve(responseObserver);
+            responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("This server is not the leader.").asRuntimeException());
+            return new StreamObserver<ReplicationAck>() {
+                @Override
+                public void onNext(ReplicationAck ack) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+
+        @Override
+        public void stats(Null request, StreamObserver<StatsResponse> responseObserver) {
+            responseObserver.onNext(dbEngine.getMetrics().toStats());
+            responseObserver.onCompleted();
+        }
     }
 }
@@ -0,0 +1,158 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Seals full logs into block files on a background thread, off the request path.
+//
+// The log writer hands over the N transactions of a block it has already written to log.txt
+// and keeps appending new records behind them. Once the block file is on disk the flusher asks
+// the log to drop those records, so a crash at any point leaves them either in log.txt or in the
+// block file (or both, in which case initialize() rewrites the block). Each block carries the
+// hash of the block sealed before it (see BlockHash); hashing happens here, off the request path,
+// as does adding the block to the history index. A block file that still cannot be written
+// after a few retries fails the log, which then rejects new transactions.
+class BlockFlusher {
+    private static class Batch {
+        final int blockId;
+        final List<Transaction> transactions;
+
+        Batch(int blockId, List<Transaction> transactions) {
+            this.blockId = blockId;
+            this.transactions = transactions;
+        }
+    }
+
+    private static final Batch STOP = new Batch(0, null);
+    // a block that cannot be written is retried this many times, waiting twice as long each time
+    private static final int ATTEMPTS = 6;
+    private static final long FIRST_RETRY_MS = 100;
+
+    private final BlockStore store;
+    private final Snapshotter snapshotter;
+    private final HistoryIndex history;
+    private final Histogram flushLatency;
+    private final Histogram blockSize;
+    private final AtomicLong flushErrors;
+    private final LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+    private WriteAheadLog log;
+    private final Thread thread;
+    // hash of the last block written, which the next block links to
+    private String lastHash = BlockHash.GENESIS;
+
+    BlockFlusher(BlockStore store, Snapshotter snapshotter, HistoryIndex history, Metrics metrics) {
+        this.store = store;
+        this.snapshotter = snapshotter;
+        this.history = history;
+        this.flushLatency = metrics.histogram("block.flush", "us");
+        this.blockSize = metrics.histogram("block.size", "bytes");
+        this.flushErrors = metrics.counter("block.flushErrors");
+        thread = new Thread("block-flusher") {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        };
+        thread.setDaemon(true);
+    }
+
+    void start(WriteAheadLog log) {
+        this.log = log;
+        thread.start();
+    }
+
+    // set the hash of the block before the next one to be written; called during recovery
+    void setLastHash(String hash) {
+        lastHash = hash;
+    }
+
+    void submit(int blockId, List<Transaction> transactions) {
+        queue.add(new Batch(blockId, transactions));
+    }
+
+    // seal whatever has been submitted, then stop
+    void close() {
+        queue.add(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == STOP)
+                return;
+            if (!writeWithRetries(batch)) {
+                // nothing after this block can be sealed, so the log would only grow; stop it
+                // taking transactions instead
+                log.fail("Cannot flush block " + batch.blockId + "; its records stay in the log.");
+                return;
+            }
+            log.sealed(batch.blockId);
+            history.add(batch.blockId, batch.transactions);
+            snapshotter.blockSealed();
+        }
+    }
+
+    private boolean writeWithRetries(Batch batch) {
+        long wait = FIRST_RETRY_MS;
+        for (int attempt = 1; ; attempt ++) {
+            if (writeBlock(batch.blockId, batch.transactions))
+                return true;
+            flushErrors.incrementAndGet();
+            if (attempt == ATTEMPTS)
+                return false;
+            System.out.println("Cannot flush block " + batch.blockId + ". Retrying in " + wait + " ms.");
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            wait *= 2;
+        }
+    }
+
+    // build block blockId from the transactions, linked to the block written before it, and
+    // write it to the block store
+    boolean writeBlock(int blockId, List<Transaction> transactions) {
+        long start = System.nanoTime();
+        Block block = build(blockId, transactions);
+        if (!store.write(block))
+            return false;
+        lastHash = BlockHash.of(block);
+        flushLatency.recordMicrosSince(start);
+        blockSize.record(block.getSerializedSize());
+        return true;
+    }
+
+    // writeBlock for blocks found in the log at startup: a block file the previous process
+    // already wrote with the same contents, before it was killed, is kept as it is
+    boolean resealBlock(int blockId, List<Transaction> transactions) {
+        Block block = build(blockId, transactions);
+        try {
+            if (store.exists(blockId) && store.read(blockId).equals(block)) {
+                lastHash = BlockHash.of(block);
+                return true;
+            }
+        } catch (IOException e) {
+            // a torn block file; write it again
+        }
+        System.out.println("The previous process was killed before flushing block " + blockId + ". Reflushing to block.");
+        return writeBlock(blockId, transactions);
+    }
+
+    private Block build(int blockId, List<Transaction> transactions) {
+        return Block.newBuilder().setBlockID(blockId).setPrevHash(lastHash).setNonce("00000000")
+                .addAllTransactions(transactions).build();
+    }
+}
@@ -0,0 +1,40 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Block hashes: the hex SHA-256 of a block's protobuf encoding, PrevHash included, so each
+// block commits to the whole chain before it. The encoding is the same whichever format the
+// block file uses, so converting blocks keeps the chain valid.
+class BlockHash {
+    // PrevHash of block 1
+    static final String GENESIS = "0000000000000000000000000000000000000000000000000000000000000000";
+    // PrevHash of blocks written before blocks were chained; their link is not checked
+    static final String LEGACY = "00000000";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String of(Block block) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] hash = digest.digest(block.toByteArray());
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i ++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    // the hash block blockId + 1 links to
+    static String before(BlockStore store, int blockId) throws IOException {
+        if (blockId <= 0)
+            return GENESIS;
+        return of(store.read(blockId));
+    }
+}
@@ -0,0 +1,142 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// Reads, decodes and hashes a range of blocks on a bounded thread pool while the calling thread
+// checks that each block links to the hash of the one before and applies them strictly in block
+// order.
+//
+// At most `window` blocks are in flight at once, so memory stays bounded no matter how
+// long the chain is.
+class BlockReplayer {
+    interface Applier {
+        // apply the block; return false to stop the replay
+        boolean apply(Block block);
+    }
+
+    private static class Hashed {
+        final Block block;
+        final String hash;
+
+        Hashed(Block block, String hash) {
+            this.block = block;
+            this.hash = hash;
+        }
+    }
+
+    private final BlockStore store;
+    private final int threads;
+    private final int window;
+    private String lastHash;
+    // whether the last block replayed was written before chaining; only a leading run of blocks
+    // may be, so once a chained block is seen every later link is checked
+    private boolean legacy;
+    private int legacyBlocks = 0;
+
+    BlockReplayer(BlockStore store, int threads) {
+        this.store = store;
+        this.threads = Math.max(1, threads);
+        this.window = this.threads * 4;
+    }
+
+    // replay blocks first..last-1, extending the chain from block first-1; returns false if a
+    // block could not be read, is not the block its file is named for, does not link to the block
+    // before it, or was rejected
+    boolean replay(int first, int last, Applier applier) {
+        lastHash = BlockHash.GENESIS;
+        legacy = true;
+        if (first > 1) {
+            try {
+                Block before = store.read(first - 1);
+                lastHash = BlockHash.of(before);
+                legacy = before.getPrevHash().equals(BlockHash.LEGACY);
+            } catch (IOException e) {
+                System.out.println("Cannot read block " + (first - 1) + " in " + store.dataDir + ": " + e.getMessage());
+                return false;
+            }
+        }
+        if (first >= last)
+            return true;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, last - first), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "block-reader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long start = System.nanoTime();
+        long transactions = 0;
+        ArrayDeque<Future<Hashed>> inFlight = new ArrayDeque<>();
+        int next = first;
+        try {
+            for (int blockId = first; blockId < last; blockId ++) {
+                while (next < last && inFlight.size() < window)
+                    inFlight.add(pool.submit(read(next ++)));
+                Hashed hashed;
+                try {
+                    hashed = inFlight.poll().get();
+                } catch (ExecutionException e) {
+                    System.out.println("Cannot read block " + blockId + " in " + store.dataDir + ": " + e.getCause().getMessage());
+                    return false;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                Block block = hashed.block;
+                if (block.getBlockID() != blockId) {
+                    System.out.println("Block file " + blockId + " holds block " + block.getBlockID() + ".");
+                    return false;
+                }
+                if (block.getPrevHash().equals(BlockHash.LEGACY)) {
+                    if (!legacy) {
+                        System.out.println("Block " + blockId + " claims to predate hash chaining, but block "
+                                + (blockId - 1) + " is chained.");
+                        return false;
+                    }
+                    legacyBlocks ++;
+                } else if (!block.getPrevHash().equals(lastHash)) {
+                    System.out.println("Block " + blockId + " does not link to block " + (blockId - 1) + ": PrevHash is "
+                            + block.getPrevHash() + ", but block " + (blockId - 1) + " hashes to " + lastHash + ".");
+                    return false;
+                }
+                lastHash = hashed.hash;
+                legacy = block.getPrevHash().equals(BlockHash.LEGACY);
+                if (!applier.apply(block))
+                    return false;
+                transactions += block.getTransactionsCount();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Replayed %d blocks (%d transactions) in %.2f s: %.0f blocks/s, %.0f transactions/s.",
+                last - first, transactions, seconds, (last - first) / seconds, transactions / seconds));
+        if (legacyBlocks > 0)
+            System.out.println("Warning: " + legacyBlocks + " blocks were written before hash chaining; their links were not checked.");
+        return true;
+    }
+
+    // hash of the last block replayed (or of block first-1 if none was)
+    String getLastHash() {
+        return lastHash;
+    }
+
+    private Callable<Hashed> read(final int blockId) {
+        return new Callable<Hashed>() {
+            @Override
+            public Hashed call() throws Exception {
+                Block block = store.read(blockId);
+                return new Hashed(block, BlockHash.of(block));
+            }
+        };
+    }
+}
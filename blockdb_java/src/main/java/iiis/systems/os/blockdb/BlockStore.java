@@ -0,0 +1,72 @@
+package iiis.systems.os.blockdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Where sealed blocks live on disk. Every block is a file <blockId>.<extension> in the data
+// directory; the format is chosen by the "blockFormat" entry of the server config.
+//
+// A store reads blocks written in either format, so a data directory keeps working after the
+// format is switched; BlockConverter rewrites the old files.
+abstract class BlockStore {
+    final String dataDir;
+
+    BlockStore(String dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    static BlockStore forFormat(String dataDir, String format) {
+        switch (format) {
+            case "json":
+                return new JsonBlockStore(dataDir);
+            case "binary":
+                return new BinaryBlockStore(dataDir);
+            default:
+                throw new IllegalArgumentException("Unknown block format " + format + "; expected json or binary.");
+        }
+    }
+
+    abstract String extension();
+
+    abstract byte[] encode(Block block) throws IOException;
+
+    abstract Block decode(byte[] data) throws IOException;
+
+    String fileName(int blockId) {
+        return dataDir + blockId + "." + extension();
+    }
+
+    // the other format, used to read blocks written before the format was switched
+    abstract BlockStore alternate();
+
+    // write the block to <blockId>.<extension> and fsync it; its directory entry is made durable
+    // when the log store fsyncs the directory, before the block's records leave the log
+    boolean write(Block block) {
+        String fileName = fileName(block.getBlockID());
+        try (FileOutputStream out = new FileOutputStream(fileName)) {
+            out.write(encode(block));
+            out.getChannel().force(false);
+        } catch (IOException e) {
+            System.out.println("Cannot write to file " + fileName);
+            return false;
+        }
+        return true;
+    }
+
+    Block read(int blockId) throws IOException {
+        String fileName = fileName(blockId);
+        if (!new File(fileName).exists()) {
+            BlockStore other = alternate();
+            if (new File(other.fileName(blockId)).exists())
+                return other.read(blockId);
+        }
+        return decode(Files.readAllBytes(Paths.get(fileName)));
+    }
+
+    boolean exists(int blockId) {
+        return new File(fileName(blockId)).exists() || new File(alternate().fileName(blockId)).exists();
+    }
+}
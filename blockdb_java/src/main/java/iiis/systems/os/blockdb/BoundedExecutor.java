@@ -0,0 +1,77 @@
+package iiis.systems.os.blockdb;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The "bounded" executor RPCs run on: workerThreads threads and a queue of at most queueLimit
+// tasks. gRPC cannot handle an executor that refuses a task, so a task the queue has no room for
+// runs on a single overflow thread instead, flagged as overflowing while it runs, and
+// OverloadInterceptor ends its call with RESOURCE_EXHAUSTED rather than doing the work.
+class BoundedExecutor extends ThreadPoolExecutor {
+    // set while the current thread runs a task the queue had no room for
+    private static final ThreadLocal<Boolean> OVERFLOWING = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private final ExecutorService overflow;
+
+    BoundedExecutor(int workerThreads, int queueLimit) {
+        this(workerThreads, queueLimit, Executors.newSingleThreadExecutor(daemonThreads("grpc-overflow")));
+    }
+
+    private BoundedExecutor(int workerThreads, int queueLimit, final ExecutorService overflow) {
+        super(workerThreads, workerThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueLimit)),
+                daemonThreads("grpc-worker"), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(final Runnable task, ThreadPoolExecutor executor) {
+                if (executor.isShutdown())
+                    return;
+                overflow.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        OVERFLOWING.set(true);
+                        try {
+                            task.run();
+                        } finally {
+                            OVERFLOWING.set(false);
+                        }
+                    }
+                });
+            }
+        });
+        this.overflow = overflow;
+    }
+
+    // whether the current thread is running a task the queue had no room for
+    static boolean isOverflowing() {
+        return OVERFLOWING.get();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        overflow.shutdown();
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
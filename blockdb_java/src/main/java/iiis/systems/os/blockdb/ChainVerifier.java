@@ -0,0 +1,50 @@
+package iiis.systems.os.blockdb;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+// Offline tool that checks the block chain of a server's data directory without starting the
+// server: every block from 1 on must be the block its file is named for, hold blockSize
+// transactions and link to the SHA-256 hash of the block before it. The data directory, block
+// format and block size come from the server's section of the config, as for the server.
+// Blocks are read and hashed in parallel.
+//
+//   java -cp blockdb-1.0-SNAPSHOT.jar iiis.systems.os.blockdb.ChainVerifier [serverId [configFile [threads]]]
+public class ChainVerifier {
+    public static void main(String[] args) throws IOException, JSONException {
+        if (args.length > 3) {
+            System.out.println("Usage: ChainVerifier [serverId [configFile [threads]]]");
+            System.exit(1);
+        }
+        String serverId = args.length > 0 ? args[0] : "1";
+        JSONObject config = (JSONObject) Util.readJsonFile(args.length > 1 ? args[1] : "config.json").get(serverId);
+        String dataDir = config.getString("dataDir");
+        final int N = config.optInt("blockSize", 50);
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : config.optInt("recoveryThreads", Runtime.getRuntime().availableProcessors());
+        BlockStore store = BlockStore.forFormat(dataDir, config.optString("blockFormat", "json"));
+
+        int last = 1;
+        while (store.exists(last))
+            last ++;
+        BlockReplayer replayer = new BlockReplayer(store, threads);
+        boolean ok = replayer.replay(1, last, new BlockReplayer.Applier() {
+            @Override
+            public boolean apply(Block block) {
+                if (block.getTransactionsCount() != N) {
+                    System.out.println("There should be " + N + " transactions in block " + block.getBlockID() + ", but get "
+                            + block.getTransactionsCount() + " transactions.");
+                    return false;
+                }
+                return true;
+            }
+        });
+        if (!ok) {
+            System.out.println("Chain of " + dataDir + " is broken.");
+            System.exit(1);
+        }
+        System.out.println("Verified " + (last - 1) + " blocks in " + dataDir + "; last block hashes to " + replayer.getLastHash() + ".");
+    }
+}
@@ -1,13 +1,15 @@
 package iiis.systems.os.blockdb;
 
-import com.google.protobuf.util.JsonFormat;
-import com.google.protobuf.InvalidProtocolBufferException;
+import io.grpc.stub.StreamObserver;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
-import java.nio.channels.FileChannel;
 
 public class DatabaseEngine {
     private static DatabaseEngine instance = null;
@@ -16,74 +18,31 @@ public class DatabaseEngine {
         return instance;
     }
 
-    // helper function to convert a line in the log file to Transaction.Builder
-    private boolean logLineToTransactionBuilder(String line, Transaction.Builder transaction) {
-        String[] splitLine = line.split(" ");
-
-        if (splitLine.length == 0 || !splitLine[splitLine.length - 1].startsWith(".")) {
-            System.out.println("Unexpected line in " + dataDir + "log.txt");
-            return false;
-        }
-        switch (splitLine[0]) {
-           case "PUT":
-                if (splitLine.length != 4) {
-                    System.out.println("PUT transaction records should be in format: PUT userID value.");
-                    return false;
-                }
-                transaction.setType(Transaction.Types.PUT).setUserID(splitLine[1]).setValue(Integer.parseInt(splitLine[2]));
-                break;
-            case "DEPOSIT":
-                if (splitLine.length != 4) {
-                    System.out.println("DEPOSIT transaction records should be in format: DEPOSIT userID value.");
-                    return false;
-                }
-                transaction.setType(Transaction.Types.DEPOSIT).setUserID(splitLine[1]).setValue(Integer.parseInt(splitLine[2]));
-                break;
-            case "WITHDRAW":
-                if (splitLine.length != 4) {
-                    System.out.println("WITHDRAW transaction records should be in format: WITHDRAW userID value.");
-                    return false;
-                }
-                transaction.setType(Transaction.Types.WITHDRAW).setUserID(splitLine[1]).setValue(Integer.parseInt(splitLine[2]));
-                break;
-            case "TRANSFER":
-                if (splitLine.length != 5) {
-                    System.out.println("TRANSFER transaction records should be in format: TRANSFER fromID toID value.");
-                    return false;
-                }
-                transaction.setType(Transaction.Types.TRANSFER).setFromID(splitLine[1]).setToID(splitLine[2]).setValue(Integer.parseInt(splitLine[3]));
-                break;
-            default:
-                System.out.println("A log record should start with PUT, DEPOSIT, WITHDRAW or TRANSFER.");
-                return false;
-        }
-        return true;
-    }
-
-    // helper function to update balances by a Transaction
+    // helper function to update balances by a Transaction; records come from block and log files,
+    // so their IDs are checked before they are packed and a malformed one counts as inconsistent
     private boolean updateWithTransaction(Transaction transaction) {
-         if (transaction.getValue() < 0)
+        if (!isWellFormed(transaction))
             return false;
         switch(transaction.getType().getNumber()) {
             case 2:
-                balances.put(transaction.getUserID(), transaction.getValue());
+                setBalance(transaction.getUserID(), transaction.getValue());
                 break;
             case 3:
-                balances.put(transaction.getUserID(), getOrZero(transaction.getUserID()) + transaction.getValue());
+                setBalance(transaction.getUserID(), getOrZero(transaction.getUserID()) + transaction.getValue());
                 break;
             case 4:
                 int balance = getOrZero(transaction.getUserID()) - transaction.getValue();
                 if (balance < 0)
                     return false;
-                balances.put(transaction.getUserID(), balance);
+                setBalance(transaction.getUserID(), balance);
                 break;
             case 5:
                 int fromBalance = getOrZero(transaction.getFromID()) - transaction.getValue();
                 int toBalance = getOrZero(transaction.getToID()) + transaction.getValue();
                 if (fromBalance < 0)
                     return false;
-                balances.put(transaction.getFromID(), fromBalance);
-                balances.put(transaction.getToID(), toBalance);
+                setBalance(transaction.getFromID(), fromBalance);
+                setBalance(transaction.getToID(), toBalance);
                 break;
             default:
                 return false;
@@ -91,297 +50,838 @@ public class DatabaseEngine {
         return true;
     }
 
-    // initialize the database with json files and log.txt
-    private void initialize() {
-        File file = new File(dataDir + "log.txt");
-        // clean start
-        if (!file.exists()) {
-            try (FileWriter writer = new FileWriter(file)) {
-                writer.write("1\n");
-            } catch (IOException e) {
-                System.out.println("Cannot write to file " + dataDir + "log.txt.");
-            }
-            return;
+    // initialize the database with block files and the log; false if it cannot be recovered
+    private boolean initialize() {
+        blockId = logStore.recover(logRecords);
+        if (blockId < 0) {
+            System.out.println("Cannot recover the log. Database initialization failed.");
+            return false;
         }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line = reader.readLine();
-            blockId = Integer.parseInt(line);
+        // new blocks link to the last sealed one
+        try {
+            flusher.setLastHash(BlockHash.before(blockStore, blockId - 1));
         } catch (IOException e) {
-            System.out.println("Cannot read file " + dataDir + "log.txt.");
-            return;
+            System.out.println("Cannot read block " + (blockId - 1) + ": " + e.getMessage() + ". Database initialization failed.");
+            return false;
         }
 
-        // if the previous process was killed before copying log_ to log in flushToBlock
-        File file_ = new File(dataDir + "log_.txt");
-        if (file_.exists()) {
-            System.out.println("The previous process was killed before copying log_ to log in flushToBlock. Recopying.");
-            blockId ++;
-            try (FileWriter writer = new FileWriter(dataDir + "log_.txt")) {
-                writer.write(blockId + "\n");
-            } catch (IOException e) {
-                System.out.println("Cannot write to file " + dataDir + "log_.txt");
-                return;
-            }
-            try {
-                Files.move(Paths.get(dataDir + "log_.txt"), Paths.get(dataDir + "log.txt"), StandardCopyOption.ATOMIC_MOVE);
-            } catch (IOException e) {
-                System.out.println("Cannot replace log.txt with log_.txt.");
-                return;
+        // if the previous process was killed before the flusher finished writing the block file (or
+        // before it started, or before the log dropped its records), seal every full block still in
+        // the log
+        int sealed = 0;
+        while (logRecords.size() - sealed * N >= N) {
+            if (!flusher.resealBlock(blockId + sealed, logRecords.subList(sealed * N, (sealed + 1) * N))) {
+                System.out.println("Cannot flush to block. Database initialization failed.");
+                return false;
             }
+            sealed ++;
         }
-
-        // if the previous process was killed before finishing writing to blockId.json
-        File fileJson = new File(dataDir + blockId + ".json");
-        if (fileJson.exists()) {
-            System.out.println("The previous process was killed before finishing writing to blockId.json. Reflushing to block.");
-            if (!flushToBlock()) {
-                System.out.println("Cannot flush to block. Database initialization failed.");
-                return;
+        if (sealed > 0) {
+            List<Transaction> rest = new ArrayList<>(logRecords.subList(sealed * N, logRecords.size()));
+            if (!logStore.truncateBefore(blockId + sealed, rest)) {
+                System.out.println("Database initialization failed.");
+                return false;
             }
+            blockId += sealed;
+            logRecords = rest;
         }
 
-        // update the database using transaction records in the block files
-        for (int i = 1; i < blockId; i ++) {
-            String json;
-            try {
-                json = new String(Files.readAllBytes(Paths.get(dataDir + i + ".json"))); 
-            } catch (IOException e) {
-                System.out.println("Cannot read file " + dataDir + i + ".json. Database initialization failed.");
-                return;
-            }
-            Block.Builder block = Block.newBuilder();
-            try {
-                JsonFormat.parser().merge(json, block);
-            } catch (InvalidProtocolBufferException e) {
-                System.out.println("Failed to convert JSON to block. Database initialization failed.");
-                return;
-            }
-            if (block.getTransactionsCount() != N) {
-                System.out.println("There should be " + N + " transactions in " + dataDir + i + ".json, but get " + block.getTransactionsCount() + " transactions. Database initialization failed.");
-                return;
+        // start from the tiered store's last checkpoint, or else the newest snapshot, if any, and
+        // replay only the records after it
+        long replayFrom = 0;
+        long maxSeq = (long) (blockId - 1) * N + logRecords.size();
+        if (tiered != null) {
+            replayFrom = tiered.open(maxSeq);
+            if (replayFrom < 0) {
+                System.out.println("Database initialization failed.");
+                return false;
             }
-            for (int j = 0; j < N; j ++) {
-                Transaction transaction = block.getTransactions(j);
-                if (!updateWithTransaction(transaction)) {
-                    System.out.println("The " + j + "th record is inconsistent in " + dataDir + i + ".json. Database initialization failed.");
-                    return;
-                }
+            if (replayFrom > 0)
+                System.out.println("Opened " + tiered.size() + " accounts checkpointed at record " + replayFrom + ".");
+        }
+        Snapshot snapshot = replayFrom > 0 ? null : Snapshot.loadLatest(dataDir, N, maxSeq);
+        if (snapshot != null) {
+            for (int i = 0; i < snapshot.userIds.length; i ++) {
+                balances.put(snapshot.userIds[i], snapshot.balances[i]);
+                // a partly loaded snapshot matches no record
+                if (!checkpointIfNeeded(-1))
+                    return false;
             }
+            replayFrom = snapshot.seq(N);
+            if (tiered != null && !checkpoint(replayFrom))
+                return false;
+            System.out.println("Loaded snapshot of " + snapshot.userIds.length + " accounts at block " + snapshot.blockId + " offset " + snapshot.offset + ".");
         }
 
-        // update the database using log file
-        long startPoint = 0;
-        String line;
-        try (BufferedReader reader = new BufferedReader(new FileReader(dataDir + "log.txt"))) {
-            line = reader.readLine();
-            startPoint += line.getBytes().length + 1;
-            line = reader.readLine();
-            String nextLine;
-            while ((nextLine = reader.readLine()) != null && line != null) {
-                startPoint += line.getBytes().length + 1;
-                Transaction.Builder transaction = Transaction.newBuilder();
-                if (!logLineToTransactionBuilder(line, transaction)) {
-                    System.out.println("Incomplete record in log file. Database initialization failed.");
-                    return;
+        // update the database using transaction records in the block files, decoded in parallel
+        final long from = replayFrom;
+        BlockReplayer.Applier applier = new BlockReplayer.Applier() {
+            @Override
+            public boolean apply(Block block) {
+                int i = block.getBlockID();
+                if (block.getTransactionsCount() != N) {
+                    System.out.println("There should be " + N + " transactions in block " + i + ", but get " + block.getTransactionsCount() + " transactions. Database initialization failed.");
+                    return false;
                 }
-                if (!updateWithTransaction(transaction.build())) {
-                    System.out.println("Inconsistent record in log file. Database initialization failed.");
-                    return;
+                for (int j = (int) Math.max(0, from - (long) (i - 1) * N); j < N; j ++) {
+                    Transaction transaction = block.getTransactions(j);
+                    if (!updateWithTransaction(transaction)) {
+                        System.out.println("The " + j + "th record is inconsistent in block " + i + ". Database initialization failed.");
+                        return false;
+                    }
                 }
-                logLength ++;
-                line = nextLine;
+                return checkpointIfNeeded((long) i * N);
             }
-
-        } catch (IOException e) {
-            System.out.println("Cannot read file " + dataDir + "log.txt");
-            return;
+        };
+        // the blocks before the replayed ones are covered by the snapshot; the replayed ones must
+        // extend the chain from the last of those
+        int first = (int) (replayFrom / N) + 1;
+        if (!new BlockReplayer(blockStore, recoveryThreads).replay(first, blockId, applier)) {
+            System.out.println("Database initialization failed.");
+            return false;
         }
 
-        // the last line of log.txt may be incomplete, need to delete it if so
-        if (line != null) {
-            Transaction.Builder transaction = Transaction.newBuilder();
-            if (!logLineToTransactionBuilder(line, transaction)) {
-                System.out.println("The last record is incomplete in log file. Need to be deleted.");
-                try (FileChannel outChan = new FileOutputStream(dataDir + "log.txt", true).getChannel()) {
-                    outChan.truncate(startPoint);
-                } catch (IOException e) {
-                    System.out.println("Cannot truncate file log.txt.");
-                }
-                return;
-            }
-            if (!updateWithTransaction(transaction.build())) {
+        // update the database using log file
+        for (int k = (int) Math.max(0, replayFrom - (long) (blockId - 1) * N); k < logRecords.size(); k ++) {
+            if (!updateWithTransaction(logRecords.get(k))) {
                 System.out.println("Inconsistent record in log file. Database initialization failed.");
+                return false;
             }
-            logLength ++;
+        }
+        return true;
+    }
+
+    // during recovery, write the tiered store's dirty accounts out once there are too many; seq
+    // is the record the balances reflect
+    private boolean checkpointIfNeeded(long seq) {
+        if (tiered == null || !tiered.needsCheckpoint())
+            return true;
+        return checkpoint(seq);
+    }
+
+    private boolean checkpoint(long seq) {
+        try {
+            tiered.write(tiered.capture(seq));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Cannot write balances: " + e.getMessage() + ". Database initialization failed.");
+            return false;
         }
     }
 
     public static void setup(String dataDir, int N) {
-        instance = new DatabaseEngine(dataDir, N);
+        setup(dataDir, N, new JSONObject());
+    }
+
+    public static void setup(String dataDir, int N, JSONObject config) {
+        instance = new DatabaseEngine(dataDir, N, config);
     }
 
-    private HashMap<String, Integer> balances = new HashMap<>();
-    private int logLength = 0;
+    // RPCs run concurrently: each write locks the stripes of the accounts it touches, or with
+    // "shards" set runs on the threads of their partitions, and appends its log record while
+    // holding them so the log order matches the apply order
+    private BalanceStore balances;
+    // set if balances is the tiered store, which is checkpointed instead of snapshotted
+    private TieredBalanceStore tiered;
+    private LockStripes stripes;
+    private Partitions partitions;
+    private int recoveryThreads;
+    private List<Transaction> logRecords = new ArrayList<>();
     private String dataDir;
     private int N = 50;
     private int blockId = 1;
-
-    DatabaseEngine(String dataDir, int N) {
+    private BlockStore blockStore;
+    private LogStore logStore;
+    private BlockFlusher flusher;
+    private Snapshotter snapshotter;
+    private HistoryIndex historyIndex;
+    private WriteAheadLog log;
+    private VersionedBalances versions;
+    // set on a leader with followers; a follower only takes writes from its leader
+    private ReplicationSource replication;
+    private boolean readOnly = false;
+    private final Metrics metrics = new Metrics();
+
+    DatabaseEngine(String dataDir, int N, JSONObject config) {
         this.dataDir = dataDir;
         this.N = N;
-        this.initialize();
+        this.stripes = new LockStripes(config.optInt("lockStripes", 1024));
+        int shards = config.optInt("shards", 0);
+        if (shards > 0) {
+            if (config.optString("balanceStore", "packed").equals("tiered"))
+                throw new IllegalArgumentException("The tiered balance store cannot be split into shards.");
+            BalanceStore[] stores = new BalanceStore[shards];
+            for (int i = 0; i < shards; i ++)
+                stores[i] = createBalanceStore(dataDir, config, config.optInt("expectedAccounts", 1 << 16) / shards);
+            this.balances = new ShardedBalanceStore(stores);
+        } else {
+            this.balances = createBalanceStore(dataDir, config, config.optInt("expectedAccounts", 1 << 16));
+            if (balances instanceof TieredBalanceStore)
+                this.tiered = (TieredBalanceStore) balances;
+        }
+        this.recoveryThreads = config.optInt("recoveryThreads", Runtime.getRuntime().availableProcessors());
+        this.blockStore = BlockStore.forFormat(dataDir, config.optString("blockFormat", "json"));
+        this.logStore = LogStore.forFormat(dataDir, N, config.optString("logFormat", "text"),
+                config.optInt("logSegmentMB", 16) << 20);
+        this.snapshotter = new Snapshotter(this, dataDir, N, config.optInt("snapshotInterval", 100));
+        this.historyIndex = new HistoryIndex(dataDir, N);
+        this.flusher = new BlockFlusher(blockStore, snapshotter, historyIndex, metrics);
+        long start = System.currentTimeMillis();
+        // never append on top of a data directory that could not be read back: the new records
+        // would start from the wrong block and overwrite what is there
+        boolean recovered;
+        try {
+            recovered = this.initialize();
+        } catch (BalanceStore.StoreException e) {
+            System.out.println(e.getMessage() + ". Database initialization failed.");
+            recovered = false;
+        }
+        if (!recovered)
+            throw new IllegalStateException("Cannot recover the database in " + dataDir + ". Refusing to start.");
+        this.historyIndex.open(blockStore, blockId - 1);
+        final long recoveryMs = System.currentTimeMillis() - start;
+        this.openLog(config);
+        if (shards > 0)
+            this.partitions = new Partitions(shards);
+        if (tiered != null) {
+            tiered.setPressureListener(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotter.request();
+                }
+            });
+        }
+        registerGauges(recoveryMs);
+        metrics.startDumping(dataDir, config.optInt("statsIntervalSec", 60));
     }
 
-    // flush the N transactions in log.txt to a json file
-    private boolean flushToBlock() {
-        Block.Builder block = Block.newBuilder().setBlockID(blockId).setPrevHash("00000000").setNonce("00000000");
-        try (BufferedReader reader = new BufferedReader(new FileReader(dataDir + "log.txt"))) {
-            String line = reader.readLine();
-            while ((line = reader.readLine()) != null) {
-                Transaction.Builder transaction = Transaction.newBuilder();
-                if (!logLineToTransactionBuilder(line, transaction)) 
-                    return false;
-                block.addTransactions(transaction.build());
+    private void registerGauges(final long recoveryMs) {
+        metrics.gauge("recovery.ms", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return recoveryMs;
             }
-        } catch (IOException e) {
-            System.out.println("Cannot read file " + dataDir + "log.txt");
-            return false;
+        });
+        metrics.gauge("accounts", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return balances.size();
+            }
+        });
+        metrics.gauge("versions.entries", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return versions == null ? 0 : versions.size();
+            }
+        });
+        metrics.gauge("history.entries", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return historyIndex.getEntries();
+            }
+        });
+        if (tiered != null) {
+            metrics.gauge("cache.accounts", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return tiered.getCachedAccounts();
+                }
+            });
+            metrics.gauge("cache.dirty", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return tiered.getDirtyAccounts();
+                }
+            });
+            metrics.gauge("cache.faults", new Metrics.Gauge() {
+                @Override
+                public long value() {
+                    return tiered.getFaults();
+                }
+            });
         }
+        metrics.gauge("log.length", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return log == null ? 0 : log.getLength();
+            }
+        });
+    }
 
-        String jsonString;
-        try {
-            jsonString = JsonFormat.printer().print(block.build());
-        } catch (InvalidProtocolBufferException e) {
-            System.out.println("Failed to convert block to JSON.");
-            return false;
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    // recent log append latency in microseconds, 0 while the log is idle (see WriteAheadLog)
+    long getAppendLatency(long maxAgeMs) {
+        return log == null ? 0 : log.getAppendLatency(maxAgeMs);
+    }
+
+    // start appending to the log; the fsync policy comes from the optional "fsyncPolicy",
+    // "fsyncIntervalMs" and "fsyncRecords" entries of the server config
+    private void openLog(JSONObject config) {
+        WriteAheadLog.SyncPolicy policy = WriteAheadLog.SyncPolicy.parse(config.optString("fsyncPolicy", "always"));
+        long interval = config.optLong("fsyncIntervalMs", 5);
+        int records = config.optInt("fsyncRecords", N);
+        long startSeq = (long) (blockId - 1) * N + logRecords.size();
+        log = new WriteAheadLog(logStore, N, blockId, logRecords, startSeq, policy, interval, records, flusher, metrics);
+        versions = new VersionedBalances(balances, log);
+        switch (config.optString("role", "")) {
+            case "leader":
+                replication = new ReplicationSource(blockStore, N, blockId, logRecords, config.optInt("replicationBuffer", 100000),
+                        config.optInt("replicationQuorum", 0), config.optLong("replicationTimeoutMs", 1000), metrics);
+                if (log != null)
+                    log.setListener(replication);
+                break;
+            case "follower":
+                readOnly = true;
+                break;
         }
+        logRecords = null;
+    }
 
-        try (FileWriter writer = new FileWriter(dataDir + blockId + ".json")) {
-            writer.write(jsonString);
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + blockId + ".json");
-            return false;
+    // "balanceStore" is "packed" (default), "offheap", "hash" or "tiered"; "expectedAccounts"
+    // presizes it, and "cacheAccounts" bounds the accounts the tiered store keeps in memory
+    private static BalanceStore createBalanceStore(String dataDir, JSONObject config, int expected) {
+        String kind = config.optString("balanceStore", "packed");
+        switch (kind) {
+            case "packed":
+                return new PackedBalanceStore(config.optInt("lockStripes", 1024), expected, false);
+            case "offheap":
+                return new PackedBalanceStore(config.optInt("lockStripes", 1024), expected, true);
+            case "hash":
+                return new HashBalanceStore(expected);
+            case "tiered":
+                return new TieredBalanceStore(dataDir, config.optInt("cacheAccounts", 1 << 20), expected);
+            default:
+                throw new IllegalArgumentException("Unknown balance store " + kind + "; expected packed, offheap, hash or tiered.");
         }
+    }
 
-        blockId ++;
-        try (FileWriter writer = new FileWriter(dataDir + "log_.txt")) {
-            writer.write(blockId + "\n");
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + "log_.txt");
-            return false;
+    public void close() {
+        if (log != null)
+            log.close();
+        historyIndex.close();
+        snapshotter.close();
+        if (tiered != null)
+            tiered.close();
+        if (replication != null)
+            replication.close();
+        if (partitions != null)
+            partitions.close();
+        if (versions != null)
+            versions.close();
+        metrics.stopDumping();
+    }
+
+    // copy the tiered store's dirty accounts as of the last appended record, then write them to
+    // its file once that record is durable; returns how many were written, or -1
+    int checkpointBalances() {
+        VersionedBalances.Reader reader = openAppendedReader();
+        if (reader == null)
+            return -1;
+        TieredBalanceStore.Checkpoint checkpoint;
+        try {
+            // every write up to the reader's record has reached the store, so each account it
+            // changed is dirty; writes after it are undone through the reader
+            checkpoint = tiered.capture(reader.seq());
+            for (int i = 0; i < checkpoint.userIds.length; i ++)
+                checkpoint.balances[i] = reader.get(checkpoint.userIds[i], checkpoint.balances[i]);
+        } finally {
+            reader.close();
         }
+        if (!log.awaitDurable(checkpoint.seq))
+            return -1;
         try {
-            Files.move(Paths.get(dataDir + "log_.txt"), Paths.get(dataDir + "log.txt"), StandardCopyOption.ATOMIC_MOVE);
+            tiered.write(checkpoint);
         } catch (IOException e) {
-            System.out.println("Cannot replace log.txt with log_.txt.");
-            return false;
+            System.out.println("Cannot write balances at record " + checkpoint.seq + ": " + e.getMessage());
+            return -1;
         }
-        logLength = 0;
-        return true;
+        return checkpoint.userIds.length;
+    }
+
+    boolean isTiered() {
+        return tiered != null;
+    }
+
+    // copy the balances as of the last appended record, then wait until it is durable; returns
+    // null if the log failed
+    Snapshot captureSnapshot() {
+        VersionedBalances.Reader reader = openAppendedReader();
+        if (reader == null)
+            return null;
+        Snapshot snapshot;
+        try {
+            snapshot = copyBalances(reader);
+        } finally {
+            reader.close();
+        }
+        if (!log.awaitDurable(snapshot.seq(N)))
+            return null;
+        return snapshot;
+    }
+
+    // a reader at the last appended record. Writers are only held off while its sequence number
+    // is read: each one appends and updates the balances under its stripes or partitions, so once
+    // they are all taken every record up to it has been applied, and later writes are undone
+    // through the reader's versions while the balances are copied. Null if the partitions failed
+    private VersionedBalances.Reader openAppendedReader() {
+        if (partitions != null) {
+            return partitions.run(partitions.all(), new Callable<VersionedBalances.Reader>() {
+                @Override
+                public VersionedBalances.Reader call() {
+                    return versions.reader(log.getAppendedSeq());
+                }
+            });
+        }
+        stripes.lockAll();
+        try {
+            return versions.reader(log.getAppendedSeq());
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+
+    private Snapshot copyBalances(final VersionedBalances.Reader reader) {
+        long seq = reader.seq();
+        final long[][] userIds = {new long[balances.size() + 16]};
+        final int[][] values = {new int[userIds[0].length]};
+        final int[] count = {0};
+        // accounts created while this runs are either missed or read as 0, their balance then
+        balances.forEach(new BalanceStore.Visitor() {
+            @Override
+            public void visit(long userId, int balance) {
+                int i = count[0] ++;
+                if (i == userIds[0].length) {
+                    userIds[0] = Arrays.copyOf(userIds[0], i * 2);
+                    values[0] = Arrays.copyOf(values[0], i * 2);
+                }
+                userIds[0][i] = userId;
+                values[0][i] = reader.get(userId, balance);
+            }
+        });
+        return new Snapshot((int) (seq / N) + 1, (int) (seq % N), Arrays.copyOf(userIds[0], count[0]),
+                Arrays.copyOf(values[0], count[0]));
     }
 
     private int getOrZero(String userId) {
-        if (balances.containsKey(userId)) {
-            return balances.get(userId);
-        } else {
+        return balances.get(UserIds.pack(userId));
+    }
+
+    private void setBalance(String userId, int balance) {
+        balances.put(UserIds.pack(userId), balance);
+    }
+
+    // the balance as of the last durable record, read without taking any writer's lock
+    public int get(String userId) {
+        if (!UserIds.isValid(userId))
             return 0;
+        return versions.readDurable(UserIds.pack(userId));
+    }
+
+    // the balances of several accounts as of one durable record, whose sequence number is stored
+    // in seq[0]; invalid IDs read as 0
+    public int[] getMulti(List<String> userIds, long[] seq) {
+        int[] values = new int[userIds.size()];
+        try (VersionedBalances.Reader reader = versions.reader()) {
+            for (int i = 0; i < values.length; i ++) {
+                if (UserIds.isValid(userIds.get(i)))
+                    values[i] = reader.get(UserIds.pack(userIds.get(i)));
+            }
+            seq[0] = reader.seq();
         }
+        return values;
     }
 
-    public int get(String userId) {
-        return getOrZero(userId);
+    // stream the transactions in sealed blocks from fromBlock on that touch the account, oldest
+    // first, at most limit of them (all if limit <= 0); each block holding one is read once
+    public void history(String userId, int fromBlock, int limit, StreamObserver<HistoryEntry> out) throws IOException {
+        if (!UserIds.isValid(userId))
+            return;
+        long[] seqs = historyIndex.positions(UserIds.pack(userId), fromBlock, limit > 0 ? limit : Integer.MAX_VALUE);
+        Block block = null;
+        for (long seq : seqs) {
+            int id = (int) ((seq - 1) / N) + 1;
+            int offset = (int) ((seq - 1) % N);
+            if (block == null || block.getBlockID() != id)
+                block = blockStore.read(id);
+            out.onNext(HistoryEntry.newBuilder().setBlockID(id).setOffset(offset)
+                    .setTransaction(block.getTransactions(offset)).build());
+        }
+    }
+
+    // installs new versions of accounts for readers once their record has a sequence number;
+    // each account's previous value is read from the balances, which the caller updates only
+    // after the append
+    private final class Install implements WriteAheadLog.Publisher {
+        private final long[] userIds;
+        private final int[] values;
+
+        Install(long[] userIds, int[] values) {
+            this.userIds = userIds;
+            this.values = values;
+        }
+
+        @Override
+        public void publish(long seq) {
+            for (int i = 0; i < userIds.length; i ++)
+                versions.install(userIds[i], seq, values[i], balances.get(userIds[i]));
+        }
+    }
+
+    // append the record of a transaction that sets one account, then set it
+    private long appendAndSet(Transaction transaction, String userId, int value) {
+        long id = UserIds.pack(userId);
+        long seq = log.append(transaction, new Install(new long[] {id}, new int[] {value}));
+        if (seq >= 0)
+            balances.put(id, value);
+        return seq;
     }
 
     public boolean put(String userId, int value) {
         if (value < 0)
             return false;
-        if (userId.length() != 8 || !userId.matches("[a-zA-Z0-9]*"))
-            return false;
-
-        try (FileWriter writer = new FileWriter(dataDir + "log.txt", true)) {
-            writer.write("PUT " + userId + " " + value + " .\n");
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + "log.txt");
+        if (!UserIds.isValid(userId))
             return false;
-        }
-        logLength ++;
-        if (logLength >= N)
-            flushToBlock();
-        balances.put(userId, value);
-        return true;
+        return commit(Transaction.newBuilder().setType(Transaction.Types.PUT).setUserID(userId).setValue(value).build());
     }
 
     public boolean deposit(String userId, int value) {
         if (value < 0)
             return false;
-        if (userId.length() != 8 || !userId.matches("[a-zA-Z0-9]*"))
+        if (!UserIds.isValid(userId))
             return false;
-
-        try (FileWriter writer = new FileWriter(dataDir + "log.txt", true)) {
-            writer.write("DEPOSIT " + userId + " " + value + " .\n");
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + "log.txt");
-            return false;
-        }
-        logLength ++;
-        if (logLength >= N)
-            flushToBlock();
-        int balance = getOrZero(userId);
-        balances.put(userId, balance + value);
-        return true;
+        return commit(Transaction.newBuilder().setType(Transaction.Types.DEPOSIT).setUserID(userId).setValue(value).build());
     }
 
     public boolean withdraw(String userId, int value) {
-        int balance = getOrZero(userId);
-        if (value < 0 || balance - value < 0)
+        if (value < 0)
             return false;
-        if (userId.length() != 8 || !userId.matches("[a-zA-Z0-9]*"))
+        if (!UserIds.isValid(userId))
             return false;
+        return commit(Transaction.newBuilder().setType(Transaction.Types.WITHDRAW).setUserID(userId).setValue(value).build());
+    }
 
-        try (FileWriter writer = new FileWriter(dataDir + "log.txt", true)) {
-            writer.write("WITHDRAW " + userId + " " + value + " .\n");
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + "log.txt");
+    public boolean transfer(String fromId, String toId, int value) {
+        if (fromId.equals(toId)) {
             return false;
         }
- 
-        logLength ++;
-        if (logLength >= N)
-            flushToBlock();
-        balances.put(userId, balance - value);
-        return true;
+        if (!UserIds.isValid(fromId) || !UserIds.isValid(toId))
+            return false;
+        if (value < 0)
+            return false;
+        return commit(Transaction.newBuilder().setType(Transaction.Types.TRANSFER).setFromID(fromId).setToID(toId).setValue(value).build());
     }
 
-    public boolean transfer(String fromId, String toId, int value) {
-        if (fromId.equals(toId)) {
+    // apply a well-formed transaction while holding its accounts, then wait until it is durable
+    // (and replicated, if a quorum is configured)
+    private boolean commit(final Transaction transaction) {
+        if (readOnly)
+            return false;
+        if (!prefetch(Collections.singletonList(transaction)))
             return false;
+        long seq;
+        if (partitions != null) {
+            Long result = partitions.run(partitions.partitionsOf(transaction), new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return appendAndApply(transaction);
+                }
+            });
+            seq = result == null ? -1 : result;
+        } else if (transaction.getType() == Transaction.Types.TRANSFER) {
+            stripes.lock(transaction.getFromID(), transaction.getToID());
+            try {
+                seq = appendAndApply(transaction);
+            } finally {
+                stripes.unlock(transaction.getFromID(), transaction.getToID());
+            }
+        } else {
+            stripes.lock(transaction.getUserID());
+            try {
+                seq = appendAndApply(transaction);
+            } finally {
+                stripes.unlock(transaction.getUserID());
+            }
         }
-        if (fromId.length() != 8 || !fromId.matches("[a-zA-Z0-9]*") || toId.length() != 8 || !toId.matches("[a-zA-Z0-9]*"))
+        if (!log.awaitDurable(seq))
             return false;
+        if (replication != null)
+            replication.awaitQuorum(seq);
+        return true;
+    }
 
-        int fromBalance = getOrZero(fromId);
-        int toBalance = getOrZero(toId);
-        if (value < 0 || fromBalance - value < 0)
+    // read the accounts a batch touches into the tiered store before taking their locks, so no
+    // writer holds a stripe while it waits for the disk; false if the store failed
+    private boolean prefetch(List<Transaction> transactions) {
+        if (tiered == null)
+            return true;
+        try {
+            for (Transaction transaction : transactions) {
+                if (!isWellFormed(transaction))
+                    continue;
+                if (transaction.getType() == Transaction.Types.TRANSFER) {
+                    tiered.prefetch(UserIds.pack(transaction.getFromID()));
+                    tiered.prefetch(UserIds.pack(transaction.getToID()));
+                } else {
+                    tiered.prefetch(UserIds.pack(transaction.getUserID()));
+                }
+            }
+            return true;
+        } catch (BalanceStore.StoreException e) {
+            failWrites(e);
             return false;
+        }
+    }
 
-        try (FileWriter writer = new FileWriter(dataDir + "log.txt", true)) {
-            writer.write("TRANSFER " + fromId + " " + toId + " " + value + " .\n");
-        } catch (IOException e) {
-            System.out.println("Cannot write to file " + dataDir + "log.txt");
+    // the balances may now be behind records already appended, so stop taking writes; those
+    // records are replayed into the store on the next start
+    private void failWrites(BalanceStore.StoreException e) {
+        log.fail("Cannot access the balances: " + e.getMessage() + ".");
+    }
+
+    // check the transaction against the balances, append its record and apply it; returns the
+    // record's sequence number, or -1 if the transaction is rejected, the log is not writable or
+    // the balances cannot be read
+    private long appendAndApply(Transaction transaction) {
+        try {
+            return checkAndApply(transaction);
+        } catch (BalanceStore.StoreException e) {
+            failWrites(e);
+            return -1;
+        }
+    }
+
+    private long checkAndApply(Transaction transaction) {
+        switch (transaction.getType()) {
+            case PUT:
+                return appendAndSet(transaction, transaction.getUserID(), transaction.getValue());
+            case DEPOSIT:
+                return appendAndSet(transaction, transaction.getUserID(), getOrZero(transaction.getUserID()) + transaction.getValue());
+            case WITHDRAW: {
+                int balance = getOrZero(transaction.getUserID());
+                if (balance - transaction.getValue() < 0)
+                    return -1;
+                return appendAndSet(transaction, transaction.getUserID(), balance - transaction.getValue());
+            }
+            case TRANSFER: {
+                long fromId = UserIds.pack(transaction.getFromID());
+                long toId = UserIds.pack(transaction.getToID());
+                int fromBalance = balances.get(fromId) - transaction.getValue();
+                int toBalance = balances.get(toId) + transaction.getValue();
+                if (fromBalance < 0)
+                    return -1;
+                long seq = log.append(transaction, new Install(new long[] {fromId, toId}, new int[] {fromBalance, toBalance}));
+                if (seq >= 0) {
+                    balances.put(fromId, fromBalance);
+                    balances.put(toId, toBalance);
+                }
+                return seq;
+            }
+            default:
+                return -1;
+        }
+    }
+
+    // the checks put/deposit/withdraw/transfer make before looking at any balance
+    private static boolean isWellFormed(Transaction transaction) {
+        if (transaction.getValue() < 0)
             return false;
+        switch (transaction.getType()) {
+            case PUT:
+            case DEPOSIT:
+            case WITHDRAW:
+                return UserIds.isValid(transaction.getUserID());
+            case TRANSFER:
+                return UserIds.isValid(transaction.getFromID()) && UserIds.isValid(transaction.getToID())
+                        && !transaction.getFromID().equals(transaction.getToID());
+            default:
+                return false;
+        }
+    }
+
+    // apply the transactions in order, holding every account they touch, and log the successful
+    // ones with a single append so they are committed (and become visible to readers) together.
+    // If atomic, one failure drops the whole batch.
+    public boolean[] apply(List<Transaction> transactions, boolean atomic) {
+        if (readOnly)
+            return new boolean[transactions.size()];
+        return applyInOrder(transactions, atomic);
+    }
+
+    private boolean[] applyInOrder(List<Transaction> transactions, boolean atomic) {
+        boolean[] results = new boolean[transactions.size()];
+        long seq = applyAndLog(transactions, atomic, results);
+        if (seq == 0)
+            return results;
+        if (!awaitCommitted(seq))
+            return new boolean[results.length];
+        return results;
+    }
+
+    // apply and append like apply, filling in results, but return without waiting for the
+    // records to be durable; returns the sequence number to pass to awaitCommitted, 0 if no
+    // transaction succeeded, or -1 if the batch was dropped or cannot be logged
+    long applyWithoutWaiting(List<Transaction> transactions, boolean atomic, boolean[] results) {
+        if (readOnly)
+            return -1;
+        return applyAndLog(transactions, atomic, results);
+    }
+
+    // followers apply the leader's records through here, as they reject client writes
+    private long applyAndLog(final List<Transaction> transactions, final boolean atomic, final boolean[] results) {
+        if (!prefetch(transactions)) {
+            Arrays.fill(results, false);
+            return -1;
         }
+        long seq;
+        if (partitions != null) {
+            Long result = partitions.run(partitions.partitionsOf(transactions), new Callable<Long>() {
+                @Override
+                public Long call() {
+                    return applyAndAppend(transactions, atomic, results);
+                }
+            });
+            seq = result == null ? -1 : result;
+        } else {
+            int[] locked = stripes.stripesOf(transactions);
+            stripes.lock(locked);
+            try {
+                seq = applyAndAppend(transactions, atomic, results);
+            } finally {
+                stripes.unlock(locked);
+            }
+        }
+        if (seq < 0)
+            Arrays.fill(results, false);
+        return seq;
+    }
 
-        logLength ++;
-        if (logLength >= N)
-            flushToBlock();
-        balances.put(fromId, fromBalance - value);
-        balances.put(toId, toBalance + value);
+    // block until the record with the given sequence number is durable (and replicated, if a
+    // quorum is configured)
+    boolean awaitCommitted(long seq) {
+        if (!log.awaitDurable(seq))
+            return false;
+        if (replication != null)
+            replication.awaitQuorum(seq);
         return true;
     }
 
+    // apply the batch to a copy of the balances it touches, filling in results, then append the
+    // successful transactions and store the new balances; returns the sequence number of the
+    // last record, 0 if none succeeded, or -1 if the batch was dropped or the balances cannot
+    // be read
+    private long applyAndAppend(List<Transaction> transactions, boolean atomic, boolean[] results) {
+        try {
+            return applyToCopy(transactions, atomic, results);
+        } catch (BalanceStore.StoreException e) {
+            failWrites(e);
+            return -1;
+        }
+    }
+
+    private long applyToCopy(List<Transaction> transactions, boolean atomic, boolean[] results) {
+        List<Transaction> applied = new ArrayList<>(transactions.size());
+        Map<String, Integer> overlay = new HashMap<>();
+        for (int i = 0; i < results.length; i ++) {
+            Transaction transaction = transactions.get(i);
+            results[i] = isWellFormed(transaction) && applyTo(overlay, transaction);
+            if (results[i]) {
+                applied.add(transaction);
+            } else if (atomic) {
+                return -1;
+            }
+        }
+        if (applied.isEmpty())
+            return 0;
+        long[] userIds = new long[overlay.size()];
+        int[] values = new int[userIds.length];
+        int k = 0;
+        for (Map.Entry<String, Integer> entry : overlay.entrySet()) {
+            userIds[k] = UserIds.pack(entry.getKey());
+            values[k] = entry.getValue();
+            k ++;
+        }
+        long seq = log.appendAll(applied, new Install(userIds, values));
+        if (seq >= 0) {
+            for (int i = 0; i < userIds.length; i ++)
+                balances.put(userIds[i], values[i]);
+        }
+        return seq;
+    }
+
+    // updateWithTransaction against the overlay, falling back to the balances for accounts the
+    // batch has not touched yet
+    private boolean applyTo(Map<String, Integer> overlay, Transaction transaction) {
+        switch (transaction.getType()) {
+            case PUT:
+                overlay.put(transaction.getUserID(), transaction.getValue());
+                return true;
+            case DEPOSIT:
+                overlay.put(transaction.getUserID(), valueIn(overlay, transaction.getUserID()) + transaction.getValue());
+                return true;
+            case WITHDRAW: {
+                int balance = valueIn(overlay, transaction.getUserID()) - transaction.getValue();
+                if (balance < 0)
+                    return false;
+                overlay.put(transaction.getUserID(), balance);
+                return true;
+            }
+            case TRANSFER: {
+                int fromBalance = valueIn(overlay, transaction.getFromID()) - transaction.getValue();
+                int toBalance = valueIn(overlay, transaction.getToID()) + transaction.getValue();
+                if (fromBalance < 0)
+                    return false;
+                overlay.put(transaction.getFromID(), fromBalance);
+                overlay.put(transaction.getToID(), toBalance);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private int valueIn(Map<String, Integer> overlay, String userId) {
+        Integer value = overlay.get(userId);
+        return value == null ? getOrZero(userId) : value;
+    }
+
+    // on a follower, apply records the leader committed, the first with sequence number
+    // firstSeq, skipping any this server already has; returns the sequence number this server's
+    // log is durable up to, or -1 if the records leave a gap or do not apply as they did on the
+    // leader. The batch is applied atomically, so a record that does not apply leaves this
+    // server's log and balances as they were.
+    public long replicate(long firstSeq, List<Transaction> records) {
+        long next = log.getAppendedSeq() + 1;
+        if (firstSeq > next) {
+            System.out.println("Replicated records start at " + firstSeq + ", but this server expects " + next + ".");
+            return -1;
+        }
+        int skip = (int) Math.min(records.size(), next - firstSeq);
+        List<Transaction> rest = records.subList(skip, records.size());
+        if (!rest.isEmpty()) {
+            boolean[] results = applyInOrder(rest, true);
+            if (!results[0]) {
+                System.out.println("Replicated records " + next + " to " + (next + rest.size() - 1)
+                        + " do not apply on this server; none were applied.");
+                return -1;
+            }
+        }
+        return log.getDurableSeq();
+    }
+
+    public long getDurableSeq() {
+        return log.getDurableSeq();
+    }
+
+    ReplicationSource getReplication() {
+        return replication;
+    }
+
     public int getLogLength() {
-        return logLength;
+        return log.getLength();
     }
 
 }
@@ -0,0 +1,35 @@
+package iiis.systems.os.blockdb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Balances in a ConcurrentHashMap, with a boxed key and value per account.
+class HashBalanceStore implements BalanceStore {
+    private final ConcurrentHashMap<Long, Integer> balances;
+
+    HashBalanceStore(int expectedAccounts) {
+        balances = new ConcurrentHashMap<>(expectedAccounts);
+    }
+
+    @Override
+    public int get(long userId) {
+        Integer balance = balances.get(userId);
+        return balance == null ? 0 : balance;
+    }
+
+    @Override
+    public void put(long userId, int balance) {
+        balances.put(userId, balance);
+    }
+
+    @Override
+    public int size() {
+        return balances.size();
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<Long, Integer> entry : balances.entrySet())
+            visitor.visit(entry.getKey(), entry.getValue());
+    }
+}
@@ -0,0 +1,122 @@
+package iiis.systems.os.blockdb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A lock-free log-linear histogram of non-negative longs, in the style of HdrHistogram.
+//
+// Values below 128 get a bucket each; above that, every power of two is split into 64 equal
+// buckets, so a reported percentile is within 1/64 (about 1.6%) of the true value.
+//
+// Recording is one atomic increment of the value's bucket plus an add to the sum in the calling
+// thread's cell; the max in that cell is only written when the value exceeds it. Threads that
+// record different values share no counter, and the count, sum and max are merged from the
+// buckets and cells when they are read.
+class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    private static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * HALF;
+    // each cell is a sum and a max, padded to its own 64-byte cache line
+    private static final int CELL_STRIDE = 8;
+    private static final int CELLS;
+
+    static {
+        int cells = 1;
+        while (cells < Runtime.getRuntime().availableProcessors() && cells < 64)
+            cells <<= 1;
+        CELLS = cells;
+    }
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray cells = new AtomicLongArray(CELLS * CELL_STRIDE);
+
+    Histogram(String name, String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getUnit() {
+        return unit;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // the largest value that falls into the bucket
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket - SUB_COUNT) / HALF + 1;
+        long sub = (bucket - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        int cell = cellOf(Thread.currentThread()) * CELL_STRIDE;
+        cells.addAndGet(cell, value);
+        long current;
+        while (value > (current = cells.get(cell + 1)) && !cells.compareAndSet(cell + 1, current, value)) {
+        }
+    }
+
+    private static int cellOf(Thread thread) {
+        long id = thread.getId();
+        return (int) ((id ^ id >>> 16) * 0x9e3779b9L >>> 16) & (CELLS - 1);
+    }
+
+    // record the time since startNanos, in microseconds
+    void recordMicrosSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    long getCount() {
+        long n = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket ++)
+            n += counts.get(bucket);
+        return n;
+    }
+
+    double getMean() {
+        long n = getCount();
+        long sum = 0;
+        for (int cell = 0; cell < CELLS; cell ++)
+            sum += cells.get(cell * CELL_STRIDE);
+        return n == 0 ? 0 : (double) sum / n;
+    }
+
+    long getMax() {
+        long max = 0;
+        for (int cell = 0; cell < CELLS; cell ++)
+            max = Math.max(max, cells.get(cell * CELL_STRIDE + 1));
+        return max;
+    }
+
+    // the value at the given percentile (0-100), capped at the maximum recorded value
+    long getPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0)
+            return 0;
+        long max = getMax();
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket ++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(highestIn(bucket), max);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,814 @@
+package iiis.systems.os.blockdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Secondary index from each account to the transactions in sealed blocks that touch it, so an
+// account's history is read from the few blocks holding it instead of by scanning every block.
+//
+// A transaction's position is its log sequence number: block (seq - 1) / N + 1, offset
+// (seq - 1) % N. The flusher adds every block once it is sealed. The index lives on disk; memory
+// holds only the entries of the blocks since the last run and a small directory of each run.
+//
+// history-<first>-<last>.run is a run: the entries of blocks first..last sorted by account, then
+// position. It is a 32-byte header of int magic "BDHR", int version, int first, int last,
+// long count and a CRC32 of those and the directory; count x (long packed user id, long seq) in
+// pages of 256; and the directory, the account of each page's first entry. A lookup binary
+// searches each run's directory and reads the pages holding the account.
+//
+// Blocks since the last run are also appended to history.idx, one record per block:
+//
+//   int blockId, int count, count x (long packed user id, int offset), long CRC32 of the record
+//
+// Every RUN_BLOCKS blocks they are sorted into a new run, which is fsynced and renamed into place
+// before history.idx starts over. A merger thread merges a run into the one before it while that
+// one covers no more blocks, so a lookup reads O(log) runs. history.idx is not fsynced. On
+// startup only the runs' headers and directories are read; a damaged run or one not following on
+// from the runs before it is deleted, history.idx is read up to the first torn, corrupt or
+// out-of-order record, and any sealed block after that is read again. Deleting history.idx and
+// the runs rebuilds the index from the block files.
+class HistoryIndex {
+    private static final String FILE_NAME = "history.idx";
+    private static final String RUN_PREFIX = "history-";
+    private static final String RUN_SUFFIX = ".run";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int RUN_MAGIC = 0x42444852;
+    private static final int RUN_VERSION = 1;
+    private static final int RUN_HEADER = 32;
+    private static final int ENTRY = 16;
+    private static final int PAGE_ENTRIES = 256;
+    // blocks kept in memory before they are written out as a run
+    static final int RUN_BLOCKS = 256;
+
+    // one run file, open for lookups
+    private static final class Run {
+        final String path;
+        final int firstBlock;
+        final int lastBlock;
+        final long count;
+        // the account of the first entry of each page
+        final long[] directory;
+        final FileChannel channel;
+
+        Run(String path, int firstBlock, int lastBlock, long count, long[] directory, FileChannel channel) {
+            this.path = path;
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.count = count;
+            this.directory = directory;
+            this.channel = channel;
+        }
+
+        int blocks() {
+            return lastBlock - firstBlock + 1;
+        }
+
+        // add the positions of the account from fromSeq on to out, until it is full
+        void find(long userId, long fromSeq, Positions out) throws IOException {
+            int lo = 0;
+            int hi = directory.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (directory[mid] < userId)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            // the account's entries may start on the page before the first one it begins
+            ByteBuffer page = ByteBuffer.allocate(PAGE_ENTRIES * ENTRY);
+            for (int pageNo = Math.max(0, lo - 1); pageNo < directory.length; pageNo ++) {
+                long first = (long) pageNo * PAGE_ENTRIES;
+                int entries = (int) Math.min(PAGE_ENTRIES, count - first);
+                page.clear();
+                page.limit(entries * ENTRY);
+                readFully(channel, page, RUN_HEADER + first * ENTRY);
+                for (int i = 0; i < entries; i ++) {
+                    long id = page.getLong(i * ENTRY);
+                    if (id < userId)
+                        continue;
+                    if (id > userId)
+                        return;
+                    long seq = page.getLong(i * ENTRY + 8);
+                    if (seq >= fromSeq && !out.add(seq))
+                        return;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Cannot close file " + path);
+            }
+        }
+    }
+
+    // the result of a lookup: at most limit positions, in increasing order
+    private static final class Positions {
+        private final int limit;
+        private long[] seqs = new long[16];
+        private int size = 0;
+
+        Positions(int limit) {
+            this.limit = limit;
+        }
+
+        // false once limit positions were added
+        boolean add(long seq) {
+            if (size == limit)
+                return false;
+            if (size == seqs.length)
+                seqs = Arrays.copyOf(seqs, size * 2);
+            seqs[size ++] = seq;
+            return size < limit;
+        }
+
+        boolean full() {
+            return size == limit;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(seqs, size);
+        }
+    }
+
+    // writes a run to a temporary file and renames it into place once it is complete and durable
+    private final class RunWriter {
+        private final int firstBlock;
+        private final int lastBlock;
+        private final String path;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private long count = 0;
+        private long[] directory = new long[16];
+
+        RunWriter(int firstBlock, int lastBlock) throws IOException {
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.path = runPath(firstBlock, lastBlock);
+            this.file = new FileOutputStream(path + TEMPORARY_SUFFIX);
+            this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.write(new byte[RUN_HEADER]);
+        }
+
+        void write(long userId, long seq) throws IOException {
+            if (count % PAGE_ENTRIES == 0) {
+                int page = (int) (count / PAGE_ENTRIES);
+                if (page == directory.length)
+                    directory = Arrays.copyOf(directory, page * 2);
+                directory[page] = userId;
+            }
+            out.writeLong(userId);
+            out.writeLong(seq);
+            count ++;
+        }
+
+        Run finish() throws IOException {
+            long[] pages = Arrays.copyOf(directory, (int) ((count + PAGE_ENTRIES - 1) / PAGE_ENTRIES));
+            ByteBuffer header = ByteBuffer.allocate(RUN_HEADER);
+            try {
+                for (long account : pages)
+                    out.writeLong(account);
+                out.flush();
+                header.putInt(RUN_MAGIC).putInt(RUN_VERSION).putInt(firstBlock).putInt(lastBlock).putLong(count);
+                header.putLong(checksum(header.array(), pages));
+                header.flip();
+                FileChannel channel = file.getChannel();
+                while (header.hasRemaining())
+                    channel.write(header, header.position());
+                channel.force(true);
+            } finally {
+                file.close();
+            }
+            Files.move(Paths.get(path + TEMPORARY_SUFFIX), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+            Util.syncDirectory(dataDir);
+            return new Run(path, firstBlock, lastBlock, count, pages, FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+        }
+
+        void abandon() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // deleted below either way
+            }
+            new File(path + TEMPORARY_SUFFIX).delete();
+        }
+    }
+
+    private final String dataDir;
+    private final int N;
+    private final AtomicLong entries = new AtomicLong();
+    // blocks 1 .. indexedBlocks are in the index
+    private volatile int indexedBlocks = 0;
+    private RandomAccessFile file;
+
+    // the runs in block order, covering blocks 1 onwards without gaps; lookups read them under
+    // the read lock, and a run is only closed under the write lock
+    private final ReentrantReadWriteLock runsLock = new ReentrantReadWriteLock();
+    private Run[] runs = new Run[0];
+    private boolean runFailed = false;
+
+    // the entries of the blocks after the last run, in position order, guarded by this;
+    // memStarts[i] is the first entry of block memFirstBlock + i. Only the flusher adds to them
+    private long[] memUserIds = new long[1024];
+    private long[] memSeqs = new long[1024];
+    private int memSize = 0;
+    private int[] memStarts = new int[RUN_BLOCKS + 1];
+    private int memBlocks = 0;
+    private int memFirstBlock = 1;
+
+    private final Object mergeSignal = new Object();
+    private boolean mergeRequested = false;
+    private volatile boolean closed = false;
+    private Thread merger;
+
+    HistoryIndex(String dataDir, int N) {
+        this.dataDir = dataDir;
+        this.N = N;
+    }
+
+    // open the runs and history.idx and index the sealed blocks they are missing; called during
+    // recovery, before the flusher starts
+    void open(BlockStore store, int lastSealed) {
+        long start = System.currentTimeMillis();
+        int covered = openRuns();
+        if (covered > lastSealed) {
+            System.out.println("History index is ahead of the block files. Rebuilding it.");
+            for (Run run : runs)
+                delete(run);
+            runs = new Run[0];
+            entries.set(0);
+            covered = 0;
+        }
+        indexedBlocks = covered;
+        memFirstBlock = covered + 1;
+        int runCount = runs.length;
+        long valid = load(lastSealed);
+        try {
+            file = new RandomAccessFile(dataDir + FILE_NAME, "rw");
+            if (runs.length > runCount) {
+                // runs were cut from history.idx; it now holds only the blocks after them
+                rewriteFile();
+            } else if (file.length() != valid) {
+                System.out.println("Discarding the incomplete tail of " + dataDir + FILE_NAME + ".");
+                file.setLength(valid);
+            }
+            file.seek(file.length());
+        } catch (IOException e) {
+            System.out.println("Cannot open file " + dataDir + FILE_NAME + "; blocks since the last run are indexed again on the next start.");
+            closeFile();
+        }
+
+        int first = indexedBlocks + 1;
+        for (int blockId = first; blockId <= lastSealed; blockId ++) {
+            try {
+                add(blockId, store.read(blockId).getTransactionsList());
+            } catch (IOException e) {
+                System.out.println("Cannot read block " + blockId + ": " + e.getMessage() + ". History stops at block " + (blockId - 1) + ".");
+                break;
+            }
+        }
+        if (lastSealed >= first)
+            System.out.println("Indexed history of blocks " + first + " to " + lastSealed + " in " + (System.currentTimeMillis() - start) + " ms.");
+
+        merger = new Thread("history-merger") {
+            @Override
+            public void run() {
+                mergeLoop();
+            }
+        };
+        merger.setDaemon(true);
+        merger.start();
+        requestMerge();
+    }
+
+    // open the runs that cover blocks 1 onwards without gaps, deleting the others; returns the
+    // last block they cover
+    private int openRuns() {
+        File[] files = new File(dataDir).listFiles();
+        List<Run> found = new ArrayList<>();
+        for (File candidate : files == null ? new File[0] : files) {
+            String name = candidate.getName();
+            if (!name.startsWith(RUN_PREFIX))
+                continue;
+            if (name.endsWith(RUN_SUFFIX + TEMPORARY_SUFFIX)) {
+                candidate.delete();
+                continue;
+            }
+            if (!name.endsWith(RUN_SUFFIX))
+                continue;
+            Run run = openRun(candidate.getPath(), name);
+            if (run == null) {
+                System.out.println("Discarding the damaged history run " + candidate.getPath() + ".");
+                candidate.delete();
+            } else {
+                found.add(run);
+            }
+        }
+        // a merged run and the runs it was merged from may both be there; keep the merged one
+        Collections.sort(found, new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                if (a.firstBlock != b.firstBlock)
+                    return a.firstBlock < b.firstBlock ? -1 : 1;
+                return Integer.compare(b.lastBlock, a.lastBlock);
+            }
+        });
+        List<Run> kept = new ArrayList<>();
+        int expected = 1;
+        long count = 0;
+        for (Run run : found) {
+            if (run.firstBlock == expected) {
+                kept.add(run);
+                expected = run.lastBlock + 1;
+                count += run.count;
+            } else {
+                if (run.lastBlock >= expected)
+                    System.out.println("History run " + run.path + " does not follow on from block " + (expected - 1) + ". Discarding it.");
+                delete(run);
+            }
+        }
+        runs = kept.toArray(new Run[kept.size()]);
+        entries.set(count);
+        return expected - 1;
+    }
+
+    // a run with its directory, or null if the file is not a complete run
+    private Run openRun(String path, String name) {
+        int firstBlock;
+        int lastBlock;
+        try {
+            String[] range = name.substring(RUN_PREFIX.length(), name.length() - RUN_SUFFIX.length()).split("-");
+            firstBlock = Integer.parseInt(range[0]);
+            lastBlock = Integer.parseInt(range[1]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(RUN_HEADER);
+            if (channel.size() < RUN_HEADER)
+                throw new EOFException();
+            readFully(channel, header, 0);
+            long count = header.getLong(16);
+            long pages = (count + PAGE_ENTRIES - 1) / PAGE_ENTRIES;
+            if (header.getInt(0) != RUN_MAGIC || header.getInt(4) != RUN_VERSION || header.getInt(8) != firstBlock
+                    || header.getInt(12) != lastBlock || count < 0 || pages > Integer.MAX_VALUE
+                    || channel.size() != RUN_HEADER + count * ENTRY + pages * 8)
+                throw new EOFException();
+            ByteBuffer bytes = ByteBuffer.allocate((int) pages * 8);
+            readFully(channel, bytes, RUN_HEADER + count * ENTRY);
+            bytes.flip();
+            long[] directory = new long[(int) pages];
+            bytes.asLongBuffer().get(directory);
+            if (checksum(header.array(), directory) != header.getLong(24))
+                throw new EOFException();
+            return new Run(path, firstBlock, lastBlock, count, directory, channel);
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // the file is deleted next
+                }
+            }
+            return null;
+        }
+    }
+
+    // CRC32 of the first 24 bytes of a run header and the directory
+    private static long checksum(byte[] header, long[] directory) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, 24);
+        ByteBuffer bytes = ByteBuffer.allocate(directory.length * 8);
+        bytes.asLongBuffer().put(directory);
+        crc.update(bytes.array(), 0, bytes.capacity());
+        return crc.getValue();
+    }
+
+    // read the records of history.idx after the runs into memory, writing runs as they fill up;
+    // returns the length of its valid prefix in bytes
+    private long load(int lastSealed) {
+        File indexFile = new File(dataDir + FILE_NAME);
+        if (!indexFile.exists())
+            return 0;
+        long valid = 0;
+        try (FileInputStream in = new FileInputStream(indexFile)) {
+            CRC32 crc = new CRC32();
+            DataInputStream data = new DataInputStream(new CheckedInputStream(new BufferedInputStream(in), crc));
+            while (true) {
+                crc.reset();
+                int blockId;
+                try {
+                    blockId = data.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int count = data.readInt();
+                // blocks a run already holds are left from before it was written
+                boolean covered = blockId < memFirstBlock;
+                if ((!covered && blockId != indexedBlocks + 1) || blockId > lastSealed || count < 0 || count > 2 * N)
+                    break;
+                long[] userIds = new long[count];
+                int[] offsets = new int[count];
+                for (int i = 0; i < count; i ++) {
+                    userIds[i] = data.readLong();
+                    offsets[i] = data.readInt();
+                }
+                long checksum = crc.getValue();
+                if (data.readLong() != checksum)
+                    break;
+                valid += 16 + 12L * count;
+                if (covered)
+                    continue;
+                addToMemory(blockId, userIds, offsets, count);
+                if (memBlocks >= RUN_BLOCKS)
+                    writeRun();
+            }
+        } catch (EOFException e) {
+            // torn record at the end
+        } catch (IOException e) {
+            System.out.println("Cannot read file " + dataDir + FILE_NAME + ": " + e.getMessage());
+        }
+        return valid;
+    }
+
+    // index a sealed block; blocks are added in order, once each
+    void add(int blockId, List<Transaction> transactions) {
+        if (blockId != indexedBlocks + 1)
+            return;
+        long[] userIds = new long[2 * transactions.size()];
+        int[] offsets = new int[userIds.length];
+        int count = 0;
+        for (int offset = 0; offset < transactions.size(); offset ++) {
+            Transaction transaction = transactions.get(offset);
+            if (transaction.getType() == Transaction.Types.TRANSFER) {
+                count = collect(transaction.getFromID(), offset, userIds, offsets, count);
+                if (!transaction.getToID().equals(transaction.getFromID()))
+                    count = collect(transaction.getToID(), offset, userIds, offsets, count);
+            } else {
+                count = collect(transaction.getUserID(), offset, userIds, offsets, count);
+            }
+        }
+        addToMemory(blockId, userIds, offsets, count);
+        append(blockId, userIds, offsets, count);
+        if (memBlocks >= RUN_BLOCKS && writeRun())
+            rewriteFile();
+    }
+
+    private static int collect(String userId, int offset, long[] userIds, int[] offsets, int count) {
+        if (!UserIds.isValid(userId))
+            return count;
+        userIds[count] = UserIds.pack(userId);
+        offsets[count] = offset;
+        return count + 1;
+    }
+
+    private synchronized void addToMemory(int blockId, long[] userIds, int[] offsets, int count) {
+        if (memSize + count > memUserIds.length) {
+            int capacity = Math.max(memUserIds.length * 2, memSize + count);
+            memUserIds = Arrays.copyOf(memUserIds, capacity);
+            memSeqs = Arrays.copyOf(memSeqs, capacity);
+        }
+        if (memBlocks == memStarts.length)
+            memStarts = Arrays.copyOf(memStarts, memBlocks * 2);
+        memStarts[memBlocks ++] = memSize;
+        for (int i = 0; i < count; i ++) {
+            memUserIds[memSize] = userIds[i];
+            memSeqs[memSize] = (long) (blockId - 1) * N + offsets[i] + 1;
+            memSize ++;
+        }
+        indexedBlocks = blockId;
+        entries.addAndGet(count);
+    }
+
+    // write the first RUN_BLOCKS blocks in memory out as a run and drop them from memory; called
+    // by the thread adding blocks. Returns false if the run cannot be written, in which case the
+    // blocks stay in memory and the next block tries again
+    private boolean writeRun() {
+        int blocks = RUN_BLOCKS;
+        int end = blocks < memBlocks ? memStarts[blocks] : memSize;
+        long[] userIds = Arrays.copyOf(memUserIds, end);
+        long[] seqs = Arrays.copyOf(memSeqs, end);
+        sortByAccount(userIds, seqs);
+        RunWriter writer = null;
+        Run run;
+        try {
+            writer = new RunWriter(memFirstBlock, memFirstBlock + blocks - 1);
+            for (int i = 0; i < end; i ++)
+                writer.write(userIds[i], seqs[i]);
+            run = writer.finish();
+        } catch (IOException e) {
+            if (writer != null)
+                writer.abandon();
+            if (!runFailed)
+                System.out.println("Cannot write a history run to " + dataDir + ": " + e.getMessage() + "; its blocks stay in memory.");
+            runFailed = true;
+            return false;
+        }
+        runFailed = false;
+        runsLock.writeLock().lock();
+        try {
+            runs = Arrays.copyOf(runs, runs.length + 1);
+            runs[runs.length - 1] = run;
+            synchronized (this) {
+                System.arraycopy(memUserIds, end, memUserIds, 0, memSize - end);
+                System.arraycopy(memSeqs, end, memSeqs, 0, memSize - end);
+                memSize -= end;
+                for (int i = blocks; i < memBlocks; i ++)
+                    memStarts[i - blocks] = memStarts[i] - end;
+                memBlocks -= blocks;
+                memFirstBlock += blocks;
+            }
+        } finally {
+            runsLock.writeLock().unlock();
+        }
+        requestMerge();
+        return true;
+    }
+
+    // sort the entries by account, keeping each account's in position order
+    private static void sortByAccount(long[] userIds, long[] seqs) {
+        int n = userIds.length;
+        long[] idBuffer = new long[n];
+        long[] seqBuffer = new long[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                for (int k = lo; k < hi; k ++) {
+                    if (i < mid && (j >= hi || userIds[i] <= userIds[j])) {
+                        idBuffer[k] = userIds[i];
+                        seqBuffer[k] = seqs[i ++];
+                    } else {
+                        idBuffer[k] = userIds[j];
+                        seqBuffer[k] = seqs[j ++];
+                    }
+                }
+            }
+            System.arraycopy(idBuffer, 0, userIds, 0, n);
+            System.arraycopy(seqBuffer, 0, seqs, 0, n);
+        }
+    }
+
+    // start history.idx over with the blocks still in memory
+    private synchronized void rewriteFile() {
+        if (file == null)
+            return;
+        try {
+            file.setLength(0);
+            file.seek(0);
+        } catch (IOException e) {
+            System.out.println("Cannot truncate file " + dataDir + FILE_NAME + "; blocks since the last run are indexed again on the next start.");
+            closeFile();
+            return;
+        }
+        for (int b = 0; b < memBlocks; b ++) {
+            int from = memStarts[b];
+            int to = b + 1 < memBlocks ? memStarts[b + 1] : memSize;
+            long[] userIds = Arrays.copyOfRange(memUserIds, from, to);
+            int[] offsets = new int[to - from];
+            for (int i = from; i < to; i ++)
+                offsets[i - from] = (int) ((memSeqs[i] - 1) % N);
+            append(memFirstBlock + b, userIds, offsets, to - from);
+        }
+    }
+
+    // append the block's record to history.idx
+    private synchronized void append(int blockId, long[] userIds, int[] offsets, int count) {
+        if (file == null)
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 12 * count);
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(blockId);
+            out.writeInt(count);
+            for (int i = 0; i < count; i ++) {
+                out.writeLong(userIds[i]);
+                out.writeInt(offsets[i]);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            file.write(bytes.toByteArray());
+        } catch (IOException e) {
+            // later records must not follow a partial one; the next start reindexes from here
+            System.out.println("Cannot write to file " + dataDir + FILE_NAME + "; blocks since the last run are indexed again on the next start.");
+            closeFile();
+        }
+    }
+
+    // sequence numbers of at most limit transactions touching the account, from block fromBlock on
+    long[] positions(long userId, int fromBlock, int limit) throws IOException {
+        long fromSeq = (long) (Math.max(1, fromBlock) - 1) * N + 1;
+        Positions out = new Positions(limit);
+        runsLock.readLock().lock();
+        try {
+            for (Run run : runs) {
+                if (out.full())
+                    break;
+                if (run.lastBlock >= fromBlock)
+                    run.find(userId, fromSeq, out);
+            }
+            synchronized (this) {
+                for (int i = 0; i < memSize && !out.full(); i ++) {
+                    if (memUserIds[i] == userId && memSeqs[i] >= fromSeq)
+                        out.add(memSeqs[i]);
+                }
+            }
+        } finally {
+            runsLock.readLock().unlock();
+        }
+        return out.toArray();
+    }
+
+    int getIndexedBlocks() {
+        return indexedBlocks;
+    }
+
+    long getEntries() {
+        return entries.get();
+    }
+
+    private void requestMerge() {
+        synchronized (mergeSignal) {
+            mergeRequested = true;
+            mergeSignal.notifyAll();
+        }
+    }
+
+    private void mergeLoop() {
+        while (true) {
+            synchronized (mergeSignal) {
+                while (!mergeRequested && !closed) {
+                    try {
+                        mergeSignal.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                    return;
+                mergeRequested = false;
+            }
+            while (!closed && mergeOnce()) {
+            }
+        }
+    }
+
+    // merge the newest run that covers at least as many blocks as the one before it into that
+    // one; returns whether a merge was done
+    private boolean mergeOnce() {
+        Run older = null;
+        Run newer = null;
+        runsLock.readLock().lock();
+        try {
+            for (int i = runs.length - 2; i >= 0; i --) {
+                if (runs[i].blocks() <= runs[i + 1].blocks()) {
+                    older = runs[i];
+                    newer = runs[i + 1];
+                    break;
+                }
+            }
+        } finally {
+            runsLock.readLock().unlock();
+        }
+        if (older == null)
+            return false;
+        Run merged = merge(older, newer);
+        if (merged == null)
+            return false;
+        // only this thread removes runs, so the two are still next to each other
+        runsLock.writeLock().lock();
+        try {
+            List<Run> list = new ArrayList<>(Arrays.asList(runs));
+            int i = list.indexOf(older);
+            list.set(i, merged);
+            list.remove(i + 1);
+            runs = list.toArray(new Run[list.size()]);
+            older.close();
+            newer.close();
+        } finally {
+            runsLock.writeLock().unlock();
+        }
+        new File(older.path).delete();
+        new File(newer.path).delete();
+        return true;
+    }
+
+    // a run with the entries of both, or null if it cannot be written or the index is closing
+    private Run merge(Run older, Run newer) {
+        RunWriter writer = null;
+        try (DataInputStream a = entriesOf(older); DataInputStream b = entriesOf(newer)) {
+            writer = new RunWriter(older.firstBlock, newer.lastBlock);
+            long restA = older.count;
+            long restB = newer.count;
+            long idA = restA > 0 ? a.readLong() : 0;
+            long idB = restB > 0 ? b.readLong() : 0;
+            while (restA > 0 || restB > 0) {
+                if (closed) {
+                    writer.abandon();
+                    return null;
+                }
+                // the older run's positions of an account come before the newer run's
+                if (restB == 0 || (restA > 0 && idA <= idB)) {
+                    writer.write(idA, a.readLong());
+                    if (-- restA > 0)
+                        idA = a.readLong();
+                } else {
+                    writer.write(idB, b.readLong());
+                    if (-- restB > 0)
+                        idB = b.readLong();
+                }
+            }
+            return writer.finish();
+        } catch (IOException e) {
+            if (writer != null)
+                writer.abandon();
+            System.out.println("Cannot merge history runs " + older.path + " and " + newer.path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static DataInputStream entriesOf(Run run) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.path), 1 << 16));
+        in.readFully(new byte[RUN_HEADER]);
+        return in;
+    }
+
+    private String runPath(int firstBlock, int lastBlock) {
+        return dataDir + RUN_PREFIX + firstBlock + "-" + lastBlock + RUN_SUFFIX;
+    }
+
+    private static void delete(Run run) {
+        run.close();
+        new File(run.path).delete();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    void close() {
+        closed = true;
+        if (merger != null) {
+            requestMerge();
+            try {
+                merger.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        runsLock.writeLock().lock();
+        try {
+            for (Run run : runs)
+                run.close();
+        } finally {
+            runsLock.writeLock().unlock();
+        }
+        closeFile();
+    }
+
+    private synchronized void closeFile() {
+        if (file == null)
+            return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Cannot close file " + dataDir + FILE_NAME);
+        }
+        file = null;
+    }
+}
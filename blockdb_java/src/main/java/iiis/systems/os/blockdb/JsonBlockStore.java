@@ -0,0 +1,35 @@
+package iiis.systems.os.blockdb;
+
+import com.google.protobuf.util.JsonFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Blocks as pretty-printed JSON, the original <blockId>.json format.
+class JsonBlockStore extends BlockStore {
+    JsonBlockStore(String dataDir) {
+        super(dataDir);
+    }
+
+    @Override
+    String extension() {
+        return "json";
+    }
+
+    @Override
+    BlockStore alternate() {
+        return new BinaryBlockStore(dataDir);
+    }
+
+    @Override
+    byte[] encode(Block block) throws IOException {
+        return JsonFormat.printer().print(block).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    Block decode(byte[] data) throws IOException {
+        Block.Builder block = Block.newBuilder();
+        JsonFormat.parser().merge(new String(data, StandardCharsets.UTF_8), block);
+        return block.build();
+    }
+}
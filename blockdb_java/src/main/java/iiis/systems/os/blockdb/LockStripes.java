@@ -0,0 +1,104 @@
+package iiis.systems.os.blockdb;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A fixed array of locks that user IDs are hashed onto.
+//
+// Transactions lock the stripes of every account they touch, always in increasing stripe
+// order, so two transfers in opposite directions cannot deadlock.
+class LockStripes {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    LockStripes(int count) {
+        int size = 1;
+        while (size < count)
+            size <<= 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i ++)
+            locks[i] = new ReentrantLock();
+        mask = size - 1;
+    }
+
+    int stripeOf(String userId) {
+        int h = userId.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    void lock(String userId) {
+        locks[stripeOf(userId)].lock();
+    }
+
+    void unlock(String userId) {
+        locks[stripeOf(userId)].unlock();
+    }
+
+    void lock(String first, String second) {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        if (a == b) {
+            locks[a].lock();
+        } else {
+            locks[Math.min(a, b)].lock();
+            locks[Math.max(a, b)].lock();
+        }
+    }
+
+    void unlock(String first, String second) {
+        int a = stripeOf(first);
+        int b = stripeOf(second);
+        locks[a].unlock();
+        if (a != b)
+            locks[b].unlock();
+    }
+
+    // the distinct stripes of every account the transactions touch, in locking order
+    int[] stripesOf(List<Transaction> transactions) {
+        boolean[] used = new boolean[locks.length];
+        int count = 0;
+        for (Transaction transaction : transactions) {
+            if (transaction.getType() == Transaction.Types.TRANSFER) {
+                count += mark(used, transaction.getFromID());
+                count += mark(used, transaction.getToID());
+            } else {
+                count += mark(used, transaction.getUserID());
+            }
+        }
+        int[] stripes = new int[count];
+        for (int i = 0, j = 0; i < used.length; i ++) {
+            if (used[i])
+                stripes[j ++] = i;
+        }
+        return stripes;
+    }
+
+    private int mark(boolean[] used, String userId) {
+        int stripe = stripeOf(userId);
+        if (used[stripe])
+            return 0;
+        used[stripe] = true;
+        return 1;
+    }
+
+    void lock(int[] stripes) {
+        for (int stripe : stripes)
+            locks[stripe].lock();
+    }
+
+    void unlock(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i --)
+            locks[stripes[i]].unlock();
+    }
+
+    // take every stripe, e.g. to observe a state no transaction is halfway through
+    void lockAll() {
+        for (ReentrantLock lock : locks)
+            lock.lock();
+    }
+
+    void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i --)
+            locks[i].unlock();
+    }
+}
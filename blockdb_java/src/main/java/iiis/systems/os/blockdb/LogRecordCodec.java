@@ -0,0 +1,192 @@
+package iiis.systems.os.blockdb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Reads and writes the text records of log.txt, e.g. "TRANSFER fromID toID value .\n", directly
+// as ASCII bytes: encoding goes into a caller-owned (typically direct) ByteBuffer, and decoding
+// scans a byte range in place instead of splitting the line into Strings. Neither allocates,
+// apart from the ID Strings a decoded Transaction needs.
+final class LogRecordCodec {
+    // longest possible record: "WITHDRAW " or "TRANSFER " + two IDs + a signed int + " .\n"
+    static final int MAX_RECORD_LENGTH = 9 + 2 * (UserIds.LENGTH + 1) + 11 + 3;
+
+    private static final byte[] PUT = bytes("PUT ");
+    private static final byte[] DEPOSIT = bytes("DEPOSIT ");
+    private static final byte[] WITHDRAW = bytes("WITHDRAW ");
+    private static final byte[] TRANSFER = bytes("TRANSFER ");
+    private static final byte[] END = bytes(" .\n");
+
+    private LogRecordCodec() {
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // append the record to out, which must have MAX_RECORD_LENGTH bytes remaining
+    static void encode(Transaction transaction, ByteBuffer out) {
+        switch (transaction.getType()) {
+            case PUT:
+                out.put(PUT);
+                break;
+            case DEPOSIT:
+                out.put(DEPOSIT);
+                break;
+            case WITHDRAW:
+                out.put(WITHDRAW);
+                break;
+            case TRANSFER:
+                out.put(TRANSFER);
+                putId(transaction.getFromID(), out);
+                out.put((byte) ' ');
+                putId(transaction.getToID(), out);
+                putInt(transaction.getValue(), out);
+                out.put(END);
+                return;
+            default:
+                throw new IllegalArgumentException("Cannot log a " + transaction.getType() + " transaction.");
+        }
+        putId(transaction.getUserID(), out);
+        putInt(transaction.getValue(), out);
+        out.put(END);
+    }
+
+    private static void putId(String userId, ByteBuffer out) {
+        for (int i = 0; i < userId.length(); i ++)
+            out.put((byte) userId.charAt(i));
+    }
+
+    // a space followed by the decimal digits of value
+    private static void putInt(int value, ByteBuffer out) {
+        out.put((byte) ' ');
+        long v = value;
+        if (v < 0) {
+            out.put((byte) '-');
+            v = -v;
+        }
+        long divisor = 1;
+        while (divisor * 10 <= v)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            out.put((byte) ('0' + (v / divisor) % 10));
+    }
+
+    // parse the record in line[from, to), excluding the newline, into transaction
+    static boolean decode(byte[] line, int from, int to, Transaction.Builder transaction) {
+        // a record has at most 5 space separated tokens; a sixth means the line is malformed
+        long t0 = nextToken(line, from, to);
+        long t1 = nextToken(line, end(t0), to);
+        long t2 = nextToken(line, end(t1), to);
+        long t3 = nextToken(line, end(t2), to);
+        long t4 = nextToken(line, end(t3), to);
+        long t5 = nextToken(line, end(t4), to);
+        int tokens = isEmpty(t0) ? 0 : isEmpty(t1) ? 1 : isEmpty(t2) ? 2 : isEmpty(t3) ? 3 : isEmpty(t4) ? 4 : isEmpty(t5) ? 5 : 6;
+        long last = tokens == 4 ? t3 : tokens == 5 ? t4 : tokens == 3 ? t2 : tokens == 2 ? t1 : t0;
+        if (tokens == 0 || line[start(last)] != '.') {
+            System.out.println("Unexpected line in log.");
+            return false;
+        }
+        int expected;
+        Transaction.Types type;
+        if (matches(line, t0, PUT)) {
+            type = Transaction.Types.PUT;
+            expected = 4;
+        } else if (matches(line, t0, DEPOSIT)) {
+            type = Transaction.Types.DEPOSIT;
+            expected = 4;
+        } else if (matches(line, t0, WITHDRAW)) {
+            type = Transaction.Types.WITHDRAW;
+            expected = 4;
+        } else if (matches(line, t0, TRANSFER)) {
+            type = Transaction.Types.TRANSFER;
+            expected = 5;
+        } else {
+            System.out.println("A log record should start with PUT, DEPOSIT, WITHDRAW or TRANSFER.");
+            return false;
+        }
+        if (tokens != expected) {
+            if (type == Transaction.Types.TRANSFER)
+                System.out.println("TRANSFER transaction records should be in format: TRANSFER fromID toID value.");
+            else
+                System.out.println(type + " transaction records should be in format: " + type + " userID value.");
+            return false;
+        }
+
+        long value = parseInt(line, type == Transaction.Types.TRANSFER ? t3 : t2);
+        if (value == Long.MIN_VALUE) {
+            System.out.println("Malformed value in log record.");
+            return false;
+        }
+        transaction.setType(type).setValue((int) value);
+        if (type == Transaction.Types.TRANSFER) {
+            transaction.setFromID(ascii(line, t1)).setToID(ascii(line, t2));
+        } else {
+            transaction.setUserID(ascii(line, t1));
+        }
+        return true;
+    }
+
+    // the first space separated token in line[from, to), packed as (start << 32 | end);
+    // empty (start == end == to) if there is none
+    private static long nextToken(byte[] line, int from, int to) {
+        int i = from;
+        while (i < to && line[i] == ' ')
+            i ++;
+        int start = i;
+        while (i < to && line[i] != ' ')
+            i ++;
+        return ((long) start << 32) | i;
+    }
+
+    private static boolean isEmpty(long token) {
+        return start(token) == end(token);
+    }
+
+    private static int start(long token) {
+        return (int) (token >>> 32);
+    }
+
+    private static int end(long token) {
+        return (int) token;
+    }
+
+    // does the token equal the keyword, whose last byte is a space?
+    private static boolean matches(byte[] line, long token, byte[] keyword) {
+        int from = start(token);
+        int to = end(token);
+        if (to - from != keyword.length - 1)
+            return false;
+        for (int i = from; i < to; i ++) {
+            if (line[i] != keyword[i - from])
+                return false;
+        }
+        return true;
+    }
+
+    // the int in the token, or Long.MIN_VALUE if it is not one
+    private static long parseInt(byte[] line, long token) {
+        int from = start(token);
+        int to = end(token);
+        boolean negative = from < to && line[from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to)
+            return Long.MIN_VALUE;
+        long value = 0;
+        for (; i < to; i ++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9)
+                return Long.MIN_VALUE;
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1)
+                return Long.MIN_VALUE;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String ascii(byte[] line, long token) {
+        return new String(line, 0, start(token), end(token) - start(token));
+    }
+}
@@ -0,0 +1,46 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+import java.util.List;
+
+// Where the log's records live on disk, below WriteAheadLog. The format is chosen by the
+// "logFormat" entry of the server config: "text" keeps them in log.txt, "segments" in
+// memory-mapped segment files. Records are only dropped once the blocks holding them are sealed.
+//
+// recover() carries the records of a data directory last opened with the other format over, so
+// the format can be switched between restarts.
+abstract class LogStore {
+    final String dataDir;
+    final int N;
+
+    LogStore(String dataDir, int N) {
+        this.dataDir = dataDir;
+        this.N = N;
+    }
+
+    static LogStore forFormat(String dataDir, int N, String format, int segmentBytes) {
+        switch (format) {
+            case "text":
+                return new TextLogStore(dataDir, N);
+            case "segments":
+                return new SegmentedLogStore(dataDir, N, segmentBytes);
+            default:
+                throw new IllegalArgumentException("Unknown log format " + format + "; expected text or segments.");
+        }
+    }
+
+    // read back the records not sealed into blocks yet, dropping a torn record at the end, and
+    // get ready to append after them; returns the id of the first block not sealed yet and adds
+    // the records from its start on to records, or returns -1 if the log cannot be used
+    abstract int recover(List<Transaction> records);
+
+    // write records after the last ones; they are durable once sync() returns
+    abstract void write(List<Transaction> records) throws IOException;
+
+    abstract void sync() throws IOException;
+
+    // the blocks before blockId are sealed, so their records can go; rest holds the records after them
+    abstract boolean truncateBefore(int blockId, List<Transaction> rest);
+
+    abstract void close();
+}
@@ -0,0 +1,124 @@
+package iiis.systems.os.blockdb;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Named latency/size histograms, counters and gauges of one server, reported by the Stats RPC
+// and periodically written to <dataDir>stats.txt.
+class Metrics {
+    interface Gauge {
+        long value();
+    }
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private Thread dumper;
+
+    Histogram histogram(String name, String unit) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(name, unit);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    StatsResponse toStats() {
+        StatsResponse.Builder stats = StatsResponse.newBuilder();
+        for (Histogram histogram : new TreeMap<>(histograms).values()) {
+            stats.addHistograms(HistogramStats.newBuilder()
+                    .setName(histogram.getName())
+                    .setUnit(histogram.getUnit())
+                    .setCount(histogram.getCount())
+                    .setMean(histogram.getMean())
+                    .setP50(histogram.getPercentile(50))
+                    .setP99(histogram.getPercentile(99))
+                    .setP999(histogram.getPercentile(99.9))
+                    .setMax(histogram.getMax()));
+        }
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet())
+            stats.addCounters(Counter.newBuilder().setName(counter.getKey()).setValue(counter.getValue().get()));
+        for (Map.Entry<String, Gauge> gauge : new TreeMap<>(gauges).entrySet())
+            stats.addCounters(Counter.newBuilder().setName(gauge.getKey()).setValue(gauge.getValue().value()));
+        return stats.build();
+    }
+
+    static List<String> format(StatsResponse stats) {
+        List<String> lines = new ArrayList<>();
+        for (HistogramStats h : stats.getHistogramsList()) {
+            lines.add(String.format("%-28s count=%d mean=%.1f p50=%d p99=%d p999=%d max=%d %s", h.getName(),
+                    h.getCount(), h.getMean(), h.getP50(), h.getP99(), h.getP999(), h.getMax(), h.getUnit()));
+        }
+        for (Counter c : stats.getCountersList())
+            lines.add(String.format("%-28s %d", c.getName(), c.getValue()));
+        return lines;
+    }
+
+    // write the current stats to <dataDir>stats.txt every intervalSeconds
+    void startDumping(final String dataDir, final int intervalSeconds) {
+        if (intervalSeconds <= 0)
+            return;
+        dumper = new Thread("stats-dumper") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalSeconds * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    dump(dataDir);
+                }
+            }
+        };
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+    void stopDumping() {
+        if (dumper != null)
+            dumper.interrupt();
+    }
+
+    private void dump(String dataDir) {
+        try (FileWriter writer = new FileWriter(dataDir + "stats_.txt")) {
+            for (String line : format(toStats()))
+                writer.write(line + "\n");
+        } catch (IOException e) {
+            System.out.println("Cannot write to file " + dataDir + "stats_.txt");
+            return;
+        }
+        try {
+            Files.move(Paths.get(dataDir + "stats_.txt"), Paths.get(dataDir + "stats.txt"), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot replace stats.txt with stats_.txt.");
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+// Records the latency of every RPC, from the call arriving until it is closed, in the
+// rpc.<Method> histogram; calls that end with an error also count towards rpc.<Method>.errors.
+class MetricsInterceptor implements ServerInterceptor {
+    private final Metrics metrics;
+
+    MetricsInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String method = call.getMethodDescriptor().getFullMethodName();
+        final String name = "rpc." + method.substring(method.lastIndexOf('/') + 1);
+        final Histogram latency = metrics.histogram(name, "us");
+        final long start = System.nanoTime();
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                latency.recordMicrosSince(start);
+                if (!status.isOk())
+                    metrics.counter(name + ".errors").incrementAndGet();
+                super.close(status, trailers);
+            }
+        }, headers);
+    }
+}
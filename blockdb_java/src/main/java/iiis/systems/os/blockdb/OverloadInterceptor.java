@@ -0,0 +1,70 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Backpressure for the bounded executor. Every callback of a call runs as a task on the
+// executor; one that did not fit in its queue runs flagged as overflowing (see
+// BoundedExecutor), and the call is then closed with RESOURCE_EXHAUSTED instead of being served.
+// Rejected calls count towards executor.rejected.
+class OverloadInterceptor implements ServerInterceptor {
+    private final AtomicLong rejected;
+
+    OverloadInterceptor(Metrics metrics) {
+        this.rejected = metrics.counter("executor.rejected");
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (BoundedExecutor.isOverflowing()) {
+            reject(call);
+            return new ServerCall.Listener<ReqT>() {
+            };
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(call, headers)) {
+            private boolean closed = false;
+
+            @Override
+            public void onMessage(ReqT message) {
+                if (admit())
+                    super.onMessage(message);
+            }
+
+            @Override
+            public void onHalfClose() {
+                if (admit())
+                    super.onHalfClose();
+            }
+
+            @Override
+            public void onReady() {
+                if (admit())
+                    super.onReady();
+            }
+
+            // callbacks of a call run one at a time, so closed needs no lock
+            private boolean admit() {
+                if (closed)
+                    return false;
+                if (!BoundedExecutor.isOverflowing())
+                    return true;
+                closed = true;
+                reject(call);
+                return false;
+            }
+        };
+    }
+
+    private void reject(ServerCall<?, ?> call) {
+        rejected.incrementAndGet();
+        call.close(Status.RESOURCE_EXHAUSTED.withDescription("The server's request queue is full; try again later."),
+                new Metadata());
+    }
+}
@@ -0,0 +1,223 @@
+package iiis.systems.os.blockdb;
+
+import java.nio.ByteBuffer;
+
+// Balances in open-addressing hash tables of primitive (long key, int balance) slots, with no
+// per-account objects. The table is split into independently locked and resized segments.
+//
+// Slots live either in a long[] and an int[] on the heap, or in a direct ByteBuffer of 12 byte
+// slots outside it (offHeap), which keeps even very large tables out of the garbage collector's
+// way. Key 0 marks an empty slot; no packed user ID is 0.
+class PackedBalanceStore implements BalanceStore {
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    private abstract static class Segment {
+        int capacity;
+        int size = 0;
+
+        abstract void allocate(int capacity);
+
+        abstract long key(int slot);
+
+        abstract int value(int slot);
+
+        abstract void set(int slot, long key, int value);
+
+        abstract void setValue(int slot, int value);
+
+        // slot holding key, or the empty slot where it belongs
+        int find(long key, int hash) {
+            int mask = capacity - 1;
+            int slot = hash & mask;
+            while (true) {
+                long k = key(slot);
+                if (k == key || k == 0)
+                    return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        synchronized int get(long key, int hash) {
+            int slot = find(key, hash);
+            return key(slot) == key ? value(slot) : 0;
+        }
+
+        synchronized void put(long key, int hash, int value) {
+            int slot = find(key, hash);
+            if (key(slot) == key) {
+                setValue(slot, value);
+                return;
+            }
+            set(slot, key, value);
+            // keep the load factor at or below 3/4
+            if (++ size * 4 > capacity * 3)
+                grow();
+        }
+
+        private void grow() {
+            Segment old = copy();
+            allocate(capacity * 2);
+            for (int slot = 0; slot < old.capacity; slot ++) {
+                long k = old.key(slot);
+                if (k != 0)
+                    set(find(k, hash(k)), k, old.value(slot));
+            }
+        }
+
+        abstract Segment copy();
+
+        synchronized void forEach(Visitor visitor) {
+            for (int slot = 0; slot < capacity; slot ++) {
+                long k = key(slot);
+                if (k != 0)
+                    visitor.visit(k, value(slot));
+            }
+        }
+    }
+
+    private static class HeapSegment extends Segment {
+        long[] keys;
+        int[] values;
+
+        @Override
+        void allocate(int capacity) {
+            this.capacity = capacity;
+            keys = new long[capacity];
+            values = new int[capacity];
+        }
+
+        @Override
+        long key(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        int value(int slot) {
+            return values[slot];
+        }
+
+        @Override
+        void set(int slot, long key, int value) {
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        @Override
+        void setValue(int slot, int value) {
+            values[slot] = value;
+        }
+
+        @Override
+        Segment copy() {
+            HeapSegment copy = new HeapSegment();
+            copy.capacity = capacity;
+            copy.keys = keys;
+            copy.values = values;
+            return copy;
+        }
+    }
+
+    private static class DirectSegment extends Segment {
+        private static final int SLOT = 12;
+        ByteBuffer slots;
+
+        @Override
+        void allocate(int capacity) {
+            this.capacity = capacity;
+            slots = ByteBuffer.allocateDirect(capacity * SLOT);
+        }
+
+        @Override
+        long key(int slot) {
+            return slots.getLong(slot * SLOT);
+        }
+
+        @Override
+        int value(int slot) {
+            return slots.getInt(slot * SLOT + 8);
+        }
+
+        @Override
+        void set(int slot, long key, int value) {
+            slots.putLong(slot * SLOT, key);
+            slots.putInt(slot * SLOT + 8, value);
+        }
+
+        @Override
+        void setValue(int slot, int value) {
+            slots.putInt(slot * SLOT + 8, value);
+        }
+
+        @Override
+        Segment copy() {
+            DirectSegment copy = new DirectSegment();
+            copy.capacity = capacity;
+            copy.slots = slots;
+            return copy;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    PackedBalanceStore(int segmentCount, int expectedAccounts, boolean offHeap) {
+        int count = 1;
+        int bits = 0;
+        while (count < segmentCount) {
+            count <<= 1;
+            bits ++;
+        }
+        segments = new Segment[count];
+        segmentShift = 32 - bits;
+        int capacity = MIN_SEGMENT_CAPACITY;
+        while (capacity * 3 < expectedAccounts / count * 4)
+            capacity <<= 1;
+        for (int i = 0; i < count; i ++) {
+            segments[i] = offHeap ? new DirectSegment() : new HeapSegment();
+            segments[i].allocate(capacity);
+        }
+    }
+
+    // murmur3 finalizer; the high bits pick the segment and the low bits the slot
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public int get(long userId) {
+        int hash = hash(userId);
+        return segmentFor(hash).get(userId, hash);
+    }
+
+    @Override
+    public void put(long userId, int balance) {
+        int hash = hash(userId);
+        segmentFor(hash).put(userId, hash, balance);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (Segment segment : segments)
+            segment.forEach(visitor);
+    }
+}
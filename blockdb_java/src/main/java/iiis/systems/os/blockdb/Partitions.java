@@ -0,0 +1,186 @@
+package iiis.systems.os.blockdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Single-writer partitions: accounts are hashed onto K shards, each owned by one thread that
+// runs the writes to its accounts in queue order, so writers of different shards never contend.
+//
+// Work that touches several shards (a cross-shard transfer, a batch, a snapshot) runs on the
+// thread of the lowest one after that thread has parked the others in increasing shard order.
+// A shard thread only ever waits for higher shards, so no cycle of waits can form.
+class Partitions {
+    private static final Runnable STOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final List<LinkedBlockingQueue<Runnable>> queues = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final int[] all;
+
+    Partitions(int count) {
+        all = new int[count];
+        for (int i = 0; i < count; i ++) {
+            all[i] = i;
+            final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+            Thread thread = new Thread("partition-" + i) {
+                @Override
+                public void run() {
+                    runLoop(queue);
+                }
+            };
+            thread.setDaemon(true);
+            queues.add(queue);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    // Fibonacci hashing, independent of the hash PackedBalanceStore uses inside a shard
+    static int partitionOf(long userId, int count) {
+        return (int) (((userId * 0x9e3779b97f4a7c15L) >>> 32) % count);
+    }
+
+    int count() {
+        return all.length;
+    }
+
+    int[] all() {
+        return all;
+    }
+
+    int partitionOf(String userId) {
+        return partitionOf(UserIds.pack(userId), all.length);
+    }
+
+    // the distinct partitions a transaction touches, in increasing order
+    int[] partitionsOf(Transaction transaction) {
+        if (transaction.getType() != Transaction.Types.TRANSFER)
+            return new int[] {partitionOf(transaction.getUserID())};
+        int a = partitionOf(transaction.getFromID());
+        int b = partitionOf(transaction.getToID());
+        if (a == b)
+            return new int[] {a};
+        return new int[] {Math.min(a, b), Math.max(a, b)};
+    }
+
+    // the distinct partitions every well-formed transaction touches, in increasing order
+    int[] partitionsOf(List<Transaction> transactions) {
+        boolean[] used = new boolean[all.length];
+        int count = 0;
+        for (Transaction transaction : transactions) {
+            if (transaction.getType() == Transaction.Types.TRANSFER) {
+                count += mark(used, transaction.getFromID());
+                count += mark(used, transaction.getToID());
+            } else {
+                count += mark(used, transaction.getUserID());
+            }
+        }
+        int[] partitions = new int[count];
+        for (int i = 0, j = 0; i < used.length; i ++) {
+            if (used[i])
+                partitions[j ++] = i;
+        }
+        return partitions;
+    }
+
+    private int mark(boolean[] used, String userId) {
+        if (!UserIds.isValid(userId))
+            return 0;
+        int partition = partitionOf(userId);
+        if (used[partition])
+            return 0;
+        used[partition] = true;
+        return 1;
+    }
+
+    // run work while owning the given partitions (distinct, in increasing order) and return its
+    // result; null if interrupted or if work threw
+    <T> T run(final int[] partitions, final Callable<T> work) {
+        if (partitions.length == 0)
+            return call(work);
+        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                CountDownLatch release = new CountDownLatch(1);
+                try {
+                    for (int i = 1; i < partitions.length; i ++)
+                        park(partitions[i], release);
+                    return work.call();
+                } finally {
+                    release.countDown();
+                }
+            }
+        });
+        queues.get(partitions[0]).add(task);
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.out.println("Partition task failed: " + e.getCause());
+            return null;
+        }
+    }
+
+    private static <T> T call(Callable<T> work) {
+        try {
+            return work.call();
+        } catch (Exception e) {
+            System.out.println("Partition task failed: " + e);
+            return null;
+        }
+    }
+
+    // wait until the partition's thread has stopped on a task that holds it until release
+    private void park(int partition, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch parked = new CountDownLatch(1);
+        queues.get(partition).add(new Runnable() {
+            @Override
+            public void run() {
+                parked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        parked.await();
+    }
+
+    private static void runLoop(LinkedBlockingQueue<Runnable> queue) {
+        while (true) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == STOP)
+                return;
+            task.run();
+        }
+    }
+
+    // run what has been queued, then stop the partition threads
+    void close() {
+        for (LinkedBlockingQueue<Runnable> queue : queues)
+            queue.add(STOP);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
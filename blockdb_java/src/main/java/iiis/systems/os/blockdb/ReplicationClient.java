@@ -0,0 +1,115 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CountDownLatch;
+
+// The follower's side of replication: keeps a Replicate stream open to the leader, applies the
+// records it sends in order and acknowledges them once they are durable here. If the stream
+// breaks, it reconnects from the last durable record. If this server's log has diverged from
+// the leader's (records that do not apply here, or the leader refusing a follower that is
+// ahead of it), it stops and calls onDiverged, as this server can no longer serve the leader's
+// data.
+class ReplicationClient {
+    private static final long RETRY_MS = 1000;
+
+    private final DatabaseEngine engine;
+    private final String serverId;
+    private final ManagedChannel channel;
+    private final Runnable onDiverged;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private volatile long leaderSeq = 0;
+
+    ReplicationClient(DatabaseEngine engine, String serverId, String leaderAddress, int leaderPort, Runnable onDiverged) {
+        this.engine = engine;
+        this.serverId = serverId;
+        this.onDiverged = onDiverged;
+        this.channel = NettyChannelBuilder.forAddress(leaderAddress, leaderPort).usePlaintext(true).build();
+        thread = new Thread("replication-client") {
+            @Override
+            public void run() {
+                replicateLoop();
+            }
+        };
+        thread.setDaemon(true);
+        engine.getMetrics().gauge("replication.lag", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return Math.max(0, leaderSeq - ReplicationClient.this.engine.getDurableSeq());
+            }
+        });
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void close() {
+        closed = true;
+        thread.interrupt();
+        channel.shutdownNow();
+    }
+
+    // one Replicate stream; acks is set before the first acknowledgement goes out, and the
+    // leader only starts sending after that
+    private class Stream implements StreamObserver<ReplicationBatch> {
+        final CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<ReplicationAck> acks;
+
+        @Override
+        public void onNext(ReplicationBatch batch) {
+            leaderSeq = batch.getLeaderSeq();
+            long durable = engine.replicate(batch.getFirstSeq(), batch.getTransactionsList());
+            if (durable < 0) {
+                acks.onError(Status.OUT_OF_RANGE.withDescription("records from " + batch.getFirstSeq() + " do not apply")
+                        .asRuntimeException());
+                diverged();
+                done.countDown();
+                return;
+            }
+            acks.onNext(ReplicationAck.newBuilder().setServerID(serverId).setDurableSeq(durable).build());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (Status.fromThrowable(t).getCode() == Status.Code.OUT_OF_RANGE) {
+                System.out.println("The leader refused this server: " + Status.fromThrowable(t).getDescription());
+                diverged();
+            } else if (!closed) {
+                System.out.println("Replication from the leader failed: " + t.getMessage() + ". Retrying.");
+            }
+            done.countDown();
+        }
+
+        @Override
+        public void onCompleted() {
+            done.countDown();
+        }
+    }
+
+    private void diverged() {
+        if (closed)
+            return;
+        closed = true;
+        System.out.println("This server's log has diverged from the leader's; it stops following it.");
+        onDiverged.run();
+    }
+
+    private void replicateLoop() {
+        while (!closed) {
+            Stream stream = new Stream();
+            stream.acks = BlockDatabaseGrpc.newStub(channel).replicate(stream);
+            stream.acks.onNext(ReplicationAck.newBuilder().setServerID(serverId).setDurableSeq(engine.getDurableSeq()).build());
+            try {
+                stream.done.await();
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package iiis.systems.os.blockdb;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The leader's side of replication.
+//
+// The log writer reports every durable group commit here, and recent records are kept in
+// memory; followers that ask for older records are served from the block files. Records are
+// only dropped from memory once they are sealed into a block, so every record is always in one
+// of the two places.
+//
+// Each follower stream gets a sender thread that ships records in order, at most WINDOW ahead
+// of what the follower has acknowledged. A commit may wait until `quorum` followers have
+// acknowledged its record.
+class ReplicationSource implements WriteAheadLog.Listener {
+    private static final int MAX_BATCH = 1000;
+    private static final int WINDOW = 10000;
+
+    private final BlockStore store;
+    private final int N;
+    private final int capacity;
+    private final int quorum;
+    private final long timeoutMs;
+    private final Histogram quorumWait;
+    private final Metrics metrics;
+
+    // recent durable records, the first with sequence number firstSeq
+    private final ArrayList<Transaction> records;
+    private long firstSeq;
+    // records up to sealedSeq are in block files
+    private long sealedSeq;
+    // durable sequence number acknowledged by each follower
+    private final Map<String, Long> acked = new HashMap<>();
+    private boolean closed = false;
+
+    ReplicationSource(BlockStore store, int N, int blockId, List<Transaction> logRecords, int capacity, int quorum,
+                      long timeoutMs, Metrics metrics) {
+        this.store = store;
+        this.N = N;
+        this.capacity = capacity;
+        this.quorum = quorum;
+        this.timeoutMs = timeoutMs;
+        this.metrics = metrics;
+        this.quorumWait = metrics.histogram("replication.quorumWait", "us");
+        this.sealedSeq = (long) (blockId - 1) * N;
+        this.firstSeq = sealedSeq + 1;
+        this.records = new ArrayList<>(logRecords);
+    }
+
+    @Override
+    public synchronized void durable(long first, List<Transaction> batch) {
+        records.addAll(batch);
+        int drop = (int) Math.min(records.size() - capacity, sealedSeq - firstSeq + 1);
+        if (drop > 0) {
+            records.subList(0, drop).clear();
+            firstSeq += drop;
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void sealed(int blockId) {
+        sealedSeq = Math.max(sealedSeq, (long) blockId * N);
+    }
+
+    private synchronized long lastSeq() {
+        return firstSeq + records.size() - 1;
+    }
+
+    // the records from seq on, at most MAX_BATCH of them; waits a while if there are none yet
+    private List<Transaction> read(long seq) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (seq >= firstSeq) {
+                long deadline = System.currentTimeMillis() + 100;
+                while (seq > lastSeq() && !closed) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return new ArrayList<>();
+                    wait(wait);
+                }
+                int from = (int) (seq - firstSeq);
+                return new ArrayList<>(records.subList(from, Math.min(records.size(), from + MAX_BATCH)));
+            }
+        }
+        // dropped from memory, so sealed: catch up from the block holding it
+        int blockId = (int) ((seq - 1) / N) + 1;
+        List<Transaction> transactions = store.read(blockId).getTransactionsList();
+        return new ArrayList<>(transactions.subList((int) (seq - 1 - (long) (blockId - 1) * N), transactions.size()));
+    }
+
+    // wait until quorum followers have acknowledged seq, or until the timeout; the record is
+    // already durable here, so a timeout only means it is not replicated yet
+    void awaitQuorum(long seq) {
+        if (quorum <= 0 || seq < 0)
+            return;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (this) {
+            while (ackedCount(seq) < quorum && !closed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    metrics.counter("replication.quorumTimeouts").incrementAndGet();
+                    return;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        quorumWait.recordMicrosSince(start);
+    }
+
+    private int ackedCount(long seq) {
+        int count = 0;
+        for (long durable : acked.values()) {
+            if (durable >= seq)
+                count ++;
+        }
+        return count;
+    }
+
+    private synchronized void ack(String serverId, long seq) {
+        Long previous = acked.get(serverId);
+        if (previous == null || seq > previous)
+            acked.put(serverId, seq);
+        notifyAll();
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // serve one follower's Replicate stream
+    StreamObserver<ReplicationAck> serve(final StreamObserver<ReplicationBatch> out) {
+        return new StreamObserver<ReplicationAck>() {
+            private Sender sender;
+            private boolean refused = false;
+
+            @Override
+            public void onNext(ReplicationAck ack) {
+                if (refused)
+                    return;
+                if (sender == null) {
+                    // a follower with records the leader never had cannot follow it, and its
+                    // acknowledgements must not count towards the quorum
+                    long last = lastSeq();
+                    if (ack.getDurableSeq() > last) {
+                        System.out.println("Follower " + ack.getServerID() + " is at sequence number " + ack.getDurableSeq()
+                                + ", ahead of the leader at " + last + "; its history has diverged. Refusing it.");
+                        refused = true;
+                        out.onError(Status.OUT_OF_RANGE.withDescription("The follower is ahead of the leader at " + last
+                                + "; its history has diverged.").asRuntimeException());
+                        return;
+                    }
+                    ack(ack.getServerID(), ack.getDurableSeq());
+                    System.out.println("Follower " + ack.getServerID() + " connected at sequence number " + ack.getDurableSeq() + ".");
+                    sender = new Sender(ack.getServerID(), ack.getDurableSeq() + 1, out);
+                    sender.start();
+                } else {
+                    ack(ack.getServerID(), ack.getDurableSeq());
+                    sender.acked(ack.getDurableSeq());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                System.out.println("Replication stream failed: " + t.getMessage());
+                if (sender != null)
+                    sender.halt();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (refused)
+                    return;
+                if (sender != null) {
+                    // the sender must be done with out before the stream is closed
+                    sender.halt();
+                    try {
+                        sender.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                out.onCompleted();
+            }
+        };
+    }
+
+    private class Sender extends Thread {
+        private final StreamObserver<ReplicationBatch> out;
+        private final Object window = new Object();
+        private long next;
+        private long acked;
+        private volatile boolean halted = false;
+
+        Sender(String serverId, long next, StreamObserver<ReplicationBatch> out) {
+            super("replication-sender-" + serverId);
+            setDaemon(true);
+            this.out = out;
+            this.next = next;
+            this.acked = next - 1;
+        }
+
+        void acked(long seq) {
+            synchronized (window) {
+                acked = Math.max(acked, seq);
+                window.notifyAll();
+            }
+        }
+
+        void halt() {
+            halted = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!halted) {
+                    synchronized (window) {
+                        while (next - acked > WINDOW && !halted)
+                            window.wait();
+                    }
+                    List<Transaction> batch = read(next);
+                    if (batch.isEmpty())
+                        continue;
+                    out.onNext(ReplicationBatch.newBuilder().setFirstSeq(next).addAllTransactions(batch)
+                            .setLeaderSeq(lastSeq()).build());
+                    next += batch.size();
+                }
+            } catch (InterruptedException e) {
+                // halted
+            } catch (IOException e) {
+                System.out.println("Cannot read records from " + next + " for replication: " + e.getMessage());
+                out.onError(e);
+            } catch (RuntimeException e) {
+                // the stream was cancelled under us
+                System.out.println("Replication stream closed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package iiis.systems.os.blockdb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// The log as a sequence of fixed-size segment files log.<n>.seg, each memory-mapped in full.
+//
+// A segment is a header (int magic "BDLG", int version, long sequence number of its first record,
+// long CRC32 of those 16 bytes) padded to HEADER bytes, followed by fixed-size binary records:
+//
+//   int CRC32 of (the record's sequence number, the rest of the record), byte type,
+//   long packed user or from ID, long packed to ID (0 if none), int value
+//
+// A record's sequence number is implied by its position, so a torn write, a zeroed slot and a
+// stale record left from an earlier run all fail the CRC; recovery stops at the first record
+// that does, and zeroes the rest of the segment. Segment files are preallocated (zero-filled) in
+// the background before they are needed, so appending never extends a file.
+//
+// log.meta holds the id of a block no later than the first one not sealed yet (int magic "BDLM",
+// int version, int blockId, long CRC32) and is replaced atomically whenever blocks are sealed;
+// once it moves past every record of a segment, and the data directory has been fsynced so the
+// new log.meta survives a power loss, the segment file is deleted and unmapped. New segment files
+// are made durable the same way before records go into them. The
+// writer compacts all the blocks sealed since its last batch at once, so this costs one file
+// replacement per batch that seals blocks, not one per block, and after a crash recovery only
+// finds the blocks sealed since then in the log.
+class SegmentedLogStore extends LogStore {
+    static final int MAGIC = 0x42444c47;
+    static final int META_MAGIC = 0x42444c4d;
+    static final int VERSION = 1;
+    static final int HEADER = 32;
+    static final int RECORD = 25;
+    private static final String META = "log.meta";
+    private static final String PREFIX = "log.";
+    private static final String SUFFIX = ".seg";
+
+    private static class Segment {
+        final int number;
+        final long firstSeq;
+        final MappedByteBuffer buffer;
+        // for copying whole records in and out
+        final ByteBuffer view;
+        final int capacity;
+
+        Segment(int number, long firstSeq, MappedByteBuffer buffer) {
+            this.number = number;
+            this.firstSeq = firstSeq;
+            this.buffer = buffer;
+            this.view = buffer.duplicate();
+            this.capacity = (buffer.capacity() - HEADER) / RECORD;
+        }
+
+        long lastSeq() {
+            return firstSeq + capacity - 1;
+        }
+    }
+
+    private final int segmentBytes;
+    private final byte[] record = new byte[RECORD];
+    private final CRC32 crc = new CRC32();
+    // oldest first; records are appended to the last one
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    // segments written to since the last sync
+    private final ArrayList<Segment> unsynced = new ArrayList<>();
+    private int count = 0;
+    private long nextSeq = 1;
+    private boolean recovered = false;
+    // the first block not sealed yet, and the one log.meta says
+    private int sealedBlockId;
+    private int metaBlockId;
+
+    // the next segment file, zero-filled by the preallocator thread
+    private Thread preallocator;
+    private MappedByteBuffer spare;
+
+    SegmentedLogStore(String dataDir, int N, int segmentBytes) {
+        super(dataDir, N);
+        this.segmentBytes = Math.max(HEADER + RECORD, segmentBytes);
+    }
+
+    // whether the data directory holds a segmented log
+    static boolean exists(String dataDir) {
+        return new File(dataDir + META).exists();
+    }
+
+    // delete the segmented log, log.meta first so a crash cannot leave a log with missing segments
+    static boolean delete(String dataDir) {
+        if (!new File(dataDir + META).delete()) {
+            System.out.println("Cannot delete file " + dataDir + META);
+            return false;
+        }
+        for (int number : segmentNumbers(dataDir)) {
+            if (!new File(dataDir + PREFIX + number + SUFFIX).delete())
+                System.out.println("Cannot delete file " + dataDir + PREFIX + number + SUFFIX);
+        }
+        return true;
+    }
+
+    private static List<Integer> segmentNumbers(String dataDir) {
+        List<Integer> numbers = new ArrayList<>();
+        String[] names = new File(dataDir).list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    numbers.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private String fileName(int number) {
+        return dataDir + PREFIX + number + SUFFIX;
+    }
+
+    @Override
+    int recover(List<Transaction> records) {
+        if (!exists(dataDir))
+            return create(records);
+        int blockId = readMeta();
+        if (blockId < 1)
+            return -1;
+        sealedBlockId = metaBlockId = blockId;
+        for (String name : new String[] {"log.txt", "log_.txt"}) {
+            // left over from moving log.txt to segments
+            if (new File(dataDir + name).exists() && !new File(dataDir + name).delete())
+                System.out.println("Cannot delete file " + dataDir + name);
+        }
+
+        long sealedSeq = (long) (blockId - 1) * N;
+        nextSeq = sealedSeq + 1;
+        List<Integer> numbers = segmentNumbers(dataDir);
+        for (int i = 0; i < numbers.size(); i ++) {
+            int number = numbers.get(i);
+            Segment segment;
+            try {
+                segment = map(number);
+            } catch (IOException e) {
+                System.out.println("Cannot map file " + fileName(number) + ": " + e.getMessage());
+                return -1;
+            }
+            if (segment == null) {
+                // a preallocated segment that was never started
+                if (i == numbers.size() - 1 && new File(fileName(number)).delete())
+                    break;
+                System.out.println("Log segment " + fileName(number) + " is damaged.");
+                return -1;
+            }
+            if (!segments.isEmpty() && count < segments.get(segments.size() - 1).capacity) {
+                System.out.println("The log is missing records after " + (nextSeq - 1) + ".");
+                return -1;
+            }
+            if (segments.isEmpty() ? segment.firstSeq > nextSeq : segment.firstSeq != nextSeq) {
+                System.out.println("The log is missing the records from " + nextSeq + " to " + (segment.firstSeq - 1) + ".");
+                return -1;
+            }
+            segments.add(segment);
+            count = scan(segment, sealedSeq, records);
+            nextSeq = segment.firstSeq + count;
+        }
+
+        if (nextSeq <= sealedSeq) {
+            System.out.println("The log ends at record " + (nextSeq - 1) + ", before the sealed block " + (blockId - 1) + ".");
+            return -1;
+        }
+        try {
+            if (!segments.isEmpty())
+                clearTail(segments.get(segments.size() - 1));
+        } catch (IOException e) {
+            System.out.println("Cannot clear the end of the log: " + e.getMessage());
+            return -1;
+        }
+        dropSealed(sealedSeq);
+        recovered = true;
+        preallocateIfNeeded();
+        return blockId;
+    }
+
+    // start a segmented log, moving the records of log.txt over if there is one
+    private int create(List<Transaction> records) {
+        // left over from a log that was moved to log.txt
+        for (int number : segmentNumbers(dataDir))
+            new File(fileName(number)).delete();
+        int blockId = 1;
+        if (new File(dataDir + "log.txt").exists()) {
+            TextLogStore text = new TextLogStore(dataDir, N);
+            blockId = text.recover(records);
+            text.close();
+            if (blockId < 0)
+                return -1;
+        }
+        nextSeq = (long) (blockId - 1) * N + 1;
+        recovered = true;
+        try {
+            write(records);
+            sync();
+        } catch (IOException e) {
+            System.out.println("Cannot write log segment: " + e.getMessage());
+            return -1;
+        }
+        if (!writeMeta(blockId))
+            return -1;
+        sealedBlockId = blockId;
+        preallocateIfNeeded();
+        if (new File(dataDir + "log.txt").exists()) {
+            System.out.println("Moved " + records.size() + " records from log.txt to log segments.");
+            new File(dataDir + "log.txt").delete();
+        }
+        return blockId;
+    }
+
+    // map a segment and check its header; null if the header is not valid
+    private Segment map(int number) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(fileName(number), "rw")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+        if (buffer.capacity() < HEADER + RECORD || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            return null;
+        crc.reset();
+        for (int i = 0; i < 16; i ++)
+            crc.update(buffer.get(i));
+        if (buffer.getLong(16) != crc.getValue())
+            return null;
+        return new Segment(number, buffer.getLong(8), buffer);
+    }
+
+    // count the valid records at the start of the segment, adding those after sealedSeq to records
+    private int scan(Segment segment, long sealedSeq, List<Transaction> records) {
+        for (int i = 0; i < segment.capacity; i ++) {
+            long seq = segment.firstSeq + i;
+            Transaction transaction = decode(segment, HEADER + i * RECORD, seq);
+            if (transaction == null)
+                return i;
+            if (seq > sealedSeq)
+                records.add(transaction);
+        }
+        return segment.capacity;
+    }
+
+    // zero everything after the last valid record, so nothing written before a crash can look
+    // like a record once new ones reach it
+    private void clearTail(Segment segment) throws IOException {
+        int from = HEADER + count * RECORD;
+        int end = segment.buffer.capacity();
+        int dirty = from;
+        while (dirty < end && segment.buffer.get(dirty) == 0)
+            dirty ++;
+        if (dirty == end)
+            return;
+        System.out.println("The last record is incomplete in log segment " + fileName(segment.number) + ". Need to be deleted.");
+        for (int i = from; i < end; i ++)
+            segment.buffer.put(i, (byte) 0);
+        segment.buffer.force();
+    }
+
+    @Override
+    void write(List<Transaction> records) throws IOException {
+        if (!recovered)
+            throw new IOException("The log segments were not recovered.");
+        for (Transaction transaction : records) {
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || count == active.capacity)
+                active = roll();
+            if (unsynced.isEmpty() || unsynced.get(unsynced.size() - 1) != active)
+                unsynced.add(active);
+            encode(transaction, nextSeq, active, HEADER + count * RECORD);
+            count ++;
+            nextSeq ++;
+            if (count == active.capacity / 2)
+                preallocateIfNeeded();
+        }
+    }
+
+    @Override
+    void sync() throws IOException {
+        for (Segment segment : unsynced)
+            segment.buffer.force();
+        unsynced.clear();
+    }
+
+    // start the next segment with the next record
+    private Segment roll() throws IOException {
+        int number = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        MappedByteBuffer buffer = takeSpare();
+        if (buffer == null)
+            buffer = allocate(fileName(number), segmentBytes);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, nextSeq);
+        crc.reset();
+        for (int i = 0; i < 16; i ++)
+            crc.update(buffer.get(i));
+        buffer.putLong(16, crc.getValue());
+        Segment segment = new Segment(number, nextSeq, buffer);
+        segments.add(segment);
+        count = 0;
+        return segment;
+    }
+
+    // create the segment file, zero-filled so its blocks are allocated before records are synced
+    private static MappedByteBuffer allocate(String fileName, int size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+            long position = 0;
+            while (position < size) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+            channel.force(true);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Util.syncDirectory(new File(fileName).getParent());
+            return buffer;
+        }
+    }
+
+    // start preparing the next segment file once the current one is half full (or there is none)
+    private void preallocateIfNeeded() {
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (preallocator != null || (active != null && count < active.capacity / 2))
+            return;
+        final int number = active == null ? 1 : active.number + 1;
+        preallocator = new Thread("log-preallocator") {
+            @Override
+            public void run() {
+                try {
+                    MappedByteBuffer buffer = allocate(fileName(number), segmentBytes);
+                    synchronized (SegmentedLogStore.this) {
+                        spare = buffer;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Cannot preallocate file " + fileName(number) + ": " + e.getMessage());
+                }
+            }
+        };
+        preallocator.setDaemon(true);
+        preallocator.start();
+    }
+
+    // the preallocated segment, once the preallocator is done with it
+    private MappedByteBuffer takeSpare() {
+        if (preallocator == null)
+            return null;
+        boolean interrupted = false;
+        while (preallocator.isAlive()) {
+            try {
+                preallocator.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        preallocator = null;
+        synchronized (this) {
+            MappedByteBuffer buffer = spare;
+            spare = null;
+            return buffer;
+        }
+    }
+
+    @Override
+    boolean truncateBefore(int blockId, List<Transaction> rest) {
+        sealedBlockId = Math.max(sealedBlockId, blockId);
+        if (sealedBlockId > metaBlockId && !writeMeta(sealedBlockId))
+            return false;
+        dropSealed((long) (sealedBlockId - 1) * N);
+        return true;
+    }
+
+    // delete and unmap the segments that only hold sealed records, except the one being appended to
+    private void dropSealed(long sealedSeq) {
+        while (segments.size() > 1 && segments.get(0).lastSeq() <= sealedSeq) {
+            Segment segment = segments.remove(0);
+            unsynced.remove(segment);
+            if (!new File(fileName(segment.number)).delete())
+                System.out.println("Cannot delete file " + fileName(segment.number));
+            unmap(segment.buffer);
+        }
+    }
+
+    // release a mapping now rather than when the buffer is collected; the buffer must not be used
+    // afterwards. There is no public API for this: Java 9 and later have Unsafe.invokeCleaner,
+    // Java 7 and 8 the buffer's own cleaner. If neither is reachable, the mapping stays until the
+    // buffer is collected.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // before Java 9
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+
+    @Override
+    void close() {
+        MappedByteBuffer unused = takeSpare();
+        if (unused != null)
+            unmap(unused);
+        try {
+            sync();
+        } catch (IOException e) {
+            System.out.println("Cannot sync the log segments: " + e.getMessage());
+        }
+        if (recovered && sealedBlockId > metaBlockId)
+            writeMeta(sealedBlockId);
+        for (Segment segment : segments)
+            unmap(segment.buffer);
+        segments.clear();
+        recovered = false;
+    }
+
+    private int readMeta() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataDir + META)))) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            int blockId = in.readInt();
+            crc.reset();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(magic).putInt(version).putInt(blockId);
+            crc.update(header.array(), 0, 12);
+            if (magic != META_MAGIC || version != VERSION || in.readLong() != crc.getValue()) {
+                System.out.println("File " + dataDir + META + " is damaged.");
+                return -1;
+            }
+            return blockId;
+        } catch (IOException e) {
+            System.out.println("Cannot read file " + dataDir + META + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // replace log.meta through a temporary file
+    private boolean writeMeta(int blockId) {
+        String tmpName = dataDir + META + ".tmp";
+        try (FileOutputStream file = new FileOutputStream(tmpName)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(20);
+            CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(META_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blockId);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            file.write(bytes.toByteArray());
+            file.getChannel().force(false);
+        } catch (IOException e) {
+            System.out.println("Cannot write to file " + tmpName);
+            return false;
+        }
+        try {
+            Files.move(Paths.get(tmpName), Paths.get(dataDir + META), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot replace " + META + " with " + META + ".tmp.");
+            return false;
+        }
+        // the segments the old log.meta still needs are only deleted once the new one is durable
+        try {
+            Util.syncDirectory(dataDir);
+        } catch (IOException e) {
+            System.out.println("Cannot sync directory " + dataDir + ": " + e.getMessage());
+            return false;
+        }
+        metaBlockId = blockId;
+        return true;
+    }
+
+    private void encode(Transaction transaction, long seq, Segment out, int position) {
+        ByteBuffer bytes = ByteBuffer.wrap(record);
+        bytes.position(4);
+        bytes.put((byte) transaction.getType().getNumber());
+        if (transaction.getType() == Transaction.Types.TRANSFER) {
+            bytes.putLong(UserIds.pack(transaction.getFromID()));
+            bytes.putLong(UserIds.pack(transaction.getToID()));
+        } else {
+            bytes.putLong(UserIds.pack(transaction.getUserID()));
+            bytes.putLong(0);
+        }
+        bytes.putInt(transaction.getValue());
+        bytes.putInt(0, checksum(seq));
+        out.view.position(position);
+        out.view.put(record);
+    }
+
+    // the record at position if it is a valid one with sequence number seq, else null
+    private Transaction decode(Segment in, int position, long seq) {
+        in.view.position(position);
+        in.view.get(record);
+        ByteBuffer bytes = ByteBuffer.wrap(record);
+        if (bytes.getInt(0) != checksum(seq))
+            return null;
+        Transaction.Types type = Transaction.Types.forNumber(record[4]);
+        long first = bytes.getLong(5);
+        long second = bytes.getLong(13);
+        int value = bytes.getInt(21);
+        if (type == null)
+            return null;
+        switch (type) {
+            case PUT:
+            case DEPOSIT:
+            case WITHDRAW:
+                return Transaction.newBuilder().setType(type).setUserID(UserIds.unpack(first)).setValue(value).build();
+            case TRANSFER:
+                return Transaction.newBuilder().setType(type).setFromID(UserIds.unpack(first))
+                        .setToID(UserIds.unpack(second)).setValue(value).build();
+            default:
+                return null;
+        }
+    }
+
+    // CRC32 of the sequence number and bytes 4 .. RECORD of record
+    private int checksum(long seq) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (seq >>> shift));
+        crc.update(record, 4, RECORD - 4);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,38 @@
+package iiis.systems.os.blockdb;
+
+// One balance store per partition, so each partition's writer only touches its own table.
+class ShardedBalanceStore implements BalanceStore {
+    private final BalanceStore[] shards;
+
+    ShardedBalanceStore(BalanceStore[] shards) {
+        this.shards = shards;
+    }
+
+    private BalanceStore shardOf(long userId) {
+        return shards[Partitions.partitionOf(userId, shards.length)];
+    }
+
+    @Override
+    public int get(long userId) {
+        return shardOf(userId).get(userId);
+    }
+
+    @Override
+    public void put(long userId, int balance) {
+        shardOf(userId).put(userId, balance);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BalanceStore shard : shards)
+            size += shard.size();
+        return size;
+    }
+
+    @Override
+    public void forEach(Visitor visitor) {
+        for (BalanceStore shard : shards)
+            shard.forEach(visitor);
+    }
+}
@@ -0,0 +1,159 @@
+package iiis.systems.os.blockdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// A copy of all balances after a prefix of the transaction history.
+//
+// The prefix is identified by a block id and an offset: the snapshot includes every block before
+// blockId and the first offset records of block blockId (which may still be in log.txt).
+// On disk it is snapshot_<seq>.bin, where seq = (blockId - 1) * N + offset:
+//
+//   int magic "BDSN", int version, int blockId, int offset, int count,
+//   count x (long packed user id, int balance), long CRC32 of everything before it
+class Snapshot {
+    static final int MAGIC = 0x4244534e;
+    static final int VERSION = 1;
+    private static final String PREFIX = "snapshot_";
+    private static final String SUFFIX = ".bin";
+
+    final int blockId;
+    final int offset;
+    final long[] userIds;
+    final int[] balances;
+
+    Snapshot(int blockId, int offset, long[] userIds, int[] balances) {
+        this.blockId = blockId;
+        this.offset = offset;
+        this.userIds = userIds;
+        this.balances = balances;
+    }
+
+    long seq(int N) {
+        return (long) (blockId - 1) * N + offset;
+    }
+
+    // write snapshot_<seq>.bin through a temporary file, so a crash never leaves a partial snapshot
+    // under the final name
+    void write(String dataDir, int N) throws IOException {
+        String fileName = dataDir + PREFIX + seq(N) + SUFFIX;
+        String tmpName = fileName + ".tmp";
+        try (FileOutputStream file = new FileOutputStream(tmpName)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blockId);
+            out.writeInt(offset);
+            out.writeInt(userIds.length);
+            for (int i = 0; i < userIds.length; i ++) {
+                out.writeLong(userIds[i]);
+                out.writeInt(balances[i]);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(false);
+        }
+        Files.move(Paths.get(tmpName), Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE);
+        // before older snapshots are pruned
+        Util.syncDirectory(dataDir);
+    }
+
+    static Snapshot read(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+            DataInputStream data = new DataInputStream(checked);
+            if (data.readInt() != MAGIC)
+                throw new IOException("Not a snapshot file.");
+            int version = data.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ".");
+            int blockId = data.readInt();
+            int offset = data.readInt();
+            int count = data.readInt();
+            long[] userIds = new long[count];
+            int[] balances = new int[count];
+            for (int i = 0; i < count; i ++) {
+                userIds[i] = data.readLong();
+                balances[i] = data.readInt();
+            }
+            long expected = checked.getChecksum().getValue();
+            if (data.readLong() != expected)
+                throw new IOException("Checksum mismatch.");
+            return new Snapshot(blockId, offset, userIds, balances);
+        }
+    }
+
+    // snapshot files in the data directory, newest first
+    static File[] list(String dataDir) {
+        File[] files = new File(dataDir).listFiles();
+        if (files == null)
+            return new File[0];
+        int count = 0;
+        for (File file : files) {
+            if (seqOf(file) >= 0)
+                files[count ++] = file;
+        }
+        File[] snapshots = Arrays.copyOf(files, count);
+        Arrays.sort(snapshots, new java.util.Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(seqOf(b), seqOf(a));
+            }
+        });
+        return snapshots;
+    }
+
+    private static long seqOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the newest readable snapshot that covers no more than the first maxSeq records, or null
+    static Snapshot loadLatest(String dataDir, int N, long maxSeq) {
+        for (File file : list(dataDir)) {
+            if (seqOf(file) > maxSeq) {
+                System.out.println("Snapshot " + file.getName() + " is ahead of the log. Ignoring it.");
+                continue;
+            }
+            try {
+                Snapshot snapshot = read(file);
+                if (snapshot.seq(N) == seqOf(file))
+                    return snapshot;
+                System.out.println("Snapshot " + file.getName() + " does not match its name. Ignoring it.");
+            } catch (IOException e) {
+                System.out.println("Cannot read snapshot " + file.getName() + ": " + e.getMessage() + " Ignoring it.");
+            }
+        }
+        return null;
+    }
+
+    // delete all but the newest keep snapshots
+    static void prune(String dataDir, int keep) {
+        File[] snapshots = list(dataDir);
+        for (int i = keep; i < snapshots.length; i ++) {
+            if (!snapshots[i].delete())
+                System.out.println("Cannot delete snapshot " + snapshots[i].getName() + ".");
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+
+// Takes a snapshot of the engine on a background thread every `interval` sealed blocks, so
+// that recovery only replays the blocks sealed after it. With the tiered balance store, too
+// large to copy, it checkpoints the store instead, also whenever the store asks for it.
+class Snapshotter {
+    private static final int KEEP = 2;
+
+    private final DatabaseEngine engine;
+    private final String dataDir;
+    private final int N;
+    private final int interval;
+    private final Thread thread;
+
+    private int sealedSinceSnapshot = 0;
+    private boolean requested = false;
+    private boolean closed = false;
+
+    Snapshotter(DatabaseEngine engine, String dataDir, int N, int interval) {
+        this.engine = engine;
+        this.dataDir = dataDir;
+        this.N = N;
+        this.interval = interval;
+        thread = new Thread("snapshotter") {
+            @Override
+            public void run() {
+                snapshotLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // called by the flusher for every block it seals
+    synchronized void blockSealed() {
+        if (interval <= 0)
+            return;
+        if (++ sealedSinceSnapshot >= interval) {
+            sealedSinceSnapshot = 0;
+            requested = true;
+            notifyAll();
+        }
+    }
+
+    // take one as soon as possible
+    synchronized void request() {
+        requested = true;
+        notifyAll();
+    }
+
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void snapshotLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!requested && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed)
+                    return;
+                requested = false;
+            }
+            takeSnapshot();
+        }
+    }
+
+    void takeSnapshot() {
+        long start = System.currentTimeMillis();
+        if (engine.isTiered()) {
+            int accounts = engine.checkpointBalances();
+            if (accounts < 0)
+                return;
+            engine.getMetrics().histogram("checkpoint.write", "ms").record(System.currentTimeMillis() - start);
+            System.out.println("Checkpointed " + accounts + " accounts in " + (System.currentTimeMillis() - start) + " ms.");
+            return;
+        }
+        Snapshot snapshot = engine.captureSnapshot();
+        if (snapshot == null)
+            return;
+        try {
+            snapshot.write(dataDir, N);
+        } catch (IOException e) {
+            System.out.println("Cannot write snapshot at block " + snapshot.blockId + ": " + e.getMessage());
+            return;
+        }
+        Snapshot.prune(dataDir, KEEP);
+        engine.getMetrics().histogram("snapshot.write", "ms").record(System.currentTimeMillis() - start);
+        System.out.println("Wrote snapshot of " + snapshot.userIds.length + " accounts at block " + snapshot.blockId
+                + " offset " + snapshot.offset + " in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
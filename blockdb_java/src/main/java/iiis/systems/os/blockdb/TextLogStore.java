@@ -0,0 +1,332 @@
+package iiis.systems.os.blockdb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// The log as log.txt: a header line with the id of the first block not sealed yet, then one text
+// record per line (see LogRecordCodec). Dropping sealed records rewrites the file through
+// log_.txt and an atomic move, and then fsyncs the data directory so the move is durable.
+//
+// The rewrite runs on a compactor thread, not on the writer thread that calls truncateBefore:
+// the writer only starts log_.txt and, until the compactor has moved it over log.txt, writes and
+// fsyncs every record to both files, so whichever of them ends up as log.txt after a crash holds
+// every durable record. Blocks sealed while a rewrite runs are dropped by the next one.
+class TextLogStore extends LogStore {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel channel;
+    // while a rewrite runs: log_.txt, where the next record goes, and whether the rewrite is done
+    private FileChannel next;
+    private long nextPosition;
+    private Future<Boolean> rewriting;
+    private ExecutorService compactor;
+    // a rewrite wanted while another one runs: its header and the records that follow it, kept
+    // up to date by write
+    private int pendingBlockId;
+    private List<Transaction> pendingRecords;
+
+    TextLogStore(String dataDir, int N) {
+        super(dataDir, N);
+    }
+
+    @Override
+    int recover(List<Transaction> records) {
+        if (SegmentedLogStore.exists(dataDir) && !migrate())
+            return -1;
+
+        File file = new File(dataDir + "log.txt");
+        // clean start
+        if (!file.exists()) {
+            if (!rewrite(dataDir, 1, records))
+                return -1;
+            return open() ? 1 : -1;
+        }
+
+        // if the previous process was killed before replacing log.txt with log_.txt, log.txt still
+        // holds every record and log_.txt can be discarded
+        File file_ = new File(dataDir + "log_.txt");
+        if (file_.exists()) {
+            System.out.println("The previous process was killed before copying log_ to log. Discarding log_.txt.");
+            if (!file_.delete()) {
+                System.out.println("Cannot delete file " + dataDir + "log_.txt.");
+                return -1;
+            }
+        }
+
+        // read the records in log.txt, decoding them in place
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            System.out.println("Cannot read file " + dataDir + "log.txt.");
+            return -1;
+        }
+        int lineStart = 0;
+        while (lineStart < content.length && content[lineStart] != '\n')
+            lineStart ++;
+        int blockId = Integer.parseInt(new String(content, 0, lineStart, StandardCharsets.US_ASCII).trim());
+        lineStart ++;
+        while (lineStart < content.length) {
+            int lineEnd = lineStart;
+            while (lineEnd < content.length && content[lineEnd] != '\n')
+                lineEnd ++;
+            Transaction.Builder transaction = Transaction.newBuilder();
+            if (LogRecordCodec.decode(content, lineStart, lineEnd, transaction)) {
+                records.add(transaction.build());
+            } else if (lineEnd + 1 >= content.length) {
+                // the last line of log.txt may be incomplete, need to delete it if so
+                System.out.println("The last record is incomplete in log file. Need to be deleted.");
+                try (FileChannel outChan = new FileOutputStream(dataDir + "log.txt", true).getChannel()) {
+                    outChan.truncate(lineStart);
+                } catch (IOException e) {
+                    System.out.println("Cannot truncate file log.txt.");
+                    return -1;
+                }
+            } else {
+                System.out.println("Incomplete record in log file.");
+                return -1;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return open() ? blockId : -1;
+    }
+
+    // the data directory was last used with segments: write their records to log.txt, then
+    // delete them
+    private boolean migrate() {
+        SegmentedLogStore segments = new SegmentedLogStore(dataDir, N, 0);
+        List<Transaction> records = new ArrayList<>();
+        int blockId = segments.recover(records);
+        segments.close();
+        if (blockId < 0 || !rewrite(dataDir, blockId, records))
+            return false;
+        System.out.println("Moved " + records.size() + " records from log segments to log.txt.");
+        return SegmentedLogStore.delete(dataDir);
+    }
+
+    private boolean open() {
+        try {
+            channel = FileChannel.open(Paths.get(dataDir + "log.txt"), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            channel.position(channel.size());
+        } catch (IOException e) {
+            System.out.println("Cannot open file " + dataDir + "log.txt");
+            return false;
+        }
+        return true;
+    }
+
+    // write the records with as few write calls as the buffer allows
+    @Override
+    void write(List<Transaction> records) throws IOException {
+        if (!finishRewrite(false))
+            throw new IOException("Cannot rewrite file " + dataDir + "log.txt");
+        if (channel == null)
+            throw new IOException("Cannot write to file " + dataDir + "log.txt");
+        buffer.clear();
+        for (Transaction transaction : records) {
+            if (buffer.remaining() < LogRecordCodec.MAX_RECORD_LENGTH)
+                drainToLog();
+            LogRecordCodec.encode(transaction, buffer);
+        }
+        drainToLog();
+        if (pendingRecords != null)
+            pendingRecords.addAll(records);
+    }
+
+    @Override
+    void sync() throws IOException {
+        channel.force(false);
+        if (next != null)
+            next.force(false);
+    }
+
+    // rewrite log.txt without the sealed records, in the background
+    @Override
+    boolean truncateBefore(int blockId, List<Transaction> rest) {
+        if (!finishRewrite(false))
+            return false;
+        if (next != null) {
+            pendingBlockId = blockId;
+            pendingRecords = new ArrayList<>(rest);
+            return true;
+        }
+        return startRewrite(blockId, rest);
+    }
+
+    @Override
+    void close() {
+        // leave log.txt without the sealed records: wait for the running rewrite, then for the
+        // one that was wanted meanwhile
+        finishRewrite(true);
+        finishRewrite(true);
+        if (compactor != null)
+            compactor.shutdown();
+        compactor = null;
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Cannot close file " + dataDir + "log.txt");
+        }
+        channel = null;
+    }
+
+    // start log_.txt with the header and records, and have the compactor thread make it durable
+    // and move it over log.txt; records written meanwhile go to both files
+    private boolean startRewrite(int blockId, List<Transaction> records) {
+        final ByteBuffer content = encode(blockId, records);
+        final FileChannel out;
+        try {
+            out = FileChannel.open(Paths.get(dataDir + "log_.txt"), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            System.out.println("Cannot write to file " + dataDir + "log_.txt");
+            return false;
+        }
+        if (compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "log-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        next = out;
+        nextPosition = content.remaining();
+        rewriting = compactor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    long position = 0;
+                    while (content.hasRemaining())
+                        position += out.write(content, position);
+                    out.force(false);
+                } catch (IOException e) {
+                    System.out.println("Cannot write to file " + dataDir + "log_.txt");
+                    return false;
+                }
+                return replace(dataDir);
+            }
+        });
+        return true;
+    }
+
+    // once the running rewrite is done (or, if wait, after waiting for it), append to the new
+    // log.txt and start the rewrite that was wanted meanwhile; false if the rewrite failed
+    private boolean finishRewrite(boolean wait) {
+        if (rewriting == null || (!wait && !rewriting.isDone()))
+            return true;
+        boolean ok;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ok = rewriting.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                ok = false;
+                break;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        rewriting = null;
+        FileChannel old = ok ? channel : next;
+        try {
+            if (ok) {
+                // only written at explicit positions so far
+                next.position(nextPosition);
+                channel = next;
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot seek in file " + dataDir + "log.txt");
+            ok = false;
+        }
+        next = null;
+        try {
+            old.close();
+        } catch (IOException e) {
+            System.out.println("Cannot close the old log file.");
+        }
+        if (!ok)
+            return false;
+        List<Transaction> records = pendingRecords;
+        pendingRecords = null;
+        return records == null || startRewrite(pendingBlockId, records);
+    }
+
+    // write out and clear the buffer, to log_.txt as well while it is being rewritten
+    private void drainToLog() throws IOException {
+        buffer.flip();
+        if (next != null) {
+            ByteBuffer copy = buffer.duplicate();
+            while (copy.hasRemaining())
+                nextPosition += next.write(copy, nextPosition);
+        }
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static ByteBuffer encode(int blockId, List<Transaction> records) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 + records.size() * LogRecordCodec.MAX_RECORD_LENGTH);
+        buffer.put((blockId + "\n").getBytes(StandardCharsets.US_ASCII));
+        for (Transaction transaction : records)
+            LogRecordCodec.encode(transaction, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // atomically replace log.txt with one holding the given header and records, via log_.txt
+    static boolean rewrite(String dataDir, int blockId, List<Transaction> records) {
+        ByteBuffer buffer = encode(blockId, records);
+        try (FileChannel out = FileChannel.open(Paths.get(dataDir + "log_.txt"), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+            out.force(false);
+        } catch (IOException e) {
+            System.out.println("Cannot write to file " + dataDir + "log_.txt");
+            return false;
+        }
+        return replace(dataDir);
+    }
+
+    // move log_.txt over log.txt and make the move durable
+    private static boolean replace(String dataDir) {
+        try {
+            Files.move(Paths.get(dataDir + "log_.txt"), Paths.get(dataDir + "log.txt"), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Cannot replace log.txt with log_.txt.");
+            return false;
+        }
+        try {
+            Util.syncDirectory(dataDir);
+        } catch (IOException e) {
+            System.out.println("Cannot sync directory " + dataDir + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+}
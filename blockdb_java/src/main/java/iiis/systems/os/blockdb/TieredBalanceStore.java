@@ -0,0 +1,689 @@
+package iiis.systems.os.blockdb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Balances of more accounts than fit in memory: a bounded hot set of recently used accounts,
+// evicted in CLOCK order, in front of balances.dat, a page-organized file holding every account
+// as of the last checkpoint.
+//
+// balances.dat is a header page followed by 4 KB pages of
+//
+//   int count, int next overflow page (0 for none), 340 x (long packed user id, int balance)
+//
+// An account lives in the chain of pages starting at primary page 1 + hash % primaryPages; a
+// full page links to an overflow page appended at the end of the file. The header page holds
+// int magic "BDBF", int version, int primaryPages, int totalPages, long accounts, long seq and a
+// CRC32 of those: the file reflects the first seq log records.
+//
+// The file only changes at a checkpoint. Accounts written since the last one are dirty and stay
+// in memory; a checkpoint copies them as of one sequence number, and once that record is durable
+// writes every page they fall into, then the header, to balances.journal, fsyncs it and copies
+// the pages into balances.dat. Recovery redoes a complete journal and replays the records after
+// the header's seq. Clean accounts are evicted freely and read back from the file on their next
+// use; if the hot set is full of dirty accounts it grows past its bound, and once half of it is
+// dirty it asks for an early checkpoint.
+class TieredBalanceStore implements BalanceStore {
+    static final int MAGIC = 0x42444246;
+    static final int VERSION = 1;
+    private static final String FILE_NAME = "balances.dat";
+    private static final String JOURNAL_NAME = "balances.journal";
+    private static final int JOURNAL_MAGIC = 0x42444a4e;
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGE_HEADER = 8;
+    private static final int SLOT = 12;
+    private static final int SLOTS = (PAGE_SIZE - PAGE_HEADER) / SLOT;
+    private static final int SEGMENTS = 64;
+
+    private static final byte REFERENCED = 1;
+    private static final byte DIRTY = 2;
+    // the account has a slot in balances.dat
+    private static final byte ON_DISK = 4;
+    // being read from balances.dat; other callers wait for it
+    private static final byte LOADING = 8;
+
+    // the accounts dirty at a checkpoint, with their balances
+    static final class Checkpoint {
+        final long seq;
+        final long[] userIds;
+        final int[] balances;
+
+        Checkpoint(long seq, long[] userIds, int[] balances) {
+            this.seq = seq;
+            this.userIds = userIds;
+            this.balances = balances;
+        }
+    }
+
+    // one lock's share of the hot set: CLOCK slots plus an open-addressing index from account to
+    // slot, with no per-account objects
+    private static final class Segment {
+        final int target;
+        long[] keys;
+        int[] values;
+        byte[] flags;
+        // slot + 1 of each account, 0 for an empty index entry
+        int[] index;
+        int[] free;
+        int freeCount;
+        int hand = 0;
+        int size = 0;
+        // dirty or loading, so not evictable
+        int pinned = 0;
+
+        Segment(int target) {
+            this.target = target;
+            allocate(target);
+        }
+
+        private void allocate(int capacity) {
+            int old = keys == null ? 0 : keys.length;
+            keys = keys == null ? new long[capacity] : Arrays.copyOf(keys, capacity);
+            values = values == null ? new int[capacity] : Arrays.copyOf(values, capacity);
+            flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+            free = free == null ? new int[capacity] : Arrays.copyOf(free, capacity);
+            for (int slot = capacity - 1; slot >= old; slot --)
+                free[freeCount ++] = slot;
+            int indexSize = 1;
+            while (indexSize < capacity * 2)
+                indexSize <<= 1;
+            index = new int[indexSize];
+            for (int slot = 0; slot < old; slot ++) {
+                if (keys[slot] != 0)
+                    link(keys[slot], slot);
+            }
+        }
+
+        int find(long key, int hash) {
+            int mask = index.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int slot = index[i];
+                if (slot == 0)
+                    return -1;
+                if (keys[slot - 1] == key)
+                    return slot - 1;
+            }
+        }
+
+        private void link(long key, int slot) {
+            int mask = index.length - 1;
+            int i = PackedBalanceStore.hash(key) & mask;
+            while (index[i] != 0)
+                i = (i + 1) & mask;
+            index[i] = slot + 1;
+        }
+
+        // remove the key from the index, shifting later entries of its probe run back
+        private void unlink(long key) {
+            int mask = index.length - 1;
+            int i = PackedBalanceStore.hash(key) & mask;
+            while (keys[index[i] - 1] != key)
+                i = (i + 1) & mask;
+            index[i] = 0;
+            for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+                int home = PackedBalanceStore.hash(keys[index[j] - 1]) & mask;
+                // the entry at j may move to i unless its home lies cyclically in (i, j]
+                boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+                if (!stays) {
+                    index[i] = index[j];
+                    index[j] = 0;
+                    i = j;
+                }
+            }
+        }
+
+        int insert(long key, int value, byte flag) {
+            int slot = size >= target ? evict() : -1;
+            if (slot < 0) {
+                if (freeCount == 0)
+                    allocate(keys.length * 2);
+                slot = free[-- freeCount];
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            flags[slot] = flag;
+            link(key, slot);
+            size ++;
+            if ((flag & (DIRTY | LOADING)) != 0)
+                pinned ++;
+            return slot;
+        }
+
+        // the slot of a clean account not referenced since the hand last passed it, now free,
+        // or -1 if every account is pinned
+        private int evict() {
+            if (pinned >= size)
+                return -1;
+            for (int i = 0; i < 2 * keys.length; i ++) {
+                int slot = hand;
+                hand = hand + 1 == keys.length ? 0 : hand + 1;
+                if (keys[slot] == 0 || (flags[slot] & (DIRTY | LOADING)) != 0)
+                    continue;
+                if ((flags[slot] & REFERENCED) != 0) {
+                    flags[slot] &= ~REFERENCED;
+                    continue;
+                }
+                unlink(keys[slot]);
+                keys[slot] = 0;
+                size --;
+                return slot;
+            }
+            return -1;
+        }
+
+        void remove(int slot) {
+            unlink(keys[slot]);
+            keys[slot] = 0;
+            if ((flags[slot] & (DIRTY | LOADING)) != 0)
+                pinned --;
+            size --;
+            free[freeCount ++] = slot;
+        }
+    }
+
+    private final String dataDir;
+    private final int expectedAccounts;
+    private final int dirtyLimit;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicInteger dirtyAccounts = new AtomicInteger();
+    // dirty accounts without a slot in the file yet
+    private final AtomicInteger newAccounts = new AtomicInteger();
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicBoolean pressureSignalled = new AtomicBoolean();
+    private volatile Runnable pressureListener;
+    private FileChannel channel;
+
+    // the header, changed only by checkpoints
+    private int primaryPages;
+    private int totalPages;
+    private volatile long diskAccounts;
+    private long seq;
+
+    TieredBalanceStore(String dataDir, int cacheAccounts, int expectedAccounts) {
+        this.dataDir = dataDir;
+        this.expectedAccounts = expectedAccounts;
+        this.dirtyLimit = Math.max(1, cacheAccounts / 2);
+        for (int i = 0; i < SEGMENTS; i ++)
+            segments[i] = new Segment(Math.max(16, cacheAccounts / SEGMENTS));
+    }
+
+    // open balances.dat, redoing an interrupted checkpoint, and return the sequence number it
+    // reflects; a file that is damaged or ahead of the log (maxSeq) is started over from 0.
+    // Returns -1 if the file cannot be used
+    long open(long maxSeq) {
+        try {
+            channel = FileChannel.open(Paths.get(dataDir + FILE_NAME), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            File journal = new File(dataDir + JOURNAL_NAME);
+            if (journal.exists()) {
+                if (redo(journal, false)) {
+                    redo(journal, true);
+                    channel.force(false);
+                    System.out.println("Redid the interrupted checkpoint in " + dataDir + JOURNAL_NAME + ".");
+                } else {
+                    System.out.println("Discarding the incomplete checkpoint in " + dataDir + JOURNAL_NAME + ".");
+                }
+                if (!journal.delete())
+                    throw new IOException("Cannot delete file " + dataDir + JOURNAL_NAME);
+            }
+            boolean empty = channel.size() == 0;
+            if (!readHeader() || seq < 0 || seq > maxSeq) {
+                if (!empty)
+                    System.out.println(dataDir + FILE_NAME + " is damaged, incomplete or ahead of the log. Rebuilding it.");
+                reset();
+            }
+        } catch (IOException e) {
+            System.out.println("Cannot open file " + dataDir + FILE_NAME + ": " + e.getMessage());
+            return -1;
+        }
+        return seq;
+    }
+
+    private boolean readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(40);
+        if (channel.read(header, 0) < header.capacity())
+            return false;
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, 32);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            return false;
+        int primary = header.getInt();
+        int total = header.getInt();
+        long accounts = header.getLong();
+        long checkpointSeq = header.getLong();
+        if (header.getLong() != crc.getValue() || primary < 1 || total < primary + 1)
+            return false;
+        primaryPages = primary;
+        totalPages = total;
+        diskAccounts = accounts;
+        seq = checkpointSeq;
+        return true;
+    }
+
+    // an empty file with one primary page per 3/4 page of expected accounts
+    private void reset() throws IOException {
+        primaryPages = Math.max(1, (int) ((long) expectedAccounts * 4 / (SLOTS * 3)));
+        totalPages = primaryPages + 1;
+        diskAccounts = 0;
+        seq = 0;
+        channel.truncate(0);
+        write(0, headerPage());
+        // the primary pages read as empty until they are written
+        write((long) totalPages * PAGE_SIZE - 1, ByteBuffer.wrap(new byte[1]));
+        channel.force(false);
+    }
+
+    private ByteBuffer headerPage() {
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        page.putInt(MAGIC).putInt(VERSION).putInt(primaryPages).putInt(totalPages).putLong(diskAccounts).putLong(seq);
+        CRC32 crc = new CRC32();
+        crc.update(page.array(), 0, 32);
+        page.putLong(crc.getValue());
+        page.clear();
+        return page;
+    }
+
+    private void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    // a page of the file; pages past its end read as empty
+    private ByteBuffer readPage(int pageNo) throws IOException {
+        ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+        long position = (long) pageNo * PAGE_SIZE;
+        while (page.hasRemaining()) {
+            int n = channel.read(page, position + page.position());
+            if (n < 0)
+                break;
+        }
+        page.clear();
+        return page;
+    }
+
+    private int primaryPage(long userId) {
+        return 1 + (int) ((PackedBalanceStore.hash(userId) & 0xffffffffL) % primaryPages);
+    }
+
+    // whether balances.dat holds the account; its balance goes to balance[0]
+    private boolean lookup(long userId, int[] balance) throws IOException {
+        int pageNo = primaryPage(userId);
+        while (pageNo != 0) {
+            ByteBuffer page = readPage(pageNo);
+            int count = Math.min(page.getInt(0), SLOTS);
+            for (int slot = 0; slot < count; slot ++) {
+                if (page.getLong(PAGE_HEADER + slot * SLOT) == userId) {
+                    balance[0] = page.getInt(PAGE_HEADER + slot * SLOT + 8);
+                    return true;
+                }
+            }
+            pageNo = page.getInt(4);
+        }
+        return false;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    @Override
+    public int get(long userId) {
+        int hash = PackedBalanceStore.hash(userId);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = find(segment, userId, hash);
+            if (slot >= 0) {
+                segment.flags[slot] |= REFERENCED;
+                return segment.values[slot];
+            }
+            // reserve a slot, so a write that comes while the page is read waits for it
+            segment.insert(userId, 0, LOADING);
+        }
+
+        faults.incrementAndGet();
+        int[] balance = new int[1];
+        boolean found;
+        try {
+            found = lookup(userId, balance);
+        } catch (IOException e) {
+            synchronized (segment) {
+                segment.remove(segment.find(userId, hash));
+                segment.notifyAll();
+            }
+            throw new StoreException("Cannot read file " + dataDir + FILE_NAME + ": " + e.getMessage(), e);
+        }
+        synchronized (segment) {
+            int slot = segment.find(userId, hash);
+            segment.values[slot] = found ? balance[0] : 0;
+            segment.flags[slot] = found ? ON_DISK | REFERENCED : REFERENCED;
+            segment.pinned --;
+            segment.notifyAll();
+            return segment.values[slot];
+        }
+    }
+
+    // bring the account into the hot set, reading its page if it is not there, so a write that
+    // follows under the account's lock does not wait for the disk
+    void prefetch(long userId) {
+        get(userId);
+    }
+
+    // the account's slot once it is not loading, or -1; called with the segment locked
+    private static int find(Segment segment, long userId, int hash) {
+        while (true) {
+            int slot = segment.find(userId, hash);
+            if (slot < 0 || (segment.flags[slot] & LOADING) == 0)
+                return slot;
+            try {
+                segment.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StoreException("Interrupted while reading account " + UserIds.unpack(userId), e);
+            }
+        }
+    }
+
+    @Override
+    public void put(long userId, int balance) {
+        int hash = PackedBalanceStore.hash(userId);
+        Segment segment = segmentFor(hash);
+        while (true) {
+            // bring the account in first, to know whether the file has it; after a prefetch this
+            // only reads the file if the account was evicted again meanwhile
+            get(userId);
+            synchronized (segment) {
+                int slot = find(segment, userId, hash);
+                if (slot < 0)
+                    continue;
+                segment.values[slot] = balance;
+                byte flag = segment.flags[slot];
+                segment.flags[slot] = (byte) (flag | DIRTY | REFERENCED);
+                if ((flag & DIRTY) != 0)
+                    return;
+                segment.pinned ++;
+                if ((flag & ON_DISK) == 0)
+                    newAccounts.incrementAndGet();
+            }
+            if (dirtyAccounts.incrementAndGet() > dirtyLimit && pressureSignalled.compareAndSet(false, true)) {
+                Runnable listener = pressureListener;
+                if (listener != null)
+                    listener.run();
+            }
+            return;
+        }
+    }
+
+    // called once more than half the hot set is dirty, until the next checkpoint
+    void setPressureListener(Runnable listener) {
+        pressureListener = listener;
+    }
+
+    boolean needsCheckpoint() {
+        return dirtyAccounts.get() > dirtyLimit;
+    }
+
+    @Override
+    public int size() {
+        return (int) (diskAccounts + newAccounts.get());
+    }
+
+    int getCachedAccounts() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    int getDirtyAccounts() {
+        return dirtyAccounts.get();
+    }
+
+    long getFaults() {
+        return faults.get();
+    }
+
+    // visit every account, reading the whole file; the caller must keep writers out
+    @Override
+    public void forEach(Visitor visitor) {
+        try {
+            for (int primary = 1; primary <= primaryPages; primary ++) {
+                for (int pageNo = primary; pageNo != 0; ) {
+                    ByteBuffer page = readPage(pageNo);
+                    int count = Math.min(page.getInt(0), SLOTS);
+                    for (int slot = 0; slot < count; slot ++) {
+                        long userId = page.getLong(PAGE_HEADER + slot * SLOT);
+                        visitor.visit(userId, cachedOr(userId, page.getInt(PAGE_HEADER + slot * SLOT + 8)));
+                    }
+                    pageNo = page.getInt(4);
+                }
+            }
+        } catch (IOException e) {
+            throw new StoreException("Cannot read file " + dataDir + FILE_NAME + ": " + e.getMessage(), e);
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot ++) {
+                    if (segment.keys[slot] != 0 && (segment.flags[slot] & (DIRTY | ON_DISK)) == DIRTY)
+                        visitor.visit(segment.keys[slot], segment.values[slot]);
+                }
+            }
+        }
+    }
+
+    private int cachedOr(long userId, int balance) {
+        int hash = PackedBalanceStore.hash(userId);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = find(segment, userId, hash);
+            return slot >= 0 ? segment.values[slot] : balance;
+        }
+    }
+
+    // copy the dirty accounts; seq is the sequence number of the last record applied (-1 while
+    // the balances match no record, e.g. halfway through loading a snapshot). Writers may run
+    // meanwhile, in which case the caller replaces the balances of later writes with those as
+    // of seq before writing the checkpoint
+    Checkpoint capture(long seq) {
+        long[] userIds = new long[dirtyAccounts.get()];
+        int[] balances = new int[userIds.length];
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot ++) {
+                    if (segment.keys[slot] == 0 || (segment.flags[slot] & DIRTY) == 0)
+                        continue;
+                    if (count == userIds.length) {
+                        userIds = Arrays.copyOf(userIds, count * 2 + 16);
+                        balances = Arrays.copyOf(balances, userIds.length);
+                    }
+                    userIds[count] = segment.keys[slot];
+                    balances[count] = segment.values[slot];
+                    count ++;
+                }
+            }
+        }
+        return new Checkpoint(seq, Arrays.copyOf(userIds, count), Arrays.copyOf(balances, count));
+    }
+
+    // write the checkpoint's accounts to balances.dat through the journal, then mark those not
+    // written again since clean. Only one checkpoint runs at a time, and its records must be durable
+    void write(Checkpoint checkpoint) throws IOException {
+        // visit the accounts page chain by page chain
+        long[] order = new long[checkpoint.userIds.length];
+        for (int i = 0; i < order.length; i ++)
+            order[i] = (long) primaryPage(checkpoint.userIds[i]) << 32 | i;
+        Arrays.sort(order);
+
+        File journal = new File(dataDir + JOURNAL_NAME);
+        int inserted = 0;
+        try (FileOutputStream file = new FileOutputStream(journal)) {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(checkpoint.seq);
+            List<ByteBuffer> chain = new ArrayList<>();
+            List<Integer> chainPages = new ArrayList<>();
+            int k = 0;
+            while (k < order.length) {
+                int primary = (int) (order[k] >>> 32);
+                int end = k;
+                while (end < order.length && (int) (order[end] >>> 32) == primary)
+                    end ++;
+                chain.clear();
+                chainPages.clear();
+                for (int pageNo = primary; pageNo != 0; ) {
+                    ByteBuffer page = readPage(pageNo);
+                    chain.add(page);
+                    chainPages.add(pageNo);
+                    pageNo = page.getInt(4);
+                }
+                // each account adds at most one overflow page
+                boolean[] modified = new boolean[chain.size() + end - k];
+                for (; k < end; k ++) {
+                    int i = (int) order[k];
+                    int result = update(chain, modified, checkpoint.userIds[i], checkpoint.balances[i]);
+                    if (result < 0) {
+                        // the chain is full: link a new overflow page to its end
+                        chain.get(chain.size() - 1).putInt(4, totalPages);
+                        modified[chain.size() - 1] = true;
+                        chain.add(ByteBuffer.allocate(PAGE_SIZE));
+                        chainPages.add(totalPages ++);
+                        result = update(chain, modified, checkpoint.userIds[i], checkpoint.balances[i]);
+                    }
+                    inserted += result;
+                }
+                for (int p = 0; p < chain.size(); p ++) {
+                    if (modified[p]) {
+                        out.writeInt(chainPages.get(p));
+                        out.write(chain.get(p).array());
+                    }
+                }
+            }
+            diskAccounts += inserted;
+            seq = checkpoint.seq;
+            out.writeInt(0);
+            out.write(headerPage().array());
+            out.writeInt(-1);
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(false);
+        }
+        redo(journal, true);
+        channel.force(false);
+        if (!journal.delete())
+            System.out.println("Cannot delete file " + dataDir + JOURNAL_NAME + "; it is redone on the next start.");
+
+        int cleaned = 0;
+        int stored = 0;
+        for (int i = 0; i < checkpoint.userIds.length; i ++) {
+            long userId = checkpoint.userIds[i];
+            int hash = PackedBalanceStore.hash(userId);
+            Segment segment = segmentFor(hash);
+            synchronized (segment) {
+                int slot = segment.find(userId, hash);
+                if (slot < 0)
+                    continue;
+                if ((segment.flags[slot] & ON_DISK) == 0) {
+                    segment.flags[slot] |= ON_DISK;
+                    stored ++;
+                }
+                if ((segment.flags[slot] & DIRTY) != 0 && segment.values[slot] == checkpoint.balances[i]) {
+                    segment.flags[slot] &= ~DIRTY;
+                    segment.pinned --;
+                    cleaned ++;
+                }
+            }
+        }
+        newAccounts.addAndGet(-stored);
+        dirtyAccounts.addAndGet(-cleaned);
+        pressureSignalled.set(false);
+    }
+
+    // set the account's balance in its page chain, or add it to the first page with room;
+    // returns 0 if it was there, 1 if it was added and -1 if every page is full
+    private static int update(List<ByteBuffer> chain, boolean[] modified, long userId, int balance) {
+        for (int p = 0; p < chain.size(); p ++) {
+            ByteBuffer page = chain.get(p);
+            int count = Math.min(page.getInt(0), SLOTS);
+            for (int slot = 0; slot < count; slot ++) {
+                if (page.getLong(PAGE_HEADER + slot * SLOT) == userId) {
+                    page.putInt(PAGE_HEADER + slot * SLOT + 8, balance);
+                    modified[p] = true;
+                    return 0;
+                }
+            }
+        }
+        for (int p = 0; p < chain.size(); p ++) {
+            ByteBuffer page = chain.get(p);
+            int count = page.getInt(0);
+            if (count < SLOTS) {
+                page.putLong(PAGE_HEADER + count * SLOT, userId);
+                page.putInt(PAGE_HEADER + count * SLOT + 8, balance);
+                page.putInt(0, count + 1);
+                modified[p] = true;
+                return 1;
+            }
+        }
+        return -1;
+    }
+
+    // check that the journal is complete, or with apply, copy its pages into balances.dat
+    private boolean redo(File journal, boolean apply) throws IOException {
+        try (FileInputStream file = new FileInputStream(journal)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != JOURNAL_MAGIC)
+                return false;
+            in.readLong();
+            byte[] page = new byte[PAGE_SIZE];
+            while (true) {
+                int pageNo = in.readInt();
+                if (pageNo < 0)
+                    break;
+                in.readFully(page);
+                if (apply)
+                    write((long) pageNo * PAGE_SIZE, ByteBuffer.wrap(page));
+            }
+            long expected = checked.getChecksum().getValue();
+            return in.readLong() == expected;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Cannot close file " + dataDir + FILE_NAME);
+        }
+        channel = null;
+    }
+}
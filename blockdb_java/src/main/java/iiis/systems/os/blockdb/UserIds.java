@@ -0,0 +1,40 @@
+package iiis.systems.os.blockdb;
+
+// User IDs are exactly 8 characters from [a-zA-Z0-9], so an ID fits in one long: its ASCII
+// bytes, first character in the most significant byte. No valid ID packs to 0.
+final class UserIds {
+    static final int LENGTH = 8;
+
+    private UserIds() {
+    }
+
+    // same as userId.matches("[a-zA-Z0-9]{8}"), without compiling a regex on every call
+    static boolean isValid(String userId) {
+        if (userId.length() != LENGTH)
+            return false;
+        for (int i = 0; i < LENGTH; i ++) {
+            char c = userId.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')))
+                return false;
+        }
+        return true;
+    }
+
+    static long pack(String userId) {
+        if (userId.length() != LENGTH)
+            throw new IllegalArgumentException("User ID " + userId + " is not " + LENGTH + " characters long.");
+        long packed = 0;
+        for (int i = 0; i < LENGTH; i ++)
+            packed = (packed << 8) | (userId.charAt(i) & 0xff);
+        return packed;
+    }
+
+    static String unpack(long packed) {
+        char[] chars = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i --) {
+            chars[i] = (char) (packed & 0xff);
+            packed >>>= 8;
+        }
+        return new String(chars);
+    }
+}
@@ -3,12 +3,25 @@ package iiis.systems.os.blockdb;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class Util {
     public static JSONObject readJsonFile(String filePath) throws IOException {
         String content = new String(Files.readAllBytes(Paths.get(filePath)));
         return new JSONObject(content);
     }
+
+    // fsync a directory, so the files created, renamed and deleted in it so far survive a power
+    // loss; fsyncing a file does not cover its directory entry. Directories cannot be opened on
+    // Windows, so this does nothing there
+    static void syncDirectory(String dir) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows"))
+            return;
+        try (FileChannel channel = FileChannel.open(Paths.get(dir), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
 }
@@ -0,0 +1,330 @@
+package iiis.systems.os.blockdb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Multi-version reads on top of a BalanceStore.
+//
+// Every write installs a version (sequence number, new value, old value) of each account it
+// changes while the log is assigning the record its sequence number, so a record can only become
+// durable after its versions are visible. Readers pick the durable sequence number as their read
+// point and take the newest version of the account at or before it, taking no lock a writer
+// holds; accounts without a version have not been written since their last one was pruned, so
+// the base store holds their value.
+//
+// Versions live in stripes picked by account hash, each a ring of (account, seq, value, old value)
+// entries in seq order, held in preallocated primitive arrays that only grow when a reader keeps
+// many versions alive. Installs append at the head; a reader scans the ring from the head back
+// and retries if a prune or a resize changed the stripe meanwhile.
+//
+// Rings only need the versions some reader can still ask for. Each multi-account reader
+// registers its read point in a slot while it reads. A version can go once every registered
+// reader (and the durable sequence number) has passed the next version of its account, or, for
+// the newest one, once the base store holds its value; versions are dropped from the tail of each
+// ring, by installs as they append and by the pruner thread.
+class VersionedBalances {
+    private static final int STRIPE_BITS = 8;
+    private static final int INITIAL_CAPACITY = 8;
+    // longs per entry: account, seq, value << 32 | old value
+    private static final int ENTRY = 3;
+
+    private static final class Stripe {
+        volatile AtomicLongArray entries = new AtomicLongArray(INITIAL_CAPACITY * ENTRY);
+        // seq of the next version of each entry's account, Long.MAX_VALUE for the newest;
+        // only used under the stripe's lock
+        long[] nextSeqs = new long[INITIAL_CAPACITY];
+        // positions of the oldest entry and the next one to install; slot = position & (capacity - 1)
+        volatile long tail = 0;
+        volatile long head = 0;
+        // changed after every prune or resize, so a reader that overlapped one scans again
+        volatile long stamp = 0;
+    }
+
+    // balances as of one sequence number; close it when done reading
+    class Reader implements AutoCloseable {
+        private final int slot;
+        private final long seq;
+
+        private Reader(int slot, long seq) {
+            this.slot = slot;
+            this.seq = seq;
+        }
+
+        long seq() {
+            return seq;
+        }
+
+        int get(long userId) {
+            return read(userId, seq);
+        }
+
+        // the balance, given a value of the account read from the base store after this reader
+        // was opened, e.g. while visiting it
+        int get(long userId, int baseValue) {
+            long found = find(stripeOf(userId), userId, seq);
+            return found == NOT_FOUND ? baseValue : (int) found;
+        }
+
+        @Override
+        public void close() {
+            readers.set(slot, 0);
+        }
+    }
+
+    private static final int PRUNE_INTERVAL_MS = 20;
+
+    private final BalanceStore base;
+    private final WriteAheadLog log;
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    // read point + 1 of each active reader, 0 for a free slot
+    private final AtomicLongArray readers;
+    // no version a reader below this point may need is guaranteed to be kept
+    private volatile long pruneFloor = 0;
+    // every reader has passed this point as of the last prune, so installs can drop versions
+    // superseded at or before it
+    private volatile long horizon = 0;
+    private final Thread pruner;
+    private volatile boolean closed = false;
+
+    VersionedBalances(BalanceStore base, WriteAheadLog log) {
+        this.base = base;
+        this.log = log;
+        for (int i = 0; i < stripes.length; i ++)
+            stripes[i] = new Stripe();
+        int slots = 1;
+        while (slots < Runtime.getRuntime().availableProcessors() * 4)
+            slots <<= 1;
+        readers = new AtomicLongArray(slots);
+        pruner = new Thread("version-pruner") {
+            @Override
+            public void run() {
+                pruneLoop();
+            }
+        };
+        pruner.setDaemon(true);
+        pruner.start();
+    }
+
+    private Stripe stripeOf(long userId) {
+        return stripes[PackedBalanceStore.hash(userId) >>> (32 - STRIPE_BITS)];
+    }
+
+    // called with the account's lock held and inside the log's append, before the base store
+    // is updated; installs are therefore in seq order
+    void install(long userId, long seq, int value, int prevValue) {
+        Stripe stripe = stripeOf(userId);
+        synchronized (stripe) {
+            dropSuperseded(stripe, horizon);
+            AtomicLongArray entries = stripe.entries;
+            int capacity = stripe.nextSeqs.length;
+            if (stripe.head - stripe.tail == capacity) {
+                entries = grow(stripe);
+                capacity = stripe.nextSeqs.length;
+            }
+            int mask = capacity - 1;
+            for (long position = stripe.head - 1; position >= stripe.tail; position --) {
+                if (entries.get((int) (position & mask) * ENTRY) == userId) {
+                    stripe.nextSeqs[(int) (position & mask)] = seq;
+                    break;
+                }
+            }
+            int slot = (int) (stripe.head & mask);
+            entries.lazySet(slot * ENTRY, userId);
+            entries.lazySet(slot * ENTRY + 1, seq);
+            entries.lazySet(slot * ENTRY + 2, (long) value << 32 | (prevValue & 0xffffffffL));
+            stripe.nextSeqs[slot] = Long.MAX_VALUE;
+            // publishes the entry: a reader that sees the new head sees what was written before it
+            stripe.head = stripe.head + 1;
+        }
+    }
+
+    // double the ring, keeping the entries at their positions; called with the stripe locked
+    private static AtomicLongArray grow(Stripe stripe) {
+        AtomicLongArray old = stripe.entries;
+        int oldMask = stripe.nextSeqs.length - 1;
+        int capacity = stripe.nextSeqs.length * 2;
+        AtomicLongArray entries = new AtomicLongArray(capacity * ENTRY);
+        long[] nextSeqs = new long[capacity];
+        for (long position = stripe.tail; position < stripe.head; position ++) {
+            int from = (int) (position & oldMask);
+            int to = (int) (position & (capacity - 1));
+            for (int k = 0; k < ENTRY; k ++)
+                entries.lazySet(to * ENTRY + k, old.get(from * ENTRY + k));
+            nextSeqs[to] = stripe.nextSeqs[from];
+        }
+        stripe.entries = entries;
+        stripe.nextSeqs = nextSeqs;
+        stripe.stamp = stripe.stamp + 1;
+        return entries;
+    }
+
+    // balances as of the durable sequence number
+    Reader reader() {
+        long seq = log.getDurableSeq();
+        int slot = register(seq);
+        // a prune that did not see this slot may already drop versions up to its floor
+        while (seq < pruneFloor) {
+            seq = log.getDurableSeq();
+            readers.set(slot, seq + 1);
+        }
+        return new Reader(slot, seq);
+    }
+
+    // balances as of seq, which must not be older than the durable sequence number, e.g. the last
+    // appended record while every writer is locked out; no prune can have passed it yet
+    Reader reader(long seq) {
+        return new Reader(register(seq), seq);
+    }
+
+    // a free reader slot, now holding seq
+    private int register(long seq) {
+        int start = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        int mask = readers.length() - 1;
+        while (true) {
+            for (int i = 0; i <= mask; i ++) {
+                int slot = (start + i) & mask;
+                if (readers.get(slot) == 0 && readers.compareAndSet(slot, 0, seq + 1))
+                    return slot;
+            }
+            Thread.yield();
+        }
+    }
+
+    // the balance as of a durable record no older than the call. A single read needs no read
+    // point: a prune only drops a version once a durable one after it is kept, or the base store
+    // holds its value, so the read ends at the newest version at or before seq or at a durable
+    // one after it.
+    int readDurable(long userId) {
+        return read(userId, log.getDurableSeq());
+    }
+
+    private int read(long userId, long seq) {
+        Stripe stripe = stripeOf(userId);
+        while (true) {
+            long found = find(stripe, userId, seq);
+            if (found != NOT_FOUND)
+                return (int) found;
+            int value = base.get(userId);
+            // a writer installs its version before updating the base store, so if there is still
+            // no version, the value is not from a write after seq
+            if (find(stripe, userId, seq) == NOT_FOUND)
+                return value;
+        }
+    }
+
+    private static final long NOT_FOUND = Long.MIN_VALUE;
+
+    // the value of the newest version at or before seq, else the old value of the oldest version
+    // after it, or NOT_FOUND if the ring holds no version of the account
+    private static long find(Stripe stripe, long userId, long seq) {
+        while (true) {
+            long stamp = stripe.stamp;
+            AtomicLongArray entries = stripe.entries;
+            long head = stripe.head;
+            long tail = stripe.tail;
+            int mask = entries.length() / ENTRY - 1;
+            long result = NOT_FOUND;
+            for (long position = head - 1; position >= tail; position --) {
+                int slot = (int) (position & mask);
+                if (entries.get(slot * ENTRY) != userId)
+                    continue;
+                long values = entries.get(slot * ENTRY + 2);
+                if (entries.get(slot * ENTRY + 1) <= seq) {
+                    result = values >> 32;
+                    break;
+                }
+                result = (int) values;
+            }
+            if (stripe.stamp == stamp)
+                return result;
+        }
+    }
+
+    // number of versions kept
+    int size() {
+        long size = 0;
+        for (Stripe stripe : stripes)
+            size += stripe.head - stripe.tail;
+        return (int) size;
+    }
+
+    void close() {
+        closed = true;
+        pruner.interrupt();
+        try {
+            pruner.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pruneLoop() {
+        boolean reported = false;
+        while (!closed) {
+            try {
+                Thread.sleep(PRUNE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                prune();
+            } catch (BalanceStore.StoreException e) {
+                // the versions are kept and tried again on the next round
+                if (!reported)
+                    System.out.println("Cannot prune versions: " + e.getMessage());
+                reported = true;
+            }
+        }
+    }
+
+    // drop the versions at the tail of each ring that no reader at or after the oldest read
+    // point can need
+    void prune() {
+        long horizon = log.getDurableSeq();
+        pruneFloor = horizon;
+        for (int slot = 0; slot < readers.length(); slot ++) {
+            long seq = readers.get(slot) - 1;
+            if (seq >= 0)
+                horizon = Math.min(horizon, seq);
+        }
+        this.horizon = horizon;
+        for (Stripe stripe : stripes) {
+            if (stripe.head == stripe.tail)
+                continue;
+            synchronized (stripe) {
+                dropSuperseded(stripe, horizon);
+                // the newest version of an account can go once its writer has also updated the
+                // base store
+                AtomicLongArray entries = stripe.entries;
+                int mask = stripe.nextSeqs.length - 1;
+                long tail = stripe.tail;
+                while (tail < stripe.head) {
+                    int slot = (int) (tail & mask);
+                    long nextSeq = stripe.nextSeqs[slot];
+                    if (nextSeq > horizon && (nextSeq != Long.MAX_VALUE || entries.get(slot * ENTRY + 1) > horizon
+                            || base.get(entries.get(slot * ENTRY)) != (int) (entries.get(slot * ENTRY + 2) >> 32)))
+                        break;
+                    tail ++;
+                }
+                advance(stripe, tail);
+            }
+        }
+    }
+
+    // drop the versions at the tail whose account has a newer version at or before horizon;
+    // called with the stripe locked
+    private static void dropSuperseded(Stripe stripe, long horizon) {
+        int mask = stripe.nextSeqs.length - 1;
+        long tail = stripe.tail;
+        while (tail < stripe.head && stripe.nextSeqs[(int) (tail & mask)] <= horizon)
+            tail ++;
+        advance(stripe, tail);
+    }
+
+    private static void advance(Stripe stripe, long tail) {
+        if (tail == stripe.tail)
+            return;
+        stripe.tail = tail;
+        // the freed slots may be reused from now on; readers that started before see the change
+        stripe.stamp = stripe.stamp + 1;
+    }
+}
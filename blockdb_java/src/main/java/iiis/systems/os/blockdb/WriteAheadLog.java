@@ -0,0 +1,383 @@
+package iiis.systems.os.blockdb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Append-only transaction log on top of a LogStore (log.txt or memory-mapped segments).
+//
+// Callers append a record and then wait until the sequence number it was given is durable.
+// A dedicated writer thread drains everything appended since its last round into one write
+// (group commit), so concurrent transactions share the cost of a single write. Written records
+// become durable at the next fsync, which the sync policy may put off so that several writes
+// share it.
+//
+// Every N records the writer hands the block's transactions to the BlockFlusher and keeps
+// appending behind them; the store only drops the sealed records after the flusher reports the
+// block file is on disk.
+public class WriteAheadLog {
+    public enum SyncPolicy {
+        ALWAYS,     // fsync after every write
+        INTERVAL,   // fsync at most every syncIntervalMs milliseconds
+        RECORDS;    // fsync once syncRecords records are unsynced, or syncIntervalMs after the
+                    // oldest of them was appended
+
+        public static SyncPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    // runs inside append once the record has its sequence number, before the writer thread can
+    // see the record, so whatever it publishes is visible by the time the record is durable
+    public interface Publisher {
+        void publish(long seq);
+    }
+
+    // told about records once they are durable, in order, and about blocks once they are sealed
+    public interface Listener {
+        void durable(long firstSeq, List<Transaction> records);
+
+        void sealed(int blockId);
+    }
+
+    private final LogStore store;
+    private final int N;
+    private final SyncPolicy policy;
+    private final long syncIntervalMs;
+    private final int syncRecords;
+    private final BlockFlusher flusher;
+    private final Histogram writeLatency;
+    private final Histogram fsyncLatency;
+    private final Histogram batchSize;
+    private final Histogram durableWait;
+
+    private final Object lock = new Object();
+    private List<Transaction> pending = new ArrayList<>();
+    private long pendingSince = 0;
+    private long appendedSeq;
+    private volatile long durableSeq;
+    // moving average of the durable wait, in microseconds, and when it was last sampled
+    private volatile long appendLatency = 0;
+    private volatile long appendLatencySampled = 0;
+    private int sealedBlocks = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    // owned by the writer thread: the first block the store holds records of, the records from
+    // its start on, and how many of those have already been handed to the flusher
+    private int headerBlockId;
+    private List<Transaction> fileRecords;
+    private int handedOff = 0;
+    // also owned by the writer: records written to the store but not synced yet, when the first
+    // of them was appended, and when the store was last synced
+    private List<Transaction> unsynced = new ArrayList<>();
+    private long unsyncedSince = 0;
+    private long lastSync = 0;
+    private volatile int length;
+    private final Thread writer;
+    private volatile Listener listener;
+
+    // the store must have been recovered, with the given records after the sealed blocks
+    WriteAheadLog(LogStore store, int N, int blockId, List<Transaction> records, long startSeq,
+                  SyncPolicy policy, long syncIntervalMs, int syncRecords, BlockFlusher flusher, Metrics metrics) {
+        this.store = store;
+        this.N = N;
+        this.headerBlockId = blockId;
+        this.fileRecords = new ArrayList<>(records);
+        this.length = records.size();
+        this.appendedSeq = startSeq;
+        this.durableSeq = startSeq;
+        this.policy = policy;
+        this.syncIntervalMs = Math.max(1, syncIntervalMs);
+        this.syncRecords = Math.max(1, syncRecords);
+        this.flusher = flusher;
+        this.writeLatency = metrics.histogram("log.write", "us");
+        this.fsyncLatency = metrics.histogram("log.fsync", "us");
+        this.batchSize = metrics.histogram("log.groupCommit", "records");
+        this.durableWait = metrics.histogram("log.durableWait", "us");
+
+        writer = new Thread("log-writer") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        flusher.start(this);
+    }
+
+    // enqueue a record; returns its sequence number, or -1 if the log is no longer writable
+    public long append(Transaction transaction) {
+        return append(transaction, null);
+    }
+
+    public long append(Transaction transaction, Publisher publisher) {
+        synchronized (lock) {
+            if (failed || closed)
+                return -1;
+            if (pending.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+                lock.notifyAll();
+            }
+            pending.add(transaction);
+            ++appendedSeq;
+            if (publisher != null)
+                publisher.publish(appendedSeq);
+            return appendedSeq;
+        }
+    }
+
+    // enqueue records so the writer commits them in the same write; returns the sequence number
+    // of the last one, or -1 if the log is no longer writable
+    public long appendAll(List<Transaction> transactions) {
+        return appendAll(transactions, null);
+    }
+
+    // the publisher gets the sequence number of the last record
+    public long appendAll(List<Transaction> transactions, Publisher publisher) {
+        synchronized (lock) {
+            if (failed || closed)
+                return -1;
+            if (pending.isEmpty()) {
+                pendingSince = System.currentTimeMillis();
+                lock.notifyAll();
+            }
+            pending.addAll(transactions);
+            appendedSeq += transactions.size();
+            if (publisher != null)
+                publisher.publish(appendedSeq);
+            return appendedSeq;
+        }
+    }
+
+    // block until the record with the given sequence number is on disk
+    public boolean awaitDurable(long seq) {
+        if (seq < 0)
+            return false;
+        long start = System.nanoTime();
+        synchronized (lock) {
+            while (durableSeq < seq && !failed) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            long now = System.nanoTime();
+            long micros = (now - start) / 1000;
+            durableWait.record(micros);
+            appendLatency += (micros - appendLatency) / 8;
+            appendLatencySampled = now;
+            return durableSeq >= seq;
+        }
+    }
+
+    // sequence number of the last appended record; stable while every writer is locked out
+    public long getAppendedSeq() {
+        synchronized (lock) {
+            return appendedSeq;
+        }
+    }
+
+    // recent time callers waited for their records to be durable, in microseconds, smoothed over
+    // about the last eight waits; 0 once no wait has ended for maxAgeMs, as the log is then idle
+    public long getAppendLatency(long maxAgeMs) {
+        if (System.nanoTime() - appendLatencySampled > maxAgeMs * 1000000)
+            return 0;
+        return appendLatency;
+    }
+
+    // sequence number of the last durable record; read without taking the log's lock
+    public long getDurableSeq() {
+        return durableSeq;
+    }
+
+    // number of records in the log that have not been handed to the flusher yet
+    public int getLength() {
+        return length;
+    }
+
+    // set before the first append
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // stop taking transactions after an error outside the writer thread; callers waiting for
+    // records that are not durable yet are told they failed
+    void fail(String reason) {
+        synchronized (lock) {
+            if (!failed)
+                System.out.println(reason + " Rejecting further transactions.");
+            failed = true;
+            lock.notifyAll();
+        }
+    }
+
+    // called by the flusher once blockId is on disk; its records can leave the log
+    void sealed(int blockId) {
+        synchronized (lock) {
+            sealedBlocks ++;
+            lock.notifyAll();
+        }
+        if (listener != null)
+            listener.sealed(blockId);
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the writer is gone, so this thread may touch its state
+        flusher.close();
+        int blocks;
+        synchronized (lock) {
+            blocks = sealedBlocks;
+            sealedBlocks = 0;
+        }
+        if (blocks > 0)
+            compact(blocks);
+        store.close();
+    }
+
+    // wait until there are records to write, a sealed block to compact away, or until the sync
+    // policy says the unsynced records should be synced; the batch may be empty
+    private List<Transaction> takeBatch() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (!pending.isEmpty() || closed || sealedBlocks > 0) {
+                    if (unsynced.isEmpty())
+                        unsyncedSince = pendingSince;
+                    List<Transaction> batch = pending;
+                    pending = new ArrayList<>();
+                    return batch;
+                }
+                long now = System.currentTimeMillis();
+                if (syncDue(now))
+                    return Collections.emptyList();
+                if (unsynced.isEmpty())
+                    lock.wait();
+                else
+                    lock.wait(Math.max(1, syncDueAt() - now));
+            }
+        }
+    }
+
+    private boolean syncDue(long now) {
+        return !unsynced.isEmpty() && now >= syncDueAt();
+    }
+
+    private long syncDueAt() {
+        switch (policy) {
+            case INTERVAL:
+                return lastSync + syncIntervalMs;
+            case RECORDS:
+                return unsynced.size() >= syncRecords ? 0 : unsyncedSince + syncIntervalMs;
+            default:
+                return 0;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Transaction> batch;
+            int blocks;
+            boolean closing;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (lock) {
+                blocks = sealedBlocks;
+                sealedBlocks = 0;
+                closing = closed;
+            }
+
+            boolean ok = (blocks == 0 || compact(blocks)) && (batch.isEmpty() || write(batch));
+            List<Transaction> synced = null;
+            if (ok && !unsynced.isEmpty() && (closing || syncDue(System.currentTimeMillis()))) {
+                ok = sync();
+                if (ok) {
+                    synced = unsynced;
+                    unsynced = new ArrayList<>();
+                }
+            }
+            long first;
+            boolean done;
+            synchronized (lock) {
+                first = durableSeq + 1;
+                if (ok) {
+                    if (synced != null)
+                        durableSeq += synced.size();
+                } else {
+                    failed = true;
+                    System.out.println("Log writer failed; rejecting further transactions.");
+                }
+                lock.notifyAll();
+                done = !ok || (closed && pending.isEmpty() && unsynced.isEmpty());
+            }
+            if (synced != null && listener != null)
+                listener.durable(first, synced);
+            if (done)
+                return;
+        }
+    }
+
+    // write a batch without syncing it; it stays in unsynced until the next sync
+    private boolean write(List<Transaction> batch) {
+        try {
+            long start = System.nanoTime();
+            store.write(batch);
+            writeLatency.recordMicrosSince(start);
+        } catch (IOException e) {
+            System.out.println("Cannot write to the log: " + e.getMessage());
+            return false;
+        }
+        fileRecords.addAll(batch);
+        unsynced.addAll(batch);
+        return true;
+    }
+
+    // sync everything written so far, then hand any full block of synced records to the flusher
+    private boolean sync() {
+        try {
+            long start = System.nanoTime();
+            store.sync();
+            fsyncLatency.recordMicrosSince(start);
+            batchSize.record(unsynced.size());
+        } catch (IOException e) {
+            System.out.println("Cannot sync the log: " + e.getMessage());
+            return false;
+        }
+        lastSync = System.currentTimeMillis();
+
+        while (fileRecords.size() - handedOff >= N) {
+            flusher.submit(headerBlockId + handedOff / N, new ArrayList<>(fileRecords.subList(handedOff, handedOff + N)));
+            handedOff += N;
+        }
+        length = fileRecords.size() - handedOff;
+        return true;
+    }
+
+    // drop the records of the given number of sealed blocks from the store
+    private boolean compact(int blocks) {
+        int drop = blocks * N;
+        List<Transaction> rest = new ArrayList<>(fileRecords.subList(drop, fileRecords.size()));
+        if (!store.truncateBefore(headerBlockId + blocks, rest))
+            return false;
+
+        headerBlockId += blocks;
+        fileRecords = rest;
+        handedOff -= drop;
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockHashTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Transaction> transactions(int first, int count) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = first; i < first + count; i ++)
+            transactions.add(Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                    .setFromID(String.format("u%07d", i)).setToID(String.format("u%07d", i + 1)).setValue(i).build());
+        return transactions;
+    }
+
+    private static Block block(int blockId, String prevHash, List<Transaction> transactions) {
+        return Block.newBuilder().setBlockID(blockId).setPrevHash(prevHash).setNonce("00000000")
+                .addAllTransactions(transactions).build();
+    }
+
+    private String dataDir(String name) throws IOException {
+        return folder.newFolder(name).getPath() + "/";
+    }
+
+    @Test
+    public void hashIsHexSha256OfTheWholeBlock() {
+        Block block = block(1, BlockHash.GENESIS, transactions(1, 3));
+        String hash = BlockHash.of(block);
+        assertEquals(64, hash.length());
+        assertTrue(hash.matches("[0-9a-f]{64}"));
+        assertEquals(hash, BlockHash.of(block(1, BlockHash.GENESIS, transactions(1, 3))));
+
+        assertFalse(hash.equals(BlockHash.of(block(1, BlockHash.LEGACY, transactions(1, 3)))));
+        assertFalse(hash.equals(BlockHash.of(block(2, BlockHash.GENESIS, transactions(1, 3)))));
+        assertFalse(hash.equals(BlockHash.of(block(1, BlockHash.GENESIS, transactions(2, 3)))));
+    }
+
+    @Test
+    public void hashDoesNotDependOnTheBlockFormat() throws IOException {
+        Block block = block(1, BlockHash.GENESIS, transactions(1, 5));
+        BlockStore json = BlockStore.forFormat(dataDir("json"), "json");
+        BlockStore binary = BlockStore.forFormat(dataDir("binary"), "binary");
+        assertTrue(json.write(block));
+        assertTrue(binary.write(block));
+        assertEquals(BlockHash.of(block), BlockHash.of(json.read(1)));
+        assertEquals(BlockHash.of(block), BlockHash.of(binary.read(1)));
+    }
+
+    @Test
+    public void flusherChainsEachBlockToTheOneBefore() throws IOException {
+        BlockStore store = BlockStore.forFormat(dataDir("chain"), "json");
+        BlockFlusher flusher = new BlockFlusher(store, null, null, new Metrics());
+        for (int blockId = 1; blockId <= 3; blockId ++)
+            assertTrue(flusher.writeBlock(blockId, transactions(blockId * 10, 4)));
+
+        assertEquals(BlockHash.GENESIS, store.read(1).getPrevHash());
+        assertEquals(BlockHash.of(store.read(1)), store.read(2).getPrevHash());
+        assertEquals(BlockHash.of(store.read(2)), store.read(3).getPrevHash());
+        assertEquals(BlockHash.GENESIS, BlockHash.before(store, 0));
+        assertEquals(store.read(3).getPrevHash(), BlockHash.before(store, 2));
+
+        // after a restart the chain continues from the last block on disk
+        BlockFlusher restarted = new BlockFlusher(store, null, null, new Metrics());
+        restarted.setLastHash(BlockHash.before(store, 3));
+        assertTrue(restarted.writeBlock(4, transactions(40, 4)));
+        assertEquals(BlockHash.of(store.read(3)), store.read(4).getPrevHash());
+    }
+
+    @Test
+    public void resealingAnIdenticalBlockKeepsTheChain() throws IOException {
+        BlockStore store = BlockStore.forFormat(dataDir("reseal"), "binary");
+        BlockFlusher flusher = new BlockFlusher(store, null, null, new Metrics());
+        assertTrue(flusher.writeBlock(1, transactions(1, 2)));
+        Block first = store.read(1);
+
+        BlockFlusher restarted = new BlockFlusher(store, null, null, new Metrics());
+        assertTrue(restarted.resealBlock(1, transactions(1, 2)));
+        assertEquals(first, store.read(1));
+        assertTrue(restarted.writeBlock(2, transactions(3, 2)));
+        assertEquals(BlockHash.of(first), store.read(2).getPrevHash());
+    }
+}
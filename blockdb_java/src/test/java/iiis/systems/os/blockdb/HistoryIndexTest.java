@@ -0,0 +1,158 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int N = 4;
+    private static final int ACCOUNTS = 10;
+    private static final int BLOCKS = 3 * HistoryIndex.RUN_BLOCKS + 17;
+
+    private String dataDir;
+    private BlockStore store;
+
+    @Before
+    public void setUp() {
+        dataDir = folder.getRoot().getPath() + "/";
+        store = BlockStore.forFormat(dataDir, "json");
+    }
+
+    private static String id(int i) {
+        return String.format("u%07d", i);
+    }
+
+    // block blockId: transfers between accounts picked from the block id, and one deposit
+    private static List<Transaction> block(int blockId) {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int offset = 0; offset < N - 1; offset ++)
+            transactions.add(Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                    .setFromID(id((blockId + offset) % ACCOUNTS)).setToID(id((blockId * 7 + offset) % ACCOUNTS))
+                    .setValue(1).build());
+        transactions.add(Transaction.newBuilder().setType(Transaction.Types.DEPOSIT).setUserID(id(blockId % ACCOUNTS))
+                .setValue(1).build());
+        return transactions;
+    }
+
+    // the positions a scan of blocks fromBlock .. BLOCKS finds
+    private static long[] scan(String userId, int fromBlock, int limit) {
+        List<Long> seqs = new ArrayList<>();
+        for (int blockId = fromBlock; blockId <= BLOCKS && seqs.size() < limit; blockId ++) {
+            List<Transaction> transactions = block(blockId);
+            for (int offset = 0; offset < transactions.size() && seqs.size() < limit; offset ++) {
+                Transaction t = transactions.get(offset);
+                if (userId.equals(t.getUserID()) || userId.equals(t.getFromID()) || userId.equals(t.getToID()))
+                    seqs.add((long) (blockId - 1) * N + offset + 1);
+            }
+        }
+        long[] result = new long[seqs.size()];
+        for (int i = 0; i < result.length; i ++)
+            result[i] = seqs.get(i);
+        return result;
+    }
+
+    private static void assertMatchesScan(HistoryIndex index) throws IOException {
+        for (int i = 0; i < ACCOUNTS; i ++) {
+            long userId = UserIds.pack(id(i));
+            assertArrayEquals(scan(id(i), 1, Integer.MAX_VALUE), index.positions(userId, 1, Integer.MAX_VALUE));
+            assertArrayEquals(scan(id(i), 300, Integer.MAX_VALUE), index.positions(userId, 300, Integer.MAX_VALUE));
+            assertArrayEquals(scan(id(i), 1, 5), index.positions(userId, 1, 5));
+            assertArrayEquals(scan(id(i), BLOCKS - 3, 7), index.positions(userId, BLOCKS - 3, 7));
+        }
+        assertEquals(0, index.positions(UserIds.pack("nobody00"), 1, Integer.MAX_VALUE).length);
+    }
+
+    private File[] runs() {
+        return folder.getRoot().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".run");
+            }
+        });
+    }
+
+    private HistoryIndex indexAll() {
+        HistoryIndex index = new HistoryIndex(dataDir, N);
+        index.open(store, 0);
+        for (int blockId = 1; blockId <= BLOCKS; blockId ++)
+            index.add(blockId, block(blockId));
+        return index;
+    }
+
+    @Test
+    public void findsPositionsInRunsAndRecentBlocks() throws IOException {
+        HistoryIndex index = indexAll();
+        assertEquals(BLOCKS, index.getIndexedBlocks());
+        assertTrue(runs().length > 0);
+        assertMatchesScan(index);
+        index.close();
+    }
+
+    @Test
+    public void reopensFromRunsAndTheRecentBlocksFile() throws IOException {
+        HistoryIndex index = indexAll();
+        long entries = index.getEntries();
+        index.close();
+
+        // no block files: everything comes from the index files
+        index = new HistoryIndex(dataDir, N);
+        index.open(store, BLOCKS);
+        assertEquals(BLOCKS, index.getIndexedBlocks());
+        assertEquals(entries, index.getEntries());
+        assertMatchesScan(index);
+        index.close();
+    }
+
+    @Test
+    public void missingBlocksAreIndexedFromTheBlockFiles() throws IOException {
+        for (int blockId = 1; blockId <= BLOCKS; blockId ++)
+            assertTrue(store.write(Block.newBuilder().setBlockID(blockId).setPrevHash(BlockHash.GENESIS)
+                    .addAllTransactions(block(blockId)).build()));
+        HistoryIndex index = indexAll();
+        index.close();
+        for (File run : runs())
+            assertTrue(run.delete());
+        assertTrue(new File(dataDir + "history.idx").delete());
+
+        index = new HistoryIndex(dataDir, N);
+        index.open(store, BLOCKS);
+        assertEquals(BLOCKS, index.getIndexedBlocks());
+        assertMatchesScan(index);
+        index.close();
+    }
+
+    @Test
+    public void damagedRunIsDroppedAndReindexed() throws IOException {
+        for (int blockId = 1; blockId <= BLOCKS; blockId ++)
+            assertTrue(store.write(Block.newBuilder().setBlockID(blockId).setPrevHash(BlockHash.GENESIS)
+                    .addAllTransactions(block(blockId)).build()));
+        HistoryIndex index = indexAll();
+        index.close();
+        File[] runs = runs();
+        assertTrue(runs.length > 0);
+        try (RandomAccessFile file = new RandomAccessFile(runs[0], "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        index = new HistoryIndex(dataDir, N);
+        index.open(store, BLOCKS);
+        assertEquals(BLOCKS, index.getIndexedBlocks());
+        assertMatchesScan(index);
+        index.close();
+    }
+}
@@ -0,0 +1,128 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LockStripesTest {
+    private static Transaction transfer(String from, String to) {
+        return Transaction.newBuilder().setType(Transaction.Types.TRANSFER).setFromID(from).setToID(to).setValue(1).build();
+    }
+
+    private static Transaction deposit(String userId) {
+        return Transaction.newBuilder().setType(Transaction.Types.DEPOSIT).setUserID(userId).setValue(1).build();
+    }
+
+    private static String id(int i) {
+        return String.format("user%04d", i);
+    }
+
+    // two accounts on different stripes, with the first on the higher one
+    private static String[] crossedPair(LockStripes stripes) {
+        for (int i = 1; ; i ++) {
+            if (stripes.stripeOf(id(i)) > stripes.stripeOf(id(0)))
+                return new String[] {id(i), id(0)};
+        }
+    }
+
+    @Test
+    public void roundsTheStripeCountUpToAPowerOfTwo() {
+        LockStripes stripes = new LockStripes(100);
+        boolean[] seen = new boolean[128];
+        for (int i = 0; i < 10000; i ++) {
+            int stripe = stripes.stripeOf(id(i));
+            assertTrue(stripe >= 0 && stripe < 128);
+            seen[stripe] = true;
+        }
+        for (boolean used : seen)
+            assertTrue(used);
+    }
+
+    @Test
+    public void stripesOfAreDistinctAndInLockingOrder() {
+        LockStripes stripes = new LockStripes(16);
+        String[] pair = crossedPair(stripes);
+        int[] result = stripes.stripesOf(Arrays.asList(transfer(pair[0], pair[1]), deposit(pair[1]), deposit(pair[0]),
+                transfer(pair[1], pair[0])));
+        int low = stripes.stripeOf(pair[1]);
+        int high = stripes.stripeOf(pair[0]);
+        assertArrayEquals(new int[] {low, high}, result);
+
+        int[] many = new int[0];
+        for (int i = 0; i < 200; i ++)
+            many = stripes.stripesOf(Arrays.asList(deposit(id(i)), transfer(id(i + 1), id(i + 2))));
+        for (int i = 1; i < many.length; i ++)
+            assertTrue(many[i - 1] < many[i]);
+    }
+
+    @Test
+    public void sameStripeIsLockedOnce() throws InterruptedException {
+        final LockStripes stripes = new LockStripes(1);
+        stripes.lock(id(1), id(2));
+        stripes.unlock(id(1), id(2));
+        final boolean[] locked = new boolean[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                stripes.lockAll();
+                locked[0] = true;
+                stripes.unlockAll();
+            }
+        };
+        other.start();
+        other.join(10000);
+        assertTrue(locked[0]);
+    }
+
+    // transfers in opposite directions take the two stripes in the same order, so they cannot
+    // deadlock
+    @Test(timeout = 60000)
+    public void oppositeTransfersDoNotDeadlock() throws InterruptedException {
+        final LockStripes stripes = new LockStripes(16);
+        final String[] pair = crossedPair(stripes);
+        final int rounds = 100000;
+        final long[] counter = new long[1];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t ++) {
+            final boolean forward = t % 2 == 0;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < rounds; i ++) {
+                        if (forward) {
+                            stripes.lock(pair[0], pair[1]);
+                            counter[0] ++;
+                            stripes.unlock(pair[0], pair[1]);
+                        } else {
+                            int[] locked = stripes.stripesOf(Arrays.asList(transfer(pair[1], pair[0])));
+                            stripes.lock(locked);
+                            counter[0] ++;
+                            stripes.unlock(locked);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        stripes.lockAll();
+        try {
+            assertEquals((long) rounds * threads.length, counter[0]);
+        } finally {
+            stripes.unlockAll();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogRecordCodecTest {
+    private static Transaction single(Transaction.Types type, String userId, int value) {
+        return Transaction.newBuilder().setType(type).setUserID(userId).setValue(value).build();
+    }
+
+    private static Transaction transfer(String from, String to, int value) {
+        return Transaction.newBuilder().setType(Transaction.Types.TRANSFER).setFromID(from).setToID(to).setValue(value).build();
+    }
+
+    private static String encode(Transaction transaction) {
+        ByteBuffer buffer = ByteBuffer.allocate(LogRecordCodec.MAX_RECORD_LENGTH);
+        LogRecordCodec.encode(transaction, buffer);
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+    }
+
+    // the decoded record, or null if it does not parse
+    private static Transaction decode(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+        Transaction.Builder transaction = Transaction.newBuilder();
+        return LogRecordCodec.decode(bytes, 0, bytes.length, transaction) ? transaction.build() : null;
+    }
+
+    private static void assertRoundTrip(Transaction transaction) {
+        String record = encode(transaction);
+        assertTrue(record.endsWith(" .\n"));
+        assertEquals(transaction, decode(record.substring(0, record.length() - 1)));
+    }
+
+    @Test
+    public void encodesTheTextFormat() {
+        assertEquals("PUT abcd1234 100 .\n", encode(single(Transaction.Types.PUT, "abcd1234", 100)));
+        assertEquals("WITHDRAW abcd1234 0 .\n", encode(single(Transaction.Types.WITHDRAW, "abcd1234", 0)));
+        assertEquals("TRANSFER abcd1234 ABCD5678 -7 .\n", encode(transfer("abcd1234", "ABCD5678", -7)));
+    }
+
+    @Test
+    public void roundTripsEveryTypeAndValue() {
+        int[] values = {0, 1, 9, 10, 99, 100, 12345, -1, -10, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1};
+        for (int value : values) {
+            assertRoundTrip(single(Transaction.Types.PUT, "user0001", value));
+            assertRoundTrip(single(Transaction.Types.DEPOSIT, "USER0002", value));
+            assertRoundTrip(single(Transaction.Types.WITHDRAW, "0user003", value));
+            assertRoundTrip(transfer("user0004", "user0005", value));
+        }
+    }
+
+    @Test
+    public void longestRecordFitsExactly() {
+        ByteBuffer buffer = ByteBuffer.allocate(LogRecordCodec.MAX_RECORD_LENGTH);
+        LogRecordCodec.encode(transfer("user0001", "user0002", Integer.MIN_VALUE), buffer);
+        assertEquals(LogRecordCodec.MAX_RECORD_LENGTH, buffer.position());
+    }
+
+    @Test
+    public void decodesWithinARange() {
+        byte[] bytes = "xxPUT user0001 5 .\nDEPOSIT".getBytes(StandardCharsets.US_ASCII);
+        Transaction.Builder transaction = Transaction.newBuilder();
+        assertTrue(LogRecordCodec.decode(bytes, 2, 18, transaction));
+        assertEquals(single(Transaction.Types.PUT, "user0001", 5), transaction.build());
+    }
+
+    @Test
+    public void toleratesExtraSpaces() {
+        assertEquals(single(Transaction.Types.DEPOSIT, "user0001", 5), decode("DEPOSIT  user0001   5  ."));
+    }
+
+    @Test
+    public void rejectsValuesOutsideAnInt() {
+        assertEquals(Integer.MIN_VALUE, decode("PUT user0001 -2147483648 .").getValue());
+        assertEquals(null, decode("PUT user0001 2147483648 ."));
+        assertEquals(null, decode("PUT user0001 -2147483649 ."));
+        assertEquals(null, decode("PUT user0001 99999999999999999999999 ."));
+        assertEquals(null, decode("PUT user0001 12a ."));
+        assertEquals(null, decode("PUT user0001 - ."));
+    }
+
+    @Test
+    public void rejectsRecordsWithTooManyOrTooFewTokens() {
+        assertEquals(null, decode("PUT user0001 1 2 ."));
+        assertEquals(null, decode("TRANSFER user0001 user0002 3 4 ."));
+        assertEquals(null, decode("PUT user0001 1 . . . ."));
+        assertEquals(null, decode("TRANSFER user0001 3 ."));
+        assertEquals(null, decode("PUT user0001 ."));
+    }
+
+    @Test
+    public void rejectsTornAndUnknownRecords() {
+        assertEquals(null, decode(""));
+        assertEquals(null, decode("TRANSFER user0001 user0002 3"));
+        assertEquals(null, decode("TRANSFER user0001 user00"));
+        assertEquals(null, decode("MOVE user0001 3 ."));
+        assertEquals(null, decode("put user0001 3 ."));
+        assertFalse(decode("PUT user0001 3 .") == null);
+    }
+}
@@ -0,0 +1,87 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PackedBalanceStoreTest {
+    private static long id(int i) {
+        return UserIds.pack(String.format("u%07d", i));
+    }
+
+    // start far below the final size so every segment resizes several times
+    private static void checkGrowth(boolean offHeap) {
+        PackedBalanceStore store = new PackedBalanceStore(4, 16, offHeap);
+        int accounts = 100000;
+        for (int i = 0; i < accounts; i ++)
+            store.put(id(i), i);
+        assertEquals(accounts, store.size());
+        for (int i = 0; i < accounts; i ++)
+            assertEquals(i, store.get(id(i)));
+
+        // overwrites do not add accounts
+        for (int i = 0; i < accounts; i += 3)
+            store.put(id(i), -i);
+        assertEquals(accounts, store.size());
+        assertEquals(0, store.get(id(accounts)));
+
+        final Map<Long, Integer> visited = new HashMap<>();
+        store.forEach(new BalanceStore.Visitor() {
+            @Override
+            public void visit(long userId, int balance) {
+                assertNull(visited.put(userId, balance));
+            }
+        });
+        assertEquals(accounts, visited.size());
+        for (int i = 0; i < accounts; i ++)
+            assertEquals(Integer.valueOf(i % 3 == 0 ? -i : i), visited.get(id(i)));
+    }
+
+    @Test
+    public void growsOnHeap() {
+        checkGrowth(false);
+    }
+
+    @Test
+    public void growsOffHeap() {
+        checkGrowth(true);
+    }
+
+    @Test
+    public void oneSegmentAndZeroBalances() {
+        PackedBalanceStore store = new PackedBalanceStore(1, 0, false);
+        store.put(id(1), 0);
+        assertEquals(1, store.size());
+        assertEquals(0, store.get(id(1)));
+        store.put(id(1), Integer.MIN_VALUE);
+        assertEquals(Integer.MIN_VALUE, store.get(id(1)));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void concurrentWritersToDisjointAccounts() throws InterruptedException {
+        final PackedBalanceStore store = new PackedBalanceStore(8, 16, false);
+        final int perThread = 20000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t ++) {
+            final int first = t * perThread;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + perThread; i ++)
+                        store.put(id(i), i + 1);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(perThread * threads.length, store.size());
+        for (int i = 0; i < perThread * threads.length; i ++)
+            assertEquals(i + 1, store.get(id(i)));
+    }
+}
@@ -0,0 +1,163 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedLogStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int N = 4;
+    // ten records per segment
+    private static final int SEGMENT_BYTES = SegmentedLogStore.HEADER + 10 * SegmentedLogStore.RECORD;
+
+    private String dataDir;
+
+    @Before
+    public void setUp() {
+        dataDir = folder.getRoot().getPath() + "/";
+    }
+
+    private static List<Transaction> records(int first, int count) {
+        List<Transaction> records = new ArrayList<>();
+        for (int i = first; i < first + count; i ++) {
+            if (i % 2 == 0)
+                records.add(Transaction.newBuilder().setType(Transaction.Types.DEPOSIT)
+                        .setUserID(String.format("u%07d", i)).setValue(i).build());
+            else
+                records.add(Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                        .setFromID(String.format("u%07d", i)).setToID("receiver").setValue(-i).build());
+        }
+        return records;
+    }
+
+    private SegmentedLogStore open(List<Transaction> recovered, int expectedBlockId) {
+        SegmentedLogStore store = new SegmentedLogStore(dataDir, N, SEGMENT_BYTES);
+        assertEquals(expectedBlockId, store.recover(recovered));
+        return store;
+    }
+
+    private SegmentedLogStore write(List<Transaction> records) throws IOException {
+        SegmentedLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records);
+        store.sync();
+        return store;
+    }
+
+    private File segment(int number) {
+        return new File(dataDir + "log." + number + ".seg");
+    }
+
+    private static void overwrite(File file, long position, byte[] bytes) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(position);
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    public void recoversRecordsAcrossSegments() throws IOException {
+        write(records(1, 25)).close();
+        assertTrue(segment(3).exists());
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 1).close();
+        assertEquals(records(1, 25), recovered);
+    }
+
+    @Test
+    public void cutsATornRecordAndAppendsAfterTheLastValidOne() throws IOException {
+        write(records(1, 15)).close();
+        // tear the 15th record, the 5th in segment 2
+        overwrite(segment(2), SegmentedLogStore.HEADER + 4 * SegmentedLogStore.RECORD + 10, new byte[] {0x5a, 0x5a});
+
+        List<Transaction> recovered = new ArrayList<>();
+        SegmentedLogStore store = open(recovered, 1);
+        assertEquals(records(1, 14), recovered);
+        store.write(records(100, 3));
+        store.sync();
+        store.close();
+
+        recovered.clear();
+        open(recovered, 1).close();
+        List<Transaction> expected = records(1, 14);
+        expected.addAll(records(100, 3));
+        assertEquals(expected, recovered);
+    }
+
+    @Test
+    public void garbageAfterTheLastRecordIsNotReplayed() throws IOException {
+        write(records(1, 5)).close();
+        // a stale record from an earlier run, and non-zero bytes further on
+        byte[] stale = new byte[SegmentedLogStore.RECORD];
+        for (int i = 0; i < stale.length; i ++)
+            stale[i] = (byte) (i + 1);
+        overwrite(segment(1), SegmentedLogStore.HEADER + 5 * SegmentedLogStore.RECORD, stale);
+        overwrite(segment(1), SEGMENT_BYTES - 3, new byte[] {1, 2, 3});
+
+        List<Transaction> recovered = new ArrayList<>();
+        SegmentedLogStore store = open(recovered, 1);
+        assertEquals(records(1, 5), recovered);
+        store.write(records(6, 5));
+        store.sync();
+        store.close();
+
+        recovered.clear();
+        open(recovered, 1).close();
+        assertEquals(records(1, 10), recovered);
+    }
+
+    @Test
+    public void sealedBlocksAreDroppedOnRecovery() throws IOException {
+        SegmentedLogStore store = write(records(1, 25));
+        // blocks 1 to 5 (records 1 to 20) are sealed
+        assertTrue(store.truncateBefore(6, records(21, 5)));
+        assertFalse(segment(1).exists());
+        assertFalse(segment(2).exists());
+        assertTrue(segment(3).exists());
+        store.close();
+
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 6).close();
+        assertEquals(records(21, 5), recovered);
+    }
+
+    @Test
+    public void missingSegmentIsAnError() throws IOException {
+        write(records(1, 25)).close();
+        assertTrue(segment(2).delete());
+        assertEquals(-1, new SegmentedLogStore(dataDir, N, SEGMENT_BYTES).recover(new ArrayList<Transaction>()));
+    }
+
+    @Test
+    public void movesTextLogOverAndBack() throws IOException {
+        TextLogStore text = new TextLogStore(dataDir, N);
+        assertEquals(1, text.recover(new ArrayList<Transaction>()));
+        text.write(records(1, 7));
+        text.sync();
+        text.close();
+
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 1).close();
+        assertEquals(records(1, 7), recovered);
+        assertFalse(new File(dataDir + "log.txt").exists());
+
+        recovered.clear();
+        text = new TextLogStore(dataDir, N);
+        assertEquals(1, text.recover(recovered));
+        text.close();
+        assertEquals(records(1, 7), recovered);
+        assertFalse(SegmentedLogStore.exists(dataDir));
+    }
+}
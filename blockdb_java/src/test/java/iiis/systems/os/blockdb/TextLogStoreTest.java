@@ -0,0 +1,130 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TextLogStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int N = 2;
+
+    private String dataDir;
+
+    @Before
+    public void setUp() {
+        dataDir = folder.getRoot().getPath() + "/";
+    }
+
+    private static List<Transaction> records(int first, int count) {
+        List<Transaction> records = new ArrayList<>();
+        for (int i = first; i < first + count; i ++)
+            records.add(Transaction.newBuilder().setType(Transaction.Types.PUT)
+                    .setUserID(String.format("u%07d", i)).setValue(i).build());
+        return records;
+    }
+
+    private TextLogStore open(List<Transaction> recovered, int expectedBlockId) {
+        TextLogStore store = new TextLogStore(dataDir, N);
+        assertEquals(expectedBlockId, store.recover(recovered));
+        return store;
+    }
+
+    private void append(String text) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(dataDir + "log.txt", true)) {
+            out.write(text.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private String content() throws IOException {
+        return new String(Files.readAllBytes(Paths.get(dataDir + "log.txt")), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void startsCleanAndRecoversRecords() throws IOException {
+        TextLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records(1, 5));
+        store.sync();
+        store.close();
+        assertTrue(content().startsWith("1\nPUT u0000001 1 .\n"));
+
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 1).close();
+        assertEquals(records(1, 5), recovered);
+    }
+
+    @Test
+    public void cutsATornLastRecord() throws IOException {
+        TextLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records(1, 3));
+        store.close();
+        String complete = content();
+        append("PUT u0000004 4");
+
+        List<Transaction> recovered = new ArrayList<>();
+        store = open(recovered, 1);
+        assertEquals(records(1, 3), recovered);
+        assertEquals(complete, content());
+        store.write(records(4, 1));
+        store.close();
+
+        recovered.clear();
+        open(recovered, 1).close();
+        assertEquals(records(1, 4), recovered);
+    }
+
+    @Test
+    public void refusesADamagedRecordBeforeTheEnd() throws IOException {
+        TextLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records(1, 1));
+        store.close();
+        append("PUT u0000002 two .\n");
+        append("PUT u0000003 3 .\n");
+        assertEquals(-1, new TextLogStore(dataDir, N).recover(new ArrayList<Transaction>()));
+    }
+
+    @Test
+    public void dropsSealedRecords() throws IOException {
+        TextLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records(1, 7));
+        store.sync();
+        // blocks 1 to 3 are sealed
+        assertTrue(store.truncateBefore(4, records(7, 1)));
+        store.write(records(8, 2));
+        store.sync();
+        store.close();
+        assertTrue(content().startsWith("4\n"));
+
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 4).close();
+        assertEquals(records(7, 3), recovered);
+    }
+
+    @Test
+    public void discardsAnUnfinishedRewrite() throws IOException {
+        TextLogStore store = open(new ArrayList<Transaction>(), 1);
+        store.write(records(1, 3));
+        store.close();
+        Files.write(Paths.get(dataDir + "log_.txt"), "3\nPUT u00".getBytes(StandardCharsets.US_ASCII));
+
+        List<Transaction> recovered = new ArrayList<>();
+        open(recovered, 1).close();
+        assertEquals(records(1, 3), recovered);
+        assertFalse(new File(dataDir + "log_.txt").exists());
+    }
+}
@@ -0,0 +1,170 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TieredBalanceStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final int ACCOUNTS = 5000;
+    private static final int PAGE_SIZE = 4096;
+    // "BDJN"
+    private static final int JOURNAL_MAGIC = 0x42444a4e;
+
+    private static long id(int i) {
+        return UserIds.pack(String.format("u%07d", i));
+    }
+
+    private String dataDir(String name) throws IOException {
+        return folder.newFolder(name).getPath() + "/";
+    }
+
+    // a store whose hot set holds far fewer accounts than it is given
+    private static TieredBalanceStore open(String dataDir, long maxSeq, long expectedSeq) {
+        TieredBalanceStore store = new TieredBalanceStore(dataDir, 256, 1000);
+        assertEquals(expectedSeq, store.open(maxSeq));
+        return store;
+    }
+
+    // write ACCOUNTS accounts, with a checkpoint as of seq
+    private static void checkpoint(String dataDir, long seq) throws IOException {
+        TieredBalanceStore store = open(dataDir, 0, 0);
+        for (int i = 0; i < ACCOUNTS; i ++)
+            store.put(id(i), i * 3);
+        assertEquals(ACCOUNTS, store.getDirtyAccounts());
+        store.write(store.capture(seq));
+        assertEquals(0, store.getDirtyAccounts());
+        assertFalse(new File(dataDir + "balances.journal").exists());
+        store.close();
+    }
+
+    private static void assertBalances(TieredBalanceStore store, int factor) {
+        for (int i = 0; i < ACCOUNTS; i ++)
+            assertEquals(i * factor, store.get(id(i)));
+        assertEquals(0, store.get(id(ACCOUNTS)));
+    }
+
+    @Test
+    public void checkpointSurvivesAReopen() throws IOException {
+        String dataDir = dataDir("reopen");
+        checkpoint(dataDir, 42);
+        TieredBalanceStore store = open(dataDir, 100, 42);
+        assertBalances(store, 3);
+        assertEquals(ACCOUNTS, store.size());
+        assertTrue(store.getCachedAccounts() < ACCOUNTS);
+        assertTrue(store.getFaults() > 0);
+        store.close();
+    }
+
+    @Test
+    public void laterCheckpointUpdatesAccountsInPlace() throws IOException {
+        String dataDir = dataDir("update");
+        checkpoint(dataDir, 42);
+        TieredBalanceStore store = open(dataDir, 100, 42);
+        for (int i = 0; i < ACCOUNTS; i += 2)
+            store.put(id(i), -i);
+        store.write(store.capture(50));
+        store.close();
+
+        store = open(dataDir, 100, 50);
+        for (int i = 0; i < ACCOUNTS; i ++)
+            assertEquals(i % 2 == 0 ? -i : i * 3, store.get(id(i)));
+        assertEquals(ACCOUNTS, store.size());
+        store.close();
+    }
+
+    @Test
+    public void fileAheadOfTheLogIsRebuilt() throws IOException {
+        String dataDir = dataDir("ahead");
+        checkpoint(dataDir, 42);
+        TieredBalanceStore store = open(dataDir, 41, 0);
+        assertEquals(0, store.get(id(1)));
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    // a journal holding every page of source's balances.dat, page 0 last as a checkpoint writes
+    // the header; if complete is false, without its checksum
+    private static byte[] journal(String source, long seq, boolean complete) throws IOException {
+        byte[] file = Files.readAllBytes(Paths.get(source + "balances.dat"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeLong(seq);
+        for (int page = 1; page < file.length / PAGE_SIZE; page ++) {
+            out.writeInt(page);
+            out.write(file, page * PAGE_SIZE, PAGE_SIZE);
+        }
+        out.writeInt(0);
+        out.write(file, 0, PAGE_SIZE);
+        out.writeInt(-1);
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+        byte[] journal = bytes.toByteArray();
+        return complete ? journal : Arrays.copyOf(journal, journal.length - 8);
+    }
+
+    @Test
+    public void completeJournalIsRedone() throws IOException {
+        String source = dataDir("source");
+        checkpoint(source, 42);
+        String dataDir = dataDir("redo");
+        open(dataDir, 100, 0).close();
+        Files.write(Paths.get(dataDir + "balances.journal"), journal(source, 42, true));
+
+        TieredBalanceStore store = open(dataDir, 100, 42);
+        assertFalse(new File(dataDir + "balances.journal").exists());
+        assertBalances(store, 3);
+        store.close();
+    }
+
+    @Test
+    public void incompleteJournalIsDiscarded() throws IOException {
+        String source = dataDir("source");
+        checkpoint(source, 42);
+        String dataDir = dataDir("discard");
+        open(dataDir, 100, 0).close();
+        Files.write(Paths.get(dataDir + "balances.journal"), journal(source, 42, false));
+
+        TieredBalanceStore store = open(dataDir, 100, 0);
+        assertFalse(new File(dataDir + "balances.journal").exists());
+        assertEquals(0, store.get(id(1)));
+        store.close();
+    }
+
+    @Test
+    public void writesSinceTheCaptureStayDirty() throws IOException {
+        String dataDir = dataDir("dirty");
+        TieredBalanceStore store = open(dataDir, 0, 0);
+        store.put(id(1), 10);
+        store.put(id(2), 20);
+        TieredBalanceStore.Checkpoint checkpoint = store.capture(2);
+        store.put(id(2), 21);
+        store.write(checkpoint);
+        assertEquals(1, store.getDirtyAccounts());
+        store.close();
+
+        store = open(dataDir, 3, 2);
+        assertEquals(10, store.get(id(1)));
+        assertEquals(20, store.get(id(2)));
+        store.close();
+    }
+}
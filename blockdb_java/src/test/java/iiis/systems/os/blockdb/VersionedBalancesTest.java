@@ -0,0 +1,189 @@
+package iiis.systems.os.blockdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersionedBalancesTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PackedBalanceStore base;
+    private WriteAheadLog log;
+    private VersionedBalances versions;
+
+    private static final long A = UserIds.pack("accountA");
+    private static final long B = UserIds.pack("accountB");
+
+    @Before
+    public void setUp() {
+        String dataDir = folder.getRoot().getPath() + "/";
+        // blocks are large enough that none is sealed, so the log needs no snapshotter or index
+        int N = 100000;
+        Metrics metrics = new Metrics();
+        LogStore store = new TextLogStore(dataDir, N);
+        assertEquals(1, store.recover(new ArrayList<Transaction>()));
+        BlockFlusher flusher = new BlockFlusher(BlockStore.forFormat(dataDir, "json"), null, null, metrics);
+        log = new WriteAheadLog(store, N, 1, new ArrayList<Transaction>(), 0, WriteAheadLog.SyncPolicy.ALWAYS, 1, 1, flusher, metrics);
+        base = new PackedBalanceStore(4, 16, false);
+        versions = new VersionedBalances(base, log);
+    }
+
+    @After
+    public void tearDown() {
+        versions.close();
+        log.close();
+    }
+
+    // what DatabaseEngine does for a PUT: install the version inside the append, then update the
+    // base store, then wait for the record to be durable
+    private long put(final long userId, final int value) {
+        final int previous = base.get(userId);
+        Transaction transaction = Transaction.newBuilder().setType(Transaction.Types.PUT)
+                .setUserID(UserIds.unpack(userId)).setValue(value).build();
+        long seq = log.append(transaction, new WriteAheadLog.Publisher() {
+            @Override
+            public void publish(long seq) {
+                versions.install(userId, seq, value, previous);
+            }
+        });
+        base.put(userId, value);
+        assertTrue(log.awaitDurable(seq));
+        return seq;
+    }
+
+    @Test
+    public void pruningWithoutReadersDropsEveryVersion() {
+        for (int i = 0; i < 1000; i ++) {
+            put(A, i);
+            put(UserIds.pack(String.format("u%07d", i)), i);
+        }
+        versions.prune();
+        assertEquals(0, versions.size());
+        assertEquals(999, versions.readDurable(A));
+        assertEquals(500, versions.readDurable(UserIds.pack("u0000500")));
+    }
+
+    @Test
+    public void readerKeepsTheVersionsItNeedsUntilClosed() {
+        put(A, 1);
+        VersionedBalances.Reader reader = versions.reader();
+        try {
+            for (int i = 2; i <= 100; i ++)
+                put(A, i);
+            put(B, 7);
+            versions.prune();
+            assertEquals(1, reader.get(A));
+            // B had no version when the reader was opened
+            assertEquals(0, reader.get(B));
+            assertEquals(100, versions.readDurable(A));
+            assertEquals(7, versions.readDurable(B));
+            assertTrue(versions.size() > 0);
+        } finally {
+            reader.close();
+        }
+        versions.prune();
+        assertEquals(0, versions.size());
+        assertEquals(100, versions.readDurable(A));
+    }
+
+    @Test
+    public void readersAtDifferentPointsSeeTheirOwnBalances() {
+        // no more readers than there are slots for on a single processor
+        VersionedBalances.Reader[] readers = new VersionedBalances.Reader[3];
+        for (int i = 0; i < readers.length; i ++) {
+            put(A, i * 10);
+            put(B, -i);
+            readers[i] = versions.reader();
+        }
+        for (int i = 0; i < 50; i ++)
+            put(A, 1000 + i);
+        versions.prune();
+        for (int i = 0; i < readers.length; i ++) {
+            assertEquals(i * 10, readers[i].get(A));
+            assertEquals(-i, readers[i].get(B));
+        }
+        // closing the oldest reader lets its versions go, not the others'
+        readers[0].close();
+        versions.prune();
+        for (int i = 1; i < readers.length; i ++) {
+            assertEquals(i * 10, readers[i].get(A));
+            assertEquals(-i, readers[i].get(B));
+            readers[i].close();
+        }
+        versions.prune();
+        assertEquals(0, versions.size());
+    }
+
+    @Test
+    public void readerAtAnAppendedSeqUndoesLaterWritesOfVisitedBalances() {
+        put(A, 5);
+        VersionedBalances.Reader reader = versions.reader(log.getAppendedSeq());
+        try {
+            put(A, 6);
+            put(B, 3);
+            versions.prune();
+            // a visit reads the base store after the reader was opened
+            assertEquals(5, reader.get(A, base.get(A)));
+            assertEquals(0, reader.get(B, base.get(B)));
+            assertEquals(log.getDurableSeq() - 2, reader.seq());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void concurrentReadersSeeConsistentTransfers() throws InterruptedException {
+        put(A, 1000);
+        put(B, 0);
+        final AtomicBoolean failed = new AtomicBoolean();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] readers = new Thread[2];
+        for (int t = 0; t < readers.length; t ++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    while (!stop.get()) {
+                        try (VersionedBalances.Reader reader = versions.reader()) {
+                            if (reader.get(A) + reader.get(B) != 1000)
+                                failed.set(true);
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        // each step moves one unit from A to B as a single record, like a TRANSFER
+        for (int i = 1; i <= 2000; i ++) {
+            final int a = 1000 - i % 1000;
+            final int b = i % 1000;
+            final int previousA = base.get(A);
+            final int previousB = base.get(B);
+            Transaction transaction = Transaction.newBuilder().setType(Transaction.Types.TRANSFER)
+                    .setFromID("accountA").setToID("accountB").setValue(1).build();
+            long seq = log.append(transaction, new WriteAheadLog.Publisher() {
+                @Override
+                public void publish(long seq) {
+                    versions.install(A, seq, a, previousA);
+                    versions.install(B, seq, b, previousB);
+                }
+            });
+            base.put(A, a);
+            base.put(B, b);
+            assertTrue(log.awaitDurable(seq));
+        }
+        stop.set(true);
+        for (Thread reader : readers)
+            reader.join();
+        assertFalse(failed.get());
+    }
+}
@@ -1,2 +1,2 @@
 #!/bin/sh
-exec java -jar target/blockdb-1.0-SNAPSHOT.jar
+exec java -jar target/blockdb-1.0-SNAPSHOT.jar "$@"
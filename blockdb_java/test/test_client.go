@@ -13,8 +13,9 @@ import (
 	"google.golang.org/grpc"
 )
 
-var address = func() string {
-	conf, err := ioutil.ReadFile("config.json")
+// address of the given server in the given config file
+func address(configFile string, serverID string) string {
+	conf, err := ioutil.ReadFile(configFile)
 	if err != nil {
 		panic(err)
 	}
@@ -23,9 +24,9 @@ var address = func() string {
 	if err != nil {
 		panic(err)
 	}
-	dat = dat["1"].(map[string]interface{})
+	dat = dat[serverID].(map[string]interface{})
 	return fmt.Sprintf("%s:%s", dat["ip"], dat["port"])
-}()
+}
 
 var (
 	OpCode = flag.String("T", "", `DB transactions to perform:
@@ -47,13 +48,15 @@ var (
 	FromID = flag.String("from", "00000000", "From account (for Transfer)")
 	ToID   = flag.String("to", "12345678", "To account (for Transfer)")
 	Value  = flag.Int("value", 1, "Amount of transaction")
+	Config = flag.String("config", "config.json", "Config file listing the servers.")
+	Server = flag.String("server", "1", "ID of the server to connect to.")
 )
 
 func main() {
 	flag.Parse()
 
 	// Set up a connection to the server.
-	conn, err := grpc.Dial(address, grpc.WithInsecure())
+	conn, err := grpc.Dial(address(*Config, *Server), grpc.WithInsecure())
 	if err != nil {
 		log.Fatalf("Cannot connect to server: %v", err)
 	}
@@ -0,0 +1,62 @@
+#!/bin/bash
+
+# This script starts a leader and two followers from test/config_replication.json, writes to the
+# leader and reads the balances back from every server. A follower is then restarted and must
+# catch up on the writes it missed.
+
+# Please start this script in a clean environment; i.e. no server is running, and the data dirs
+# (/tmp/blockdb1/ .. /tmp/blockdb3/) are empty.
+
+if [ ! -f "config.json" ]; then
+	echo "config.json not in working directory. Trying to go to parent directory..."
+	cd ../
+fi
+if [ ! -f "test/config_replication.json" ]; then
+	echo "!! Error: test/config_replication.json not found. Please run this script from the project root directory (e.g. ./test/test_replication.sh)."
+	exit -1
+fi
+
+CONFIG=test/config_replication.json
+mkdir -p /tmp/blockdb1 /tmp/blockdb2 /tmp/blockdb3
+
+echo "Replication testrun starting..."
+
+for S in 1 2 3; do
+	./start.sh $S $CONFIG &>>./test/terminal_log_$S.txt &
+	PID[$S]=$!
+done
+sleep 2
+
+echo "Step 1: Write to the leader"
+for I in `seq 0 9`; do
+	go run ./test/test_client.go -config=$CONFIG -server=1 -T=PUT -user=TESTREP$I -value=10
+done
+go run ./test/test_client.go -config=$CONFIG -server=1 -T=TRANSFER -from=TESTREP0 -to=TESTREP1 -value=5
+sleep 1
+
+echo "Check values on every server: expecting value=5, then value=15"
+for S in 1 2 3; do
+	go run ./test/test_client.go -config=$CONFIG -server=$S -T=GET -user=TESTREP0
+	go run ./test/test_client.go -config=$CONFIG -server=$S -T=GET -user=TESTREP1
+done
+
+echo "Step 2: Write to a follower: expecting a PUT Return without Success:true"
+go run ./test/test_client.go -config=$CONFIG -server=2 -T=PUT -user=TESTREP0 -value=100
+
+echo "Step 3: Stop follower 3 and keep writing"
+kill ${PID[3]}
+for I in `seq 0 9`; do
+	go run ./test/test_client.go -config=$CONFIG -server=1 -T=DEPOSIT -user=TESTREP$I -value=5
+done
+
+echo "Restart follower 3"
+./start.sh 3 $CONFIG &>>./test/terminal_log_3.txt &
+PID[3]=$!
+sleep 3
+
+echo "Check value on follower 3: expecting value=20"
+go run ./test/test_client.go -config=$CONFIG -server=3 -T=GET -user=TESTREP1
+
+echo "Test completed."
+
+kill ${PID[1]} ${PID[2]} ${PID[3]}
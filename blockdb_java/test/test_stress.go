@@ -0,0 +1,125 @@
+package main
+
+// Multithreaded correctness check: many clients transfer money between a small set of
+// accounts at the same time, so most transactions contend on the same accounts.
+// Transfers between two accounts run in both directions to exercise lock ordering.
+// At the end no balance may be negative and the total must be unchanged.
+//
+// Start this script in a clean environment (server not running, data dir empty) from the
+// project root directory: go run test/test_stress.go
+
+import (
+	"encoding/json"
+	"fmt"
+	"io/ioutil"
+	"log"
+	"math/rand"
+	"os/exec"
+	"sync"
+	"sync/atomic"
+	"time"
+
+	pb "../protobuf/go"
+
+	"golang.org/x/net/context"
+	"google.golang.org/grpc"
+)
+
+var address = func() string {
+	conf, err := ioutil.ReadFile("config.json")
+	if err != nil {
+		panic(err)
+	}
+	var dat map[string]interface{}
+	err = json.Unmarshal(conf, &dat)
+	if err != nil {
+		panic(err)
+	}
+	dat = dat["1"].(map[string]interface{})
+	return fmt.Sprintf("%s:%s", dat["ip"], dat["port"])
+}()
+
+const (
+	N = 10    // accounts
+	M = 10000 // initial balance of every account
+	C = 32    // concurrent clients
+	T = 2000  // transactions per client
+)
+
+func main() {
+	cmd := exec.Command("test/server_start.sh")
+	pid, err := cmd.Output()
+	if err != nil {
+		log.Fatalf("Cannot start the server: %v", err)
+	}
+	defer exec.Command("kill", string(pid)).Run()
+	time.Sleep(2000 * time.Millisecond)
+
+	conn, err := grpc.Dial(address, grpc.WithInsecure())
+	if err != nil {
+		log.Fatalf("Cannot connect to server: %v", err)
+	}
+	defer conn.Close()
+	c := pb.NewBlockDatabaseClient(conn)
+
+	var names [N]string
+	for i := 0; i < N; i++ {
+		names[i] = fmt.Sprintf("stress%02d", i)
+		if r, err := c.Put(context.Background(), &pb.Request{UserID: names[i], Value: M}); err != nil || !r.Success {
+			log.Fatalf("PUT %s failed: %v", names[i], err)
+		}
+	}
+
+	var succeeded, failed int64
+	var wait sync.WaitGroup
+	start := time.Now()
+	for w := 0; w < C; w++ {
+		wait.Add(1)
+		go func(seed int64) {
+			defer wait.Done()
+			r := rand.New(rand.NewSource(seed))
+			for t := 0; t < T; t++ {
+				from := names[r.Int31n(N)]
+				to := names[r.Int31n(N)]
+				var err error
+				var res *pb.BooleanResponse
+				switch r.Int31n(4) {
+				case 0:
+					res, err = c.Deposit(context.Background(), &pb.Request{UserID: from, Value: 0})
+				case 1:
+					res, err = c.Withdraw(context.Background(), &pb.Request{UserID: from, Value: 0})
+				default:
+					res, err = c.Transfer(context.Background(), &pb.TransferRequest{FromID: from, ToID: to, Value: r.Int31n(M) + 1})
+				}
+				if err != nil {
+					log.Fatalf("RPC Error: %v", err)
+				}
+				if res.Success {
+					atomic.AddInt64(&succeeded, 1)
+				} else {
+					atomic.AddInt64(&failed, 1)
+				}
+			}
+		}(int64(w))
+	}
+	wait.Wait()
+	elapsed := time.Since(start)
+
+	var total = int32(0)
+	for i := 0; i < N; i++ {
+		r, err := c.Get(context.Background(), &pb.GetRequest{UserID: names[i]})
+		if err != nil {
+			log.Fatalf("GET Error: %v", err)
+		}
+		if r.Value < 0 {
+			log.Fatalf("FAIL: %s has negative balance %d", names[i], r.Value)
+		}
+		total += r.Value
+	}
+
+	log.Printf("%d transactions (%d succeeded, %d rejected) in %v", C*T, succeeded, failed, elapsed)
+	if total != N*M {
+		log.Fatalf("FAIL: total %d (expected: %d)", total, N*M)
+	}
+	log.Printf("PASS: total %d (expected: %d)", total, N*M)
+}